@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * A pool of bitmaps that are no longer in use, bucketed by their size and config.
+ *
+ * Every photo on the board needs a couple of large bitmaps. Allocating a fresh one
+ * for every decode (and never giving them back) means large native allocations and
+ * long GC pauses when photos are added and removed a lot. Instead, bitmaps of photos
+ * that leave the board are put into this pool, and the next decode of the same size
+ * takes one out of it - either as the target of a draw or, on Honeycomb and above,
+ * directly as BitmapFactory.Options.inBitmap so the decoder writes into it.
+ *
+ * The pool is bounded - once it holds more than its maximum number of bytes, the
+ * bitmaps that were put in first are recycled.
+ *
+ * All methods are synchronized as bitmaps are decoded on background threads too.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.Log;
+
+public class BitmapPool {
+
+	private long maxBytes;														//the pool will never hold more than this many bytes
+	private long pooledBytes;													//number of bytes currently held in the pool
+
+	private HashMap<Long,ArrayList<Bitmap>> buckets = new HashMap<Long,ArrayList<Bitmap>>();	//free bitmaps grouped by size and config
+	private LinkedList<Bitmap> insertionOrder = new LinkedList<Bitmap>();		//order in which bitmaps went in - used for eviction
+
+	private int hits, misses, evictions, decodeReuses;							//statistics
+
+	private Canvas scaler = new Canvas();										//used to draw one bitmap scaled into another
+	private Paint filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);			//bilinear filtering when scaling
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param maximumBytes - the maximum number of bytes that may be kept in the pool
+	 ***************************************************************************/
+	public BitmapPool(long maximumBytes){
+		maxBytes = maximumBytes;
+		pooledBytes = 0;
+	}
+
+	/***************************************************************************
+	 * @return - the number of bytes used by the pixels of this bitmap
+	 ***************************************************************************/
+	public static int getBytes(Bitmap bmp){
+		return bmp.getRowBytes() * bmp.getHeight();
+	}
+
+	private static long getKey(int width, int height, Bitmap.Config config){
+		return ((long)width << 32) | ((long)height << 8) | config.ordinal();
+	}
+
+	/***************************************************************************
+	 * Takes a bitmap of exactly this size and config out of the pool, or creates
+	 * a new one if the pool has none. The contents of a pooled bitmap are undefined
+	 ***************************************************************************/
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config){
+
+		Bitmap bmp = take(width, height, config);
+		return (bmp != null)? bmp : Bitmap.createBitmap(width, height, config);
+	}
+
+	/***************************************************************************
+	 * Takes a bitmap of exactly this size and config out of the pool
+	 * @return - the bitmap, or null if the pool has none
+	 ***************************************************************************/
+	private synchronized Bitmap take(int width, int height, Bitmap.Config config){
+
+		ArrayList<Bitmap> bucket = buckets.get(getKey(width, height, config));
+
+		if(bucket != null && !bucket.isEmpty()){
+			Bitmap bmp = bucket.remove(bucket.size() - 1);
+			insertionOrder.remove(bmp);
+			pooledBytes -= getBytes(bmp);
+			hits++;
+			return bmp;
+		}
+
+		misses++;
+		return null;
+	}
+
+	/***************************************************************************
+	 * Gives a bitmap back to the pool. The caller must not use it after this
+	 ***************************************************************************/
+	public synchronized void put(Bitmap bmp){
+
+		if(bmp == null || bmp.isRecycled()) return;
+
+		int bytes = getBytes(bmp);
+		if(bytes > maxBytes || !bmp.isMutable()){								//immutable bitmaps can't be reused
+			bmp.recycle();
+			return;
+		}
+
+		long key = getKey(bmp.getWidth(), bmp.getHeight(), bmp.getConfig());
+		ArrayList<Bitmap> bucket = buckets.get(key);
+		if(bucket == null){
+			bucket = new ArrayList<Bitmap>();
+			buckets.put(key, bucket);
+		}
+
+		bucket.add(bmp);
+		insertionOrder.addLast(bmp);
+		pooledBytes += bytes;
+
+		trimTo(maxBytes);
+	}
+
+	/***************************************************************************
+	 * Recycles the oldest bitmaps in the pool until it holds no more than the
+	 * specified number of bytes
+	 ***************************************************************************/
+	public synchronized void trimTo(long bytes){
+
+		while(pooledBytes > bytes && !insertionOrder.isEmpty()){
+
+			Bitmap oldest = insertionOrder.removeFirst();
+			buckets.get(getKey(oldest.getWidth(), oldest.getHeight(), oldest.getConfig())).remove(oldest);
+			pooledBytes -= getBytes(oldest);
+			oldest.recycle();
+			evictions++;
+		}
+	}
+
+	/***************************************************************************
+	 * Decodes a resource at its original size. On Honeycomb and above the decoder
+	 * writes straight into a pooled bitmap of the same size when there is one
+	 *
+	 * @param res - resources to decode from
+	 * @param id - id of the resource
+	 * @param config - the pixel format of the decoded bitmap
+	 * @return - a bitmap holding the decoded image, or null if it can't be decoded
+	 ***************************************************************************/
+	public Bitmap decodeResource(Resources res, int id, Bitmap.Config config){
+
+		BitmapFactory.Options opt = new BitmapFactory.Options();
+		opt.inJustDecodeBounds = true;											//first find out how big the image is
+		opt.inScaled = false;
+		BitmapFactory.decodeResource(res, id, opt);
+
+		opt.inJustDecodeBounds = false;
+		opt.inPreferredConfig = config;
+		opt.inSampleSize = 1;
+
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && opt.outWidth > 0 && opt.outHeight > 0){
+
+			opt.inMutable = true;												//so that it can go into the pool later
+			opt.inBitmap = take(opt.outWidth, opt.outHeight, config);			//the decoder will reuse this bitmap's memory
+
+			if(opt.inBitmap != null){											//otherwise the decoder allocates a new one
+				try{
+					Bitmap bmp = BitmapFactory.decodeResource(res, id, opt);
+					if(bmp != null) synchronized(this){ decodeReuses++; }
+					return bmp;
+				}catch(IllegalArgumentException e){								//the decoder couldn't reuse it - decode normally
+					Log.i("BitmapPool", "could not decode into a pooled bitmap: " + e.getMessage());
+					put(opt.inBitmap);
+					opt.inBitmap = null;
+				}
+			}
+		}
+
+		return BitmapFactory.decodeResource(res, id, opt);						//immutable before Honeycomb - put() will just recycle it
+	}
+
+	/***************************************************************************
+	 * Draws a bitmap scaled into a pooled bitmap of the specified size. This
+	 * replaces Bitmap.createScaledBitmap, which allocates a new bitmap every time
+	 ***************************************************************************/
+	public Bitmap getScaled(Bitmap src, int width, int height, Bitmap.Config config){
+
+		Bitmap dst = get(Math.max(1, width), Math.max(1, height), config);
+		if(src.hasAlpha()) dst.eraseColor(Color.TRANSPARENT);					//a pooled bitmap holds whatever was in it - it would show through
+
+		synchronized(this){
+			scaler.setBitmap(dst);
+			scaler.drawBitmap(src, null, new Rect(0, 0, dst.getWidth(), dst.getHeight()), filterPaint);
+		}
+		return dst;
+	}
+
+	public synchronized long getPooledBytes(){
+		return pooledBytes;
+	}
+
+	/***************************************************************************
+	 * @return - the fraction of requests that were served from the pool
+	 ***************************************************************************/
+	public synchronized float getHitRate(){
+		int total = hits + misses;
+		return (total == 0)? 0 : ((float)hits)/total;
+	}
+
+	public synchronized String toString(){
+		return "hits:" + hits + " misses:" + misses + " hitRate:" + (int)(getHitRate() * 100) + "%"
+				+ " decodeReuses:" + decodeReuses + " evictions:" + evictions
+				+ " pooled:" + (pooledBytes / 1024) + "KB of " + (maxBytes / 1024) + "KB";
+	}
+}
@@ -0,0 +1,695 @@
+/*******************************************************************************
+ * This is the container that holds all the Photographs.
+ *
+ * Every Photograph is a view as large as this container (so that it can be moved,
+ * rotated and scaled anywhere), which means every photo would normally be drawn on
+ * every redraw of the board - even photos that have been dragged off the screen, and
+ * photos that are completely covered by other photos.
+ *
+ * Before the children are drawn, the board therefore runs a culling pass. It goes
+ * through the photos from the top of the stack to the bottom and marks a photo as
+ * culled when:
+ *  - its bounds (the transformed region of interest plus its decorations) don't
+ *    intersect the visible area of the board, or
+ *  - its bounds lie completely inside the region of interest of an opaque photo
+ *    that is higher up in the stack
+ *
+ * Culled photos are simply skipped in drawChild(). The number of culled draws is
+ * counted for every frame.
+ *
+ * The board is also a window onto an unbounded world. The photos keep their
+ * coordinates in world space, and a camera (an offset plus a zoom factor) decides
+ * which part of the world is shown. The camera is applied to the canvas before the
+ * children are drawn, and the visible area used for culling is the part of the world
+ * the camera sees - so photos far away from the camera cost nothing at all.
+ * Touches on empty parts of the board move the camera: one finger pans and two
+ * fingers zoom.
+ *
+ * The board also keeps the selection - the photos that have been marked. A gesture
+ * on any marked photo transforms the whole selection as a group about its centroid.
+ * This is done in a single pass over the selection followed by a single invalidate
+ * of the union of the areas the photos covered before and after the change.
+ *
+ * The stacking order of the photos is kept by the board itself, in a doubly linked
+ * list running from the bottom photo to the top one. Raising a photo just moves it to
+ * the end of that list - the children of the layout are never reordered, so there is
+ * no relayout, and only the area of the raised photo is redrawn. The drawing order,
+ * the culling pass and hit testing all walk this list.
+ *
+ * The board owns the edge index its photos snap to while they are dragged, and draws
+ * the alignment guides of the current snap over the photos.
+ *
+ * Photos can be gathered into piles (see PhotoPile). The culling pass skips every
+ * photo of a pile but the top one, which is tested with the bounds of the whole pile
+ * and drawn after the composite of the rest. Hit testing and raising treat a pile as
+ * that one photo, and a pile is moved as a group, like the selection.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.view.View;
+import android.view.ViewParent;
+import android.widget.FrameLayout;
+
+public class Board extends FrameLayout {
+
+	final static int MAX_OCCLUDERS = 16;									//only this many of the topmost opaque photos are tested as occluders
+	final static float MIN_ZOOM = 0.05f;									//limits of the camera zoom
+	final static float MAX_ZOOM = 8.0f;
+
+	private float camX, camY;												//the world coordinates shown at the top left corner of the board
+	private float zoom = 1.0f;												//the scale at which the world is shown
+	private TouchPoint[] camContacts = new TouchPoint[2];					//pointers that are moving the camera
+
+	private Photograph bottom, top;											//ends of the stacking order list
+	private long zCounter;													//incremented every time a photo is raised
+	private int[] drawOrder = new int[0];									//child index for every drawing position, rebuilt lazily
+	private boolean isDrawOrderValid;
+
+	private HashMap<Object,Photograph> photosByTag = new HashMap<Object,Photograph>();	//every photo on the board, by its tag
+	private ArrayList<Photograph> selection = new ArrayList<Photograph>();	//the marked photos
+	private ArrayList<PhotoPile> piles = new ArrayList<PhotoPile>();
+	private ArrayList<Photograph> moving = new ArrayList<Photograph>();	//reused while transforming a group
+	private PointF center = new PointF();									//reused while transforming the selection
+	private Rect area = new Rect();
+	private Rect dirtyUnion = new Rect();
+
+	private OnFrameListener frameListener;									//told how long every frame took to draw
+	private BitmapPool pool;												//the composites of the piles come from it
+	private EdgeIndex edges = new EdgeIndex(this);							//edges and centres of the photos, for snapping
+	private Paint guidePaint = new Paint();
+
+	private RectF viewport = new RectF();									//the part of the world that is visible
+	private RectF bounds = new RectF();										//reused for the bounds of each photo
+	private Photograph[] occluders = new Photograph[MAX_OCCLUDERS];
+
+	//statistics for the last frame, and totals since the board was created
+	private int lastDrawn, lastCulledOffscreen, lastCulledOccluded, lastPiled;
+	private long frames, totalDrawn, totalCulled;
+
+	/***************************************************************************
+	 * Interface definition for a callback to be invoked after every frame the
+	 * board has drawn
+	 ***************************************************************************/
+	public interface OnFrameListener{
+		void onFrameDrawn(long drawNanos);
+	}
+
+	/***************************************************************************
+	 * Class constructor
+	 ***************************************************************************/
+	public Board(Context context) {
+		super(context);
+		setClipChildren(false);												//photos may be drawn outside of their own (world space) bounds
+		setClipToPadding(false);
+		setChildrenDrawingOrderEnabled(true);								//children are drawn in the order of the stacking list
+		guidePaint.setColor(Color.MAGENTA);
+	}
+
+	/***************************************************************************
+	 * Photos are indexed by their tag as they are added, so that the photo a
+	 * pointer belongs to can be found without searching all the children.
+	 * The tag must be set before the photo is added.
+	 * A new photo goes on top of the stack, unless it already carries a z stamp
+	 * (a restored photo) - photos with stamps must then be added in stamp order
+	 ***************************************************************************/
+	public void addView(View child){
+		super.addView(child);
+		if(child instanceof Photograph){
+			Photograph pic = (Photograph)child;
+			photosByTag.put(pic.getTag(), pic);
+			if(pic.zStamp > zCounter) zCounter = pic.zStamp;
+			else pic.zStamp = ++zCounter;
+			linkOnTop(pic);
+			edges.onChanged(pic);
+		}
+		isDrawOrderValid = false;
+	}
+
+	public void removeView(View child){
+		super.removeView(child);
+		if(child instanceof Photograph){
+			Photograph pic = (Photograph)child;
+			if(pic.pile != null) spread(pic.pile);							//a pile doesn't outlive any of its photos
+			photosByTag.remove(pic.getTag());
+			unlink(pic);
+			edges.remove(pic);
+		}
+		isDrawOrderValid = false;
+	}
+
+	/***************************************************************************
+	 * Brings a photo to the top of the stack. Only the area it covers is redrawn.
+	 * A photo in a pile brings the whole pile up
+	 ***************************************************************************/
+	public void raise(Photograph pic){
+
+		if(pic.pile != null){
+			raisePile(pic.pile);
+			return;
+		}
+
+		pic.zStamp = ++zCounter;
+		if(pic == top) return;
+
+		unlink(pic);
+		linkOnTop(pic);
+		isDrawOrderValid = false;
+
+		pic.updateGeometry();
+		pic.getAreaToInvalidate(area);
+		invalidateWorld(area);
+	}
+
+	private void raisePile(PhotoPile pile){
+
+		Photograph head = pile.getTop();
+		if(head == top){
+			head.zStamp = ++zCounter;
+			return;
+		}
+
+		for(int i = 0; i < pile.size(); i++){								//bottom first, so the pile keeps its order
+			Photograph pic = pile.members.get(i);
+			pic.zStamp = ++zCounter;
+			unlink(pic);
+			linkOnTop(pic);
+		}
+		isDrawOrderValid = false;
+
+		head.updateGeometry();
+		pile.getBounds(bounds);
+		bounds.roundOut(area);
+		invalidateWorld(area);
+	}
+
+	private void linkOnTop(Photograph pic){
+		pic.zBelow = top;
+		pic.zAbove = null;
+		if(top != null) top.zAbove = pic; else bottom = pic;
+		top = pic;
+	}
+
+	private void unlink(Photograph pic){
+		if(pic.zBelow != null) pic.zBelow.zAbove = pic.zAbove; else if(bottom == pic) bottom = pic.zAbove;
+		if(pic.zAbove != null) pic.zAbove.zBelow = pic.zBelow; else if(top == pic) top = pic.zBelow;
+		pic.zAbove = null;
+		pic.zBelow = null;
+	}
+
+	/***************************************************************************
+	 * @return - the photo on top of the stack (walk down through zBelow)
+	 ***************************************************************************/
+	public Photograph getTopPhoto(){
+		return top;
+	}
+
+	public Photograph getBottomPhoto(){
+		return bottom;
+	}
+
+	/***************************************************************************
+	 * Tells the layout which child to draw at every drawing position. The list
+	 * is turned into an array of child indices once after every change in the
+	 * stacking order, not on every call
+	 * (non-Javadoc)
+	 * @see android.view.ViewGroup#getChildDrawingOrder(int, int)
+	 ***************************************************************************/
+	protected int getChildDrawingOrder(int childCount, int i){
+
+		if(!isDrawOrderValid || drawOrder.length != childCount) buildDrawOrder(childCount);
+		return drawOrder[i];
+	}
+
+	private void buildDrawOrder(int childCount){
+
+		if(drawOrder.length != childCount) drawOrder = new int[childCount];
+
+		int n = 0;
+		for(int i = 0; i < childCount; i++){								//anything that is not a photo is drawn below the photos
+			View child = getChildAt(i);
+			if(child instanceof Photograph) ((Photograph)child).childIndex = i;
+			else drawOrder[n++] = i;
+		}
+		for(Photograph pic = bottom; pic != null && n < childCount; pic = pic.zAbove) drawOrder[n++] = pic.childIndex;
+
+		isDrawOrderValid = true;
+	}
+
+	/***************************************************************************
+	 * @return - the topmost photo whose region of interest contains the point
+	 * (world coordinates), or null if there is none. A pile is tested as one
+	 * object, and a point on it hits its top photo
+	 ***************************************************************************/
+	public Photograph findPhotographAt(int worldX, int worldY){
+
+		for(Photograph pic = top; pic != null; pic = pic.zBelow){
+			PhotoPile pile = pic.pile;
+			if(pile != null){
+				pic = pile.getBottom();											//the members below the top are never tested one by one
+				pile.getBounds(bounds);
+				if(bounds.contains(worldX, worldY) && pile.contains(worldX, worldY)) return pile.getTop();
+				continue;
+			}
+			if(pic.isPointInROI(worldX, worldY)) return pic;
+		}
+		return null;
+	}
+
+	/***************************************************************************
+	 * @return - the photo with this tag, or null if there is none on the board
+	 ***************************************************************************/
+	public Photograph findPhotograph(Object tag){
+		return photosByTag.get(tag);
+	}
+
+	/***************************************************************************
+	 * Applies the camera and runs the culling pass before the children are drawn
+	 * (non-Javadoc)
+	 * @see android.view.ViewGroup#dispatchDraw(android.graphics.Canvas)
+	 ***************************************************************************/
+	protected void dispatchDraw(Canvas c){
+
+		long start = System.nanoTime();
+
+		viewport.set(camX, camY, camX + getWidth() / zoom, camY + getHeight() / zoom);
+		cull();
+
+		c.save();
+		c.scale(zoom, zoom);
+		c.translate(-camX, -camY);
+		super.dispatchDraw(c);
+		if(edges.getGuideCount() > 0){										//the guides are as thin on screen at any zoom
+			guidePaint.setStrokeWidth(2 / zoom);
+			c.drawLines(edges.getGuides(), 0, edges.getGuideCount() * 4, guidePaint);
+		}
+		c.restore();
+
+		if(frameListener != null) frameListener.onFrameDrawn(System.nanoTime() - start);
+	}
+
+	/***************************************************************************
+	 * Sets the pool the composites of piles are allocated from. Must be set
+	 * before the first pile is made
+	 ***************************************************************************/
+	public void setBitmapPool(BitmapPool bitmapPool){
+		pool = bitmapPool;
+	}
+
+	public void setOnFrameListener(OnFrameListener listener){
+		frameListener = listener;
+	}
+
+	public OnFrameListener getOnFrameListener(){
+		return frameListener;
+	}
+
+	public EdgeIndex getEdgeIndex(){
+		return edges;
+	}
+
+	/***************************************************************************
+	 * The photos invalidate areas in world coordinates - these have to be taken
+	 * through the camera before they mean anything on screen
+	 * (non-Javadoc)
+	 * @see android.view.ViewGroup#invalidateChildInParent(int[], android.graphics.Rect)
+	 ***************************************************************************/
+	public ViewParent invalidateChildInParent(int[] location, Rect dirty){
+
+		if(dirty.left <= 0 && dirty.top <= 0 && dirty.right >= getWidth() && dirty.bottom >= getHeight()){
+			dirty.set(0, 0, getWidth(), getHeight());						//the whole child was invalidated - its world area could be anywhere
+		}
+		else{
+			dirty.set((int)Math.floor(toScreenX(dirty.left)), (int)Math.floor(toScreenY(dirty.top)),
+					(int)Math.ceil(toScreenX(dirty.right)), (int)Math.ceil(toScreenY(dirty.bottom)));
+		}
+		return super.invalidateChildInParent(location, dirty);
+	}
+
+	/***************************************************************************
+	 * Conversions between screen (board) coordinates and world coordinates
+	 ***************************************************************************/
+	public float toWorldX(float screenX){
+		return camX + screenX / zoom;
+	}
+
+	public float toWorldY(float screenY){
+		return camY + screenY / zoom;
+	}
+
+	public float toScreenX(float worldX){
+		return (worldX - camX) * zoom;
+	}
+
+	public float toScreenY(float worldY){
+		return (worldY - camY) * zoom;
+	}
+
+	public float getZoom(){
+		return zoom;
+	}
+
+	/***************************************************************************
+	 * @return - the part of the world that was visible in the last frame
+	 ***************************************************************************/
+	public RectF getViewport(){
+		return viewport;
+	}
+
+	/***************************************************************************
+	 * Moves the camera by the specified distance on screen
+	 ***************************************************************************/
+	public void pan(float dxScreen, float dyScreen){
+		camX -= dxScreen / zoom;
+		camY -= dyScreen / zoom;
+		invalidate();
+	}
+
+	/***************************************************************************
+	 * Zooms the camera by the specified factor, keeping the world point under the
+	 * focus (in screen coordinates) where it is
+	 ***************************************************************************/
+	public void zoomBy(float factor, float focusX, float focusY){
+
+		float worldX = toWorldX(focusX);
+		float worldY = toWorldY(focusY);
+
+		zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * factor));
+		camX = worldX - focusX / zoom;
+		camY = worldY - focusY / zoom;
+		invalidate();
+	}
+
+	/***************************************************************************
+	 * Marks or unmarks a photo, adding it to or removing it from the selection
+	 ***************************************************************************/
+	public void setMarked(Photograph pic, boolean marked){
+
+		pic.setMarker(marked);
+		if(marked){
+			if(!selection.contains(pic)) selection.add(pic);
+		}
+		else selection.remove(pic);
+	}
+
+	public ArrayList<Photograph> getSelection(){
+		return selection;
+	}
+
+	/***************************************************************************
+	 * Gathers photos into a pile. The photos are raised in the order given, so
+	 * the last one becomes the top of the pile. Where they lie is up to the
+	 * caller - they are not moved here
+	 *
+	 * @param pics - the photos, bottom of the pile first (any pile they are in
+	 * is spread)
+	 * @return - the new pile, or null if there are fewer than two photos
+	 ***************************************************************************/
+	public PhotoPile pileUp(ArrayList<Photograph> pics){
+
+		if(pics.size() < 2) return null;
+
+		PhotoPile pile = new PhotoPile(pool);
+		for(int i = 0; i < pics.size(); i++){
+			Photograph pic = pics.get(i);
+			if(pic.pile != null) spread(pic.pile);
+			raise(pic);
+			pile.members.add(pic);
+		}
+		for(int i = 0; i < pics.size(); i++) pics.get(i).pile = pile;
+		piles.add(pile);
+		invalidate();
+		return pile;
+	}
+
+	/***************************************************************************
+	 * Breaks up a pile. Its photos stay where they are, and are drawn and touched
+	 * one by one again
+	 ***************************************************************************/
+	public void spread(PhotoPile pile){
+
+		for(int i = 0; i < pile.size(); i++) pile.members.get(i).pile = null;
+		pile.release();
+		piles.remove(pile);
+		invalidate();
+	}
+
+	public void spreadAll(){
+		while(!piles.isEmpty()) spread(piles.get(piles.size() - 1));
+	}
+
+	public ArrayList<PhotoPile> getPiles(){
+		return piles;
+	}
+
+	/***************************************************************************
+	 * Translates, rotates and scales all the selected photos as one group about
+	 * their common centroid (a marked pile moves with all of its photos). All the
+	 * photos are changed first, then the union of the areas they covered before
+	 * and after is redrawn in one go
+	 *
+	 * @param dx - translation along x (world coordinates)
+	 * @param dy - translation along y (world coordinates)
+	 * @param degrees - rotation in degrees
+	 * @param scale - multiplier for the scaling factors
+	 ***************************************************************************/
+	public void transformSelection(float dx, float dy, float degrees, float scale){
+
+		moving.clear();
+		for(int i = 0; i < selection.size(); i++){
+			Photograph pic = selection.get(i);
+			if(pic.pile == null) moving.add(pic);
+			else if(pic == pic.pile.getTop()) moving.addAll(pic.pile.members);
+		}
+		transformGroup(moving, dx, dy, degrees, scale);
+		moving.clear();
+	}
+
+	/***************************************************************************
+	 * Translates, rotates and scales a pile as a whole, the same way as the
+	 * selection. A pile whose top is locked stays where it is
+	 ***************************************************************************/
+	public void transformPile(PhotoPile pile, float dx, float dy, float degrees, float scale){
+		if(pile.getTop().isLocked) return;
+		transformGroup(pile.members, dx, dy, degrees, scale);
+	}
+
+	/***************************************************************************
+	 * Moves a group of photos about their centroid. The photos below the top of
+	 * a pile can't be seen, so their areas are not redrawn - the area of the pile
+	 * is, and its composite is moved along with them
+	 ***************************************************************************/
+	private void transformGroup(ArrayList<Photograph> group, float dx, float dy, float degrees, float scale){
+
+		int count = group.size();
+		if(count == 0) return;
+
+		float pivotX = 0, pivotY = 0;
+		for(int i = 0; i < count; i++){										//the centroid of the group
+			Photograph pic = group.get(i);
+			pic.getCenter(center);
+			pivotX += center.x;
+			pivotY += center.y;
+			if(pic.getSx() * scale <= Photograph.MIN_SCALE_VAL || pic.getSy() * scale <= Photograph.MIN_SCALE_VAL) scale = 1;	//all of them or none
+			if(pic.pile != null) pic.pile.isMoving = true;
+		}
+		pivotX /= count;
+		pivotY /= count;
+
+		dirtyUnion.setEmpty();
+		for(int i = 0; i < count; i++){
+
+			Photograph pic = group.get(i);
+			PhotoPile pile = pic.pile;
+			boolean isHidden = pile != null && pic != pile.getTop();
+
+			if(pile != null && !isHidden){
+				pile.getBounds(bounds);										//where the pile was...
+				bounds.roundOut(area);
+				dirtyUnion.union(area);
+			}
+			if(!isHidden){
+				pic.getAreaToInvalidate(area);								//where it was...
+				dirtyUnion.union(area);
+			}
+
+			pic.applyGroupTransform(dx, dy, degrees, scale, pivotX, pivotY);
+			if(isHidden) continue;
+
+			pic.updateGeometry();
+			pic.getAreaToInvalidate(area);									//...and where it is now
+			dirtyUnion.union(area);
+		}
+
+		for(int i = 0; i < count; i++){
+			Photograph pic = group.get(i);
+			PhotoPile pile = pic.pile;
+			if(pile == null || pic != pile.getTop()) continue;
+			pile.transform(dx, dy, degrees, scale, pivotX, pivotY);			//the composite follows its photos
+			pile.getBounds(bounds);
+			bounds.roundOut(area);
+			dirtyUnion.union(area);
+		}
+		for(int i = 0; i < count; i++){
+			if(group.get(i).pile != null) group.get(i).pile.isMoving = false;
+		}
+
+		invalidateWorld(dirtyUnion);
+	}
+
+	/***************************************************************************
+	 * Redraws an area given in world coordinates
+	 ***************************************************************************/
+	private void invalidateWorld(Rect worldArea){
+		invalidate((int)Math.floor(toScreenX(worldArea.left)), (int)Math.floor(toScreenY(worldArea.top)),
+				(int)Math.ceil(toScreenX(worldArea.right)), (int)Math.ceil(toScreenY(worldArea.bottom)));
+	}
+
+	/***************************************************************************
+	 * Registers a pointer that went down on an empty part of the board. At most
+	 * two pointers move the camera at a time
+	 ***************************************************************************/
+	public void addCameraContact(TouchPoint point){
+		for(int i = 0; i < camContacts.length; i++){
+			if(camContacts[i] == null){
+				camContacts[i] = point;
+				break;
+			}
+		}
+	}
+
+	public void removeCameraContact(int pId){
+		for(int i = 0; i < camContacts.length; i++){
+			if(camContacts[i] != null && camContacts[i].pointerId == pId) camContacts[i] = null;
+		}
+	}
+
+	/***************************************************************************
+	 * Moves the camera for a camera pointer that has moved to (x,y) on screen.
+	 * With one pointer down the board is panned, with two it is zoomed about the
+	 * pointer that is not moving
+	 *
+	 * @param moving - the pointer that moved (still holding its old position)
+	 ***************************************************************************/
+	public void moveCamera(TouchPoint moving, int x, int y){
+
+		TouchPoint fixed = null;
+		boolean isContact = false;
+		for(int i = 0; i < camContacts.length; i++){
+			if(camContacts[i] == null) continue;
+			if(camContacts[i] == moving) isContact = true;
+			else fixed = camContacts[i];
+		}
+		if(!isContact) return;
+
+		if(fixed == null){
+			pan(x - moving.getX(), y - moving.getY());
+			return;
+		}
+
+		float oldDist = (float)Math.hypot(moving.getX() - fixed.getX(), moving.getY() - fixed.getY());
+		float newDist = (float)Math.hypot(x - fixed.getX(), y - fixed.getY());
+		if(oldDist > 0 && newDist > 0) zoomBy(newDist / oldDist, fixed.getX(), fixed.getY());
+	}
+
+	/***************************************************************************
+	 * Skips the photos that were culled in this frame
+	 * (non-Javadoc)
+	 * @see android.view.ViewGroup#drawChild(android.graphics.Canvas, android.view.View, long)
+	 ***************************************************************************/
+	protected boolean drawChild(Canvas c, View child, long drawingTime){
+
+		if(child instanceof Photograph){
+			Photograph pic = (Photograph)child;
+			if(pic.isCulled) return false;
+			if(pic.pile != null) pic.pile.draw(c, zoom);					//only the top of a pile gets here - the rest of the pile goes below it
+		}
+		return super.drawChild(c, child, drawingTime);
+	}
+
+	/***************************************************************************
+	 * Decides for every photo whether it has to be drawn in this frame. Photos
+	 * are visited from the top of the stack down, so that the opaque photos that
+	 * can hide the ones below them are known by the time those are tested.
+	 * The photos below the top of a pile are never drawn on their own
+	 ***************************************************************************/
+	private void cull(){
+
+		int numOccluders = 0;
+		int drawn = 0, offscreen = 0, occluded = 0, piled = 0;
+
+		for(Photograph pic = top; pic != null; pic = pic.zBelow){
+
+			PhotoPile pile = pic.pile;
+			if(pile != null && pic != pile.getTop()){						//drawn as part of the composite of its pile
+				pic.isCulled = true;
+				piled++;
+				continue;
+			}
+
+			pic.updateGeometry();
+			if(pile != null) pile.getBounds(bounds); else pic.getBounds(bounds);
+
+			pic.isCulled = false;
+			if(!RectF.intersects(viewport, bounds)){						//nothing of it is on screen
+				pic.isCulled = true;
+				offscreen++;
+				if(pile != null) pile.release();							//drawn again when it comes back into view
+				continue;
+			}
+
+			for(int o = 0; o < numOccluders; o++){
+				if(occluders[o].containsRect(bounds)){						//completely hidden by a photo above it
+					pic.isCulled = true;
+					occluded++;
+					break;
+				}
+			}
+			if(pic.isCulled) continue;
+
+			drawn++;
+			if(numOccluders < MAX_OCCLUDERS && pic.isOpaque()) occluders[numOccluders++] = pic;
+		}
+
+		for(int o = 0; o < numOccluders; o++) occluders[o] = null;			//don't hold on to removed photos
+
+		lastDrawn = drawn;
+		lastCulledOffscreen = offscreen;
+		lastCulledOccluded = occluded;
+		lastPiled = piled;
+		frames++;
+		totalDrawn += drawn;
+		totalCulled += offscreen + occluded + piled;
+	}
+
+	/***************************************************************************
+	 * @return - the number of photo draws that were skipped in the last frame
+	 ***************************************************************************/
+	public int getCulledLastFrame(){
+		return lastCulledOffscreen + lastCulledOccluded + lastPiled;
+	}
+
+	public int getDrawnLastFrame(){
+		return lastDrawn;
+	}
+
+	public long getFrameCount(){
+		return frames;
+	}
+
+	public String toString(){
+		return "frames:" + frames + " last frame - drawn:" + lastDrawn + " offscreen:" + lastCulledOffscreen
+				+ " occluded:" + lastCulledOccluded + " piled:" + lastPiled + " piles:" + piles.size()
+				+ " total culled:" + totalCulled + " of " + (totalDrawn + totalCulled);
+	}
+}
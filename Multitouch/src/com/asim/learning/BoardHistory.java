@@ -0,0 +1,301 @@
+/*******************************************************************************
+ * The undo / redo history of the board.
+ *
+ * The history is built on a persistent model of the board - a map from the tag of
+ * every photo to its state (translation, angle, scale, mark and lock). A version of
+ * the model is never changed once it is made. A new version copies only the path from
+ * the root down to every photo that changed and shares everything else with the
+ * version before it, so:
+ *  - a history step costs memory in proportion to the photos it changed, not to
+ *    the photos on the board
+ *  - undoing or redoing a step puts back only the photos it changed
+ *
+ * The map is a trie with 32 slots per node, indexed by 5 bits of the tag at a time
+ * (tags are small sequential numbers, so it stays shallow - 3 levels hold 32768
+ * photos). While a new version is being built, nodes that were already copied for it
+ * are changed in place, so a step that moves every photo copies every node once.
+ *
+ * Changes are coalesced: photos report every change, but a step is only made when a
+ * gesture ends (or an arrangement arrives), and it holds all the photos that changed
+ * since the last step. A whole drag, with hundreds of move events, is one step.
+ *
+ * The history is bounded by the number of steps and by the number of photo changes
+ * held in all the steps - the oldest steps are dropped first.
+ *
+ * Photos that were added after a step, or that have left the board since, are left
+ * alone when the step is undone or redone.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+public class BoardHistory {
+
+	final static int BITS = 5;												//bits of the tag used at each level of the trie
+	final static int WIDTH = 1 << BITS;
+	final static int MASK = WIDTH - 1;
+
+	public int maxSteps = 100;												//at most this many steps are kept
+	public int maxChanges = 50000;											//...holding at most this many photo changes between them
+
+	private Board board;
+	private Version current = new Version(new Node(0), 0);
+	private ArrayList<Step> undoable = new ArrayList<Step>();
+	private ArrayList<Step> redoable = new ArrayList<Step>();
+	private HashSet<Photograph> pending = new HashSet<Photograph>();		//photos changed since the last step
+	private int heldChanges;												//photo changes held by all the steps
+	private int edit;														//id of the version being built
+	private boolean isApplying;												//set while the history itself changes photos
+	private int steps, undone, redone, dropped;								//statistics
+
+	/***************************************************************************
+	 * The state of one photo. Never changed once it is made
+	 ***************************************************************************/
+	static final class PhotoState {
+
+		final float tx, ty, angle, sx, sy;
+		final boolean isMarked, isLocked;
+
+		PhotoState(Photograph pic){
+			tx = pic.getTx();
+			ty = pic.getTy();
+			angle = pic.getAngle();
+			sx = pic.getSx();
+			sy = pic.getSy();
+			isMarked = pic.isMarked;
+			isLocked = pic.isLocked;
+		}
+
+		boolean isSameAs(PhotoState other){
+			return other != null && tx == other.tx && ty == other.ty && angle == other.angle && sx == other.sx && sy == other.sy
+					&& isMarked == other.isMarked && isLocked == other.isLocked;
+		}
+	}
+
+	/** a node of the trie - its slots hold nodes, or PhotoStates at the bottom level */
+	static final class Node {
+		final Object[] slots = new Object[WIDTH];
+		final int edit;														//the version this node was made for
+
+		Node(int editId){
+			edit = editId;
+		}
+	}
+
+	/** a version of the model - the root of its trie and the shift of the root level */
+	static final class Version {
+		final Node root;
+		final int shift;
+
+		Version(Node rootNode, int rootShift){
+			root = rootNode;
+			shift = rootShift;
+		}
+	}
+
+	/** a step of the history - the versions before and after it, and the tags it changed */
+	static final class Step {
+		final Version before, after;
+		final int[] tags;
+
+		Step(Version beforeStep, Version afterStep, int[] changedTags){
+			before = beforeStep;
+			after = afterStep;
+			tags = changedTags;
+		}
+	}
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param photoBoard - the board whose photos are tracked
+	 ***************************************************************************/
+	public BoardHistory(Board photoBoard){
+		board = photoBoard;
+	}
+
+	/***************************************************************************
+	 * Starts tracking a photo in its current state. This does not make a step
+	 * (adding photos can't be undone). The tag of the photo must be a
+	 * non-negative Integer
+	 ***************************************************************************/
+	public void track(Photograph pic){
+		edit++;
+		current = put(current, (Integer)pic.getTag(), new PhotoState(pic));
+	}
+
+	/***************************************************************************
+	 * To be called whenever a tracked photo changes. Nothing is recorded until
+	 * the next commit()
+	 ***************************************************************************/
+	public void onChanged(Photograph pic){
+		if(!isApplying) pending.add(pic);
+	}
+
+	/***************************************************************************
+	 * Makes a step of all the photos that changed since the last step (if any of
+	 * them really ended up different). To be called when a gesture ends
+	 ***************************************************************************/
+	public void commit(){
+
+		if(pending.isEmpty()) return;
+
+		edit++;
+		Version before = current, after = current;
+		int[] tags = new int[pending.size()];
+		int changed = 0;
+
+		for(Photograph pic : pending){
+			if(!(pic.getTag() instanceof Integer)) continue;
+			int tag = (Integer)pic.getTag();
+			PhotoState state = new PhotoState(pic);
+			if(state.isSameAs(get(before, tag))) continue;					//moved, and moved back again
+			after = put(after, tag, state);
+			tags[changed++] = tag;
+		}
+		pending.clear();
+		if(changed == 0) return;
+
+		int[] kept = new int[changed];
+		System.arraycopy(tags, 0, kept, 0, changed);
+		current = after;
+
+		for(int i = 0; i < redoable.size(); i++) heldChanges -= redoable.get(i).tags.length;
+		redoable.clear();													//a new step ends the redo chain
+		undoable.add(new Step(before, after, kept));
+		heldChanges += changed;
+		steps++;
+
+		while(undoable.size() > 1 && (undoable.size() > maxSteps || heldChanges > maxChanges)){
+			heldChanges -= undoable.remove(0).tags.length;					//nothing refers to its old nodes any more, unless a later version shares them
+			dropped++;
+		}
+	}
+
+	public boolean canUndo(){
+		return !undoable.isEmpty() || !pending.isEmpty();
+	}
+
+	public boolean canRedo(){
+		return !redoable.isEmpty() && pending.isEmpty();
+	}
+
+	/***************************************************************************
+	 * Puts the photos changed by the last step back the way they were
+	 * @return - false if there was nothing to undo
+	 ***************************************************************************/
+	public boolean undo(){
+
+		commit();															//a gesture that was not committed yet is undone first
+		if(undoable.isEmpty()) return false;
+
+		Step step = undoable.remove(undoable.size() - 1);
+		redoable.add(step);
+		apply(step.before, step.tags);
+		undone++;
+		return true;
+	}
+
+	/***************************************************************************
+	 * Does the last undone step again
+	 * @return - false if there was nothing to redo
+	 ***************************************************************************/
+	public boolean redo(){
+
+		commit();
+		if(redoable.isEmpty()) return false;
+
+		Step step = redoable.remove(redoable.size() - 1);
+		undoable.add(step);
+		apply(step.after, step.tags);
+		redone++;
+		return true;
+	}
+
+	/***************************************************************************
+	 * Puts the photos with these tags into the state they have in a version, in
+	 * the current version and on the board. Only these photos are taken from it,
+	 * so photos tracked since then stay in the current version. The board is
+	 * redrawn once
+	 ***************************************************************************/
+	private void apply(Version version, int[] tags){
+
+		edit++;
+		for(int i = 0; i < tags.length; i++){
+			PhotoState state = get(version, tags[i]);
+			if(state != null) current = put(current, tags[i], state);
+		}
+		isApplying = true;
+
+		for(int i = 0; i < tags.length; i++){
+
+			Photograph pic = board.findPhotograph(Integer.valueOf(tags[i]));
+			PhotoState state = get(version, tags[i]);
+			if(pic == null || state == null) continue;							//not on the board (any more)
+
+			pic.setTransform(state.tx, state.ty, state.angle, state.sx, state.sy, true);
+			if(pic.isMarked != state.isMarked) board.setMarked(pic, state.isMarked);
+			if(pic.isLocked != state.isLocked) pic.setLock(state.isLocked);
+		}
+
+		isApplying = false;
+		board.invalidate();
+	}
+
+	/***************************************************************************
+	 * @return - the state of the photo with this tag in a version, or null
+	 ***************************************************************************/
+	static PhotoState get(Version version, int tag){
+
+		if(tag < 0 || (version.shift < 30 && (tag >>> version.shift) >= WIDTH)) return null;	//beyond the reach of this trie
+		Node node = version.root;
+		for(int shift = version.shift; shift > 0; shift -= BITS){
+			node = (Node)node.slots[(tag >>> shift) & MASK];
+			if(node == null) return null;
+		}
+		return (PhotoState)node.slots[tag & MASK];
+	}
+
+	/***************************************************************************
+	 * @return - a version that is the same as this one, except for the state of
+	 * the photo with this tag. Nodes made for the current edit are changed in
+	 * place, all others are copied
+	 ***************************************************************************/
+	private Version put(Version version, int tag, PhotoState state){
+
+		Node root = version.root;
+		int shift = version.shift;
+		while(shift < 30 && (tag >>> shift) >= WIDTH){						//the tag is beyond the reach of the trie - add a level on top
+			Node taller = new Node(edit);
+			taller.slots[0] = root;
+			root = taller;
+			shift += BITS;
+		}
+
+		Node newRoot = editable(root);
+		Node node = newRoot;
+		for(int s = shift; s > 0; s -= BITS){
+			int slot = (tag >>> s) & MASK;
+			Node child = (Node)node.slots[slot];
+			child = (child == null)? new Node(edit) : editable(child);
+			node.slots[slot] = child;
+			node = child;
+		}
+		node.slots[tag & MASK] = state;
+
+		return (newRoot == version.root && shift == version.shift)? version : new Version(newRoot, shift);
+	}
+
+	private Node editable(Node node){
+		if(node.edit == edit) return node;
+		Node copy = new Node(edit);
+		System.arraycopy(node.slots, 0, copy.slots, 0, WIDTH);
+		return copy;
+	}
+
+	public String toString(){
+		return "steps:" + steps + " undoable:" + undoable.size() + " redoable:" + redoable.size() + " changes held:" + heldChanges
+				+ " undone:" + undone + " redone:" + redone + " dropped:" + dropped;
+	}
+}
@@ -0,0 +1,430 @@
+/*******************************************************************************
+ * This class saves the state of every Photograph on the board into a small binary
+ * file and reads it back when the activity is created again.
+ *
+ * The file is made up of a fixed size header followed by one fixed size record per
+ * photo. The record of a photo lives at a position that is computed from the tag
+ * of the photo (tags are handed out sequentially), so when a single photo changes
+ * we can simply seek to its record and overwrite it. There is no need to write the
+ * whole board again every time something moves.
+ *
+ * The records are packed into one buffer on the UI thread, and the buffer is written
+ * out by a background thread - one seek and write for every run of neighbouring
+ * slots. The writer thread is shared by all the snapshots, and read() waits for it,
+ * so a snapshot read by a new activity sees everything the old one saved.
+ *
+ * Reading the file is done in one sequential pass. Only the geometry is stored here,
+ * the pixels are decoded again from the resource of each photo, which allows the
+ * board to be laid out first and the bitmaps to be streamed in afterwards. Resources
+ * are saved by their entry name rather than their id - the ids are handed out anew
+ * by every build, so a saved id may point at nothing (or another image) after an
+ * update.
+ *
+ * Layout of the file (all values big endian):
+ *
+ *  HEADER  - int magic, short version, short record size, int record count, int reserved
+ *  RECORD  - int tag, short name length, char[NAME_CHARS] resource name, int width, int height,
+ *            float tx, float ty, float angle, float sx, float sy,
+ *            int flags, long z stamp, short label length, char[LABEL_CHARS] label
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+public class BoardSnapshot {
+
+	final static int MAGIC = 0x4D544253;									//"MTBS" - marks the file as a board snapshot
+	final static short VERSION = 2;											//bump this whenever the record layout changes
+	final static int HEADER_SIZE = 16;										//size of the header in bytes
+	final static int NAME_CHARS = 47;										//photos of resources with longer names are not saved
+	final static int LABEL_CHARS = 23;										//labels longer than this are truncated
+	final static int RECORD_SIZE = 48 + NAME_CHARS * 2 + LABEL_CHARS * 2;	//size of one photo record in bytes
+
+	final static int FLAG_MARKED = 1;
+	final static int FLAG_LOCKED = 2;
+	final static int FLAG_PLAYABLE = 4;
+
+	private File file;														//the file the snapshot is kept in
+	private Resources resources;											//gives the names of the resources of the photos
+	private HashMap<Integer,String> names = new HashMap<Integer,String>();	//resource names looked up so far, by id
+	private RandomAccessFile raf;											//kept open so that single records can be rewritten - only used by the writer
+	private int recordCount;												//number of record slots in the file once the queued writes are done
+	private HashSet<Photograph> dirty = new HashSet<Photograph>();			//photos whose records need to be rewritten
+
+	private static ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory(){	//writes the files of all snapshots, in order
+		public Thread newThread(Runnable r){
+			Thread thread = new Thread(r, "BoardSnapshot");
+			thread.setDaemon(true);											//never keeps the process alive
+			return thread;
+		}
+	});
+
+	/***************************************************************************
+	 * One photo as read back from the snapshot
+	 ***************************************************************************/
+	public static class Record {
+		public int tag;
+		public String resourceName;
+		public int width, height;
+		public float tx, ty, angle, sx, sy;
+		public int flags;
+		public long zStamp;
+		public String label;
+
+		public boolean isMarked(){ return (flags & FLAG_MARKED) != 0; }
+		public boolean isLocked(){ return (flags & FLAG_LOCKED) != 0; }
+		public boolean isPlayable(){ return (flags & FLAG_PLAYABLE) != 0; }
+	}
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param snapshotFile - the file in which the board will be saved
+	 * @param res - the resources the photos are decoded from
+	 ***************************************************************************/
+	public BoardSnapshot(File snapshotFile, Resources res){
+		file = snapshotFile;
+		resources = res;
+		recordCount = 0;
+	}
+
+	/***************************************************************************
+	 * Reads the whole snapshot in one sequential pass. The records are returned
+	 * sorted by their z stamp, so adding them to the parent in this order rebuilds
+	 * the original stacking order of the photos
+	 *
+	 * @return - the saved records, or null if there is no usable snapshot (none
+	 * at all, an old format or a corrupt file)
+	 ***************************************************************************/
+	public Record[] read(){
+
+		waitForWriter();
+		if(!file.exists()) return null;
+
+		DataInputStream in = null;
+		try{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+
+			if(in.readInt() != MAGIC || in.readShort() != VERSION || in.readShort() != RECORD_SIZE){
+				Log.i("BoardSnapshot", "snapshot has an unknown format - ignoring it");
+				return null;
+			}
+
+			int count = in.readInt();
+			in.readInt();													//reserved
+			if(count < 0 || count > (file.length() - HEADER_SIZE) / RECORD_SIZE){	//a torn or corrupt header - don't allocate for it
+				Log.i("BoardSnapshot", "snapshot claims " + count + " records but is " + file.length() + " bytes long - ignoring it");
+				return null;
+			}
+
+			Record[] records = new Record[count];
+			int valid = 0;
+			char[] nameChars = new char[NAME_CHARS];
+			char[] labelChars = new char[LABEL_CHARS];
+
+			for(int i = 0; i < count; i++){
+
+				Record r = new Record();
+				r.tag = in.readInt();
+				int nameLength = in.readShort();
+				for(int c = 0; c < NAME_CHARS; c++) nameChars[c] = in.readChar();
+				r.resourceName = new String(nameChars, 0, Math.max(0, Math.min(nameLength, NAME_CHARS)));
+				r.width = in.readInt();
+				r.height = in.readInt();
+				r.tx = in.readFloat();
+				r.ty = in.readFloat();
+				r.angle = in.readFloat();
+				r.sx = in.readFloat();
+				r.sy = in.readFloat();
+				r.flags = in.readInt();
+				r.zStamp = in.readLong();
+
+				int labelLength = in.readShort();
+				for(int c = 0; c < LABEL_CHARS; c++) labelChars[c] = in.readChar();
+				r.label = new String(labelChars, 0, Math.max(0, Math.min(labelLength, LABEL_CHARS)));
+
+				if(r.tag >= 0 && r.width > 0 && r.height > 0 && r.resourceName.length() > 0) records[valid++] = r;	//empty slots have a negative tag
+			}
+
+			Record[] saved = new Record[valid];
+			System.arraycopy(records, 0, saved, 0, valid);
+			Arrays.sort(saved, new Comparator<Record>(){
+				public int compare(Record a, Record b){
+					return (a.zStamp < b.zStamp)? -1 : ((a.zStamp == b.zStamp)? 0 : 1);
+				}
+			});
+
+			recordCount = count;
+			return saved;
+
+		}catch(IOException e){
+			Log.e("BoardSnapshot", "could not read the snapshot", e);
+			return null;
+		}catch(RuntimeException e){											//garbage that got past the checks above
+			Log.e("BoardSnapshot", "snapshot is corrupt - ignoring it", e);
+			return null;
+		}finally{
+			if(in != null) try{ in.close(); }catch(IOException e){ }
+		}
+	}
+
+	/***************************************************************************
+	 * Marks the record of this photo as out of date. Nothing is written until
+	 * flush() is called, so a photo that changes on every move event costs
+	 * nothing more than a set insertion here. Photos that were not decoded from
+	 * a resource (generated photos, movie tiles) can't be restored, so they are
+	 * never saved
+	 ***************************************************************************/
+	public void markDirty(Photograph pic){
+		if(pic.getResourceId() == 0) return;
+		dirty.add(pic);
+	}
+
+	/***************************************************************************
+	 * @return - the entry name of a resource ("img1" for R.drawable.img1), or
+	 * null if it can't be saved
+	 ***************************************************************************/
+	private String getResourceName(int id){
+
+		if(names.containsKey(id)) return names.get(id);
+		String name = null;
+		try{
+			name = resources.getResourceEntryName(id);
+			if(name.length() > NAME_CHARS) name = null;
+		}catch(Resources.NotFoundException e){
+			Log.e("BoardSnapshot", "no resource with id " + id);
+		}
+		names.put(id, name);
+		return name;
+	}
+
+	/***************************************************************************
+	 * Packs the records of all the dirty photos into one buffer, in the order of
+	 * their slots, and hands it to the writer. Slots between the old end of the
+	 * file and a new record are filled as empty records
+	 ***************************************************************************/
+	public void flush(){
+
+		if(dirty.isEmpty()) return;
+
+		Photograph[] pics = dirty.toArray(new Photograph[dirty.size()]);
+		dirty.clear();
+		Arrays.sort(pics, new Comparator<Photograph>(){
+			public int compare(Photograph a, Photograph b){
+				return (Integer)a.getTag() - (Integer)b.getTag();
+			}
+		});
+
+		int last = (Integer)pics[pics.length - 1].getTag();
+		int most = pics.length + Math.max(0, last - recordCount);			//records plus padding, at most
+		ByteBuffer buffer = ByteBuffer.allocate(most * RECORD_SIZE);
+		final int[] slots = new int[most];
+		int packed = 0;
+
+		for(Photograph pic : pics){
+			int slot = (Integer)pic.getTag();
+			String name = getResourceName(pic.getResourceId());
+			if(name == null) continue;
+
+			while(recordCount < slot){										//pad the gap with empty slots
+				buffer.putInt(-1);
+				buffer.position(buffer.position() + RECORD_SIZE - 4);		//the buffer starts out zeroed
+				slots[packed++] = recordCount++;
+			}
+			putRecord(buffer, pic, slot, name);
+			slots[packed++] = slot;
+			if(slot >= recordCount) recordCount = slot + 1;
+		}
+		if(packed == 0) return;
+
+		final byte[] records = buffer.array();
+		final int count = packed, slotsInFile = recordCount;
+		writer.execute(new Runnable(){
+			public void run(){
+				try{
+					openFile();
+					for(int start = 0, end; start < count; start = end){	//one write for every run of neighbouring slots
+						end = start + 1;
+						while(end < count && slots[end] == slots[end - 1] + 1) end++;
+						raf.seek(HEADER_SIZE + (long)slots[start] * RECORD_SIZE);
+						raf.write(records, start * RECORD_SIZE, (end - start) * RECORD_SIZE);
+					}
+					writeHeader(slotsInFile);
+				}catch(IOException e){
+					Log.e("BoardSnapshot", "could not write the snapshot", e);
+				}
+			}
+		});
+	}
+
+	/***************************************************************************
+	 * Empties the slot of a photo that has left the board
+	 ***************************************************************************/
+	public void remove(Photograph pic){
+
+		dirty.remove(pic);
+		final int slot = (Integer)pic.getTag();
+		if(slot >= recordCount) return;
+
+		writer.execute(new Runnable(){
+			public void run(){
+				try{
+					openFile();
+					raf.seek(HEADER_SIZE + (long)slot * RECORD_SIZE);
+					raf.writeInt(-1);
+				}catch(IOException e){
+					Log.e("BoardSnapshot", "could not clear a snapshot record", e);
+				}
+			}
+		});
+	}
+
+	/***************************************************************************
+	 * Throws away the current snapshot - used when the board is rebuilt from scratch
+	 ***************************************************************************/
+	public void clear(){
+		dirty.clear();
+		recordCount = 0;
+		writer.execute(new Runnable(){
+			public void run(){
+				closeFile();
+				file.delete();
+			}
+		});
+	}
+
+	/***************************************************************************
+	 * Writes any pending records and releases the file
+	 ***************************************************************************/
+	public void close(){
+		flush();
+		writer.execute(new Runnable(){
+			public void run(){
+				closeFile();
+			}
+		});
+	}
+
+	/***************************************************************************
+	 * Blocks until everything handed to the writer so far is in the file
+	 ***************************************************************************/
+	private void waitForWriter(){
+		try{
+			writer.submit(new Runnable(){ public void run(){ } }).get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}catch(ExecutionException e){ }
+	}
+
+	/* the file is only touched by the writer thread */
+	private void openFile() throws IOException{
+		if(raf == null) raf = new RandomAccessFile(file, "rw");
+	}
+
+	private void closeFile(){
+		if(raf != null){
+			try{ raf.close(); }catch(IOException e){ }
+			raf = null;
+		}
+	}
+
+	private void writeHeader(int slotsInFile) throws IOException{
+
+		raf.seek(0);
+		raf.writeInt(MAGIC);
+		raf.writeShort(VERSION);
+		raf.writeShort(RECORD_SIZE);
+		raf.writeInt(slotsInFile);
+		raf.writeInt(0);
+	}
+
+	/***************************************************************************
+	 * Packs a photo into the next record of the buffer
+	 ***************************************************************************/
+	private static void putRecord(ByteBuffer buffer, Photograph pic, int slot, String name){
+
+		String label = pic.getLabel();
+		int flags = (pic.isMarked? FLAG_MARKED : 0) | (pic.isLocked? FLAG_LOCKED : 0) | (pic.isPlayable? FLAG_PLAYABLE : 0);
+
+		buffer.putInt(slot);
+		buffer.putShort((short)name.length());
+		for(int c = 0; c < NAME_CHARS; c++) buffer.putChar(c < name.length()? name.charAt(c) : 0);
+		buffer.putInt(pic.getInitWidth());
+		buffer.putInt(pic.getInitHeight());
+		buffer.putFloat(pic.getTx());
+		buffer.putFloat(pic.getTy());
+		buffer.putFloat(pic.getAngle());
+		buffer.putFloat(pic.getSx());
+		buffer.putFloat(pic.getSy());
+		buffer.putInt(flags);
+		buffer.putLong(pic.zStamp);
+		buffer.putShort((short)Math.min(label.length(), LABEL_CHARS));
+		for(int c = 0; c < LABEL_CHARS; c++) buffer.putChar(c < label.length()? label.charAt(c) : 0);
+	}
+
+	/***************************************************************************
+	 * Times read() on a snapshot of a large board (the first step of a restore).
+	 * Arguments are name=value: photos (1000), runs (20)
+	 ***************************************************************************/
+	public static void main(String[] args) throws IOException{
+
+		int photos = 1000, runs = 20;
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if(eq < 0) continue;
+			String name = arg.substring(0, eq), value = arg.substring(eq + 1);
+			if(name.equals("photos")) photos = Integer.parseInt(value);
+			else if(name.equals("runs")) runs = Integer.parseInt(value);
+		}
+
+		File file = File.createTempFile("board", ".snapshot");
+		file.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeShort(RECORD_SIZE);
+		out.writeInt(photos);
+		out.writeInt(0);
+		for(int i = 0; i < photos; i++){
+			String name = "img" + (1 + i % 5), label = "photo " + i;
+			out.writeInt(i);
+			out.writeShort(name.length());
+			for(int c = 0; c < NAME_CHARS; c++) out.writeChar(c < name.length()? name.charAt(c) : 0);
+			out.writeInt(300);
+			out.writeInt(200);
+			for(int f = 0; f < 5; f++) out.writeFloat(i);
+			out.writeInt(0);
+			out.writeLong(photos - i);											//the stacking order is the reverse of the slots
+			out.writeShort(label.length());
+			for(int c = 0; c < LABEL_CHARS; c++) out.writeChar(c < label.length()? label.charAt(c) : 0);
+		}
+		out.close();
+
+		BoardSnapshot snapshot = new BoardSnapshot(file, null);
+		for(int r = 0; r < runs / 2; r++) snapshot.read();						//warm up
+		long start = System.nanoTime();
+		int read = 0;
+		for(int r = 0; r < runs; r++) read = snapshot.read().length;
+		System.out.println(read + " of " + photos + " records read in " + ((System.nanoTime() - start) / runs / 1000) + "us");
+	}
+}
@@ -0,0 +1,382 @@
+/*******************************************************************************
+ * Mirrors the photos of this board onto other boards, and theirs onto this one.
+ *
+ * Photos report their changes as they happen. The changes are not sent right away -
+ * they are coalesced for a frame, and then all the photos that changed are sent in
+ * one packet. For every photo the packet only holds the fields that changed since the
+ * photo was last sent, as the difference from the value that was sent then:
+ *  - the fields are quantised to integers first - positions to 1/8 of a pixel, angles
+ *    to 1/100 of a degree and scales to 1/1024
+ *  - the differences are zigzag coded and written as variable length integers, so
+ *    the small steps of a gesture take one or two bytes per field
+ *  - the mark and the lock ride along in the byte that says which fields follow
+ * A keyframe holds the full state of every photo. A board that joins asks the others
+ * for one, and starts out from what they send. Differences for a photo that this board
+ * has no full state of yet (from a keyframe, or the first record of a new photo - both
+ * carry the FULL bit) are dropped - there is nothing to add them to.
+ *
+ * Packets from the other boards are decoded on the thread the transport delivers them
+ * on. The updates are coalesced by photo (only the latest state of each matters) and
+ * applied on the UI thread in one pass, followed by a single redraw - so input is
+ * never held up by the network or by decoding. A photo that is being touched here is
+ * not moved by the other boards. Changes made by applying remote updates are not sent
+ * back out.
+ *
+ * The boards are expected to hold the same photos under the same tags (e.g. started
+ * from the same snapshot); updates for tags that are not on this board are dropped.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+
+public class BoardSync implements SyncTransport.Receiver {
+
+	final static int TX = 0, TY = 1, ANGLE = 2, SX = 3, SY = 4, FIELDS = 5;
+	final static float[] QUANTUM = {8, 8, 100, 1024, 1024};				//steps per unit of every field
+	final static int MARKED = 1 << 5, LOCKED = 1 << 6;						//bits of the field mask that carry the flags
+	final static int FULL = 1 << 7;											//bit of the field mask that marks a record holding the full state
+	final static int KEYFRAME = 1, WANT_KEYFRAME = 2;						//flags of a packet
+
+	public long frameInterval = 16;										//changes are coalesced for this long
+
+	private Board board;
+	private SyncTransport transport;
+	private int senderId = new Random().nextInt() & 0x7fffffff;
+	private int sequence;
+
+	//sending - runs on the UI thread
+	private HashSet<Photograph> dirty = new HashSet<Photograph>();
+	private HashMap<Integer,int[]> sent = new HashMap<Integer,int[]>();	//the quantised state each photo was last sent with
+	private Packet out = new Packet(), body = new Packet();
+	private boolean isFlushPosted;
+	private boolean isApplying;
+
+	//receiving - decoded on the transport's thread, applied on the UI thread
+	private HashMap<Integer,HashMap<Integer,int[]>> received = new HashMap<Integer,HashMap<Integer,int[]>>();	//by sender, then by tag
+	private HashMap<Integer,int[]> incoming = new HashMap<Integer,int[]>();	//the latest state of every photo waiting to be applied
+	private long oldestArrival;											//when the oldest waiting update arrived
+	private boolean isApplyPosted;
+
+	//statistics
+	private long bytesSent, bytesReceived, packetsSent, packetsReceived, updatesSent, updatesReceived, updatesApplied, updatesWithoutBase;
+	private long latencySum, latencyMax;
+	private int latencyCount;
+	private long startTime = SystemClock.uptimeMillis();
+
+	private Runnable flusher = new Runnable(){
+		public void run(){
+			isFlushPosted = false;
+			flush(false);
+		}
+	};
+
+	private Runnable applier = new Runnable(){
+		public void run(){
+			applyIncoming();
+		}
+	};
+
+	private Runnable publisher = new Runnable(){
+		public void run(){
+			publishAll();
+		}
+	};
+
+	/***************************************************************************
+	 * A growable packet buffer, written and read as variable length integers
+	 ***************************************************************************/
+	static class Packet {
+
+		byte[] data = new byte[256];
+		int length;
+		int position;														//where the next read starts
+
+		void writeVarint(int value){
+			ensure(5);
+			while((value & ~0x7f) != 0){
+				data[length++] = (byte)((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			data[length++] = (byte)value;
+		}
+
+		void writeBytes(Packet other){
+			ensure(other.length);
+			System.arraycopy(other.data, 0, data, length, other.length);
+			length += other.length;
+		}
+
+		private void ensure(int more){
+			if(length + more <= data.length) return;
+			byte[] bigger = new byte[Math.max(data.length * 2, length + more)];
+			System.arraycopy(data, 0, bigger, 0, length);
+			data = bigger;
+		}
+
+		void writeSigned(int value){
+			writeVarint((value << 1) ^ (value >> 31));						//zigzag - small negative numbers stay small
+		}
+
+		int readVarint(){
+			int value = 0;
+			for(int shift = 0; shift < 35; shift += 7){
+				byte b = data[position++];
+				value |= (b & 0x7f) << shift;
+				if(b >= 0) return value;
+			}
+			throw new IllegalArgumentException("malformed varint");
+		}
+
+		int readSigned(){
+			int value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+	}
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param photoBoard - the board to mirror
+	 * @param syncTransport - carries the packets to and from the other boards
+	 ***************************************************************************/
+	public BoardSync(Board photoBoard, SyncTransport syncTransport){
+		board = photoBoard;
+		transport = syncTransport;
+		transport.setReceiver(this);
+	}
+
+	/***************************************************************************
+	 * To be called whenever a photo changes. The change is sent with the other
+	 * changes of this frame
+	 ***************************************************************************/
+	public void onChanged(Photograph pic){
+
+		if(isApplying || !(pic.getTag() instanceof Integer)) return;		//don't echo what the other boards sent
+		dirty.add(pic);
+		if(!isFlushPosted){
+			isFlushPosted = true;
+			board.postDelayed(flusher, frameInterval);
+		}
+	}
+
+	/***************************************************************************
+	 * Asks the other boards for their full state. To be called once this board
+	 * holds its photos
+	 ***************************************************************************/
+	public void join(){
+		out.length = 0;
+		out.writeVarint(senderId);
+		out.writeVarint(sequence++);
+		out.writeVarint(WANT_KEYFRAME);
+		out.writeVarint(0);
+		transport.send(out.data, out.length);
+		bytesSent += out.length;
+		packetsSent++;
+	}
+
+	/***************************************************************************
+	 * Sends the full state of every photo on the board, so that a board that
+	 * has just joined starts out the same as this one
+	 ***************************************************************************/
+	public void publishAll(){
+		for(int i = 0; i < board.getChildCount(); i++){
+			View child = board.getChildAt(i);
+			if(child instanceof Photograph && child.getTag() instanceof Integer) dirty.add((Photograph)child);
+		}
+		flush(true);
+	}
+
+	/***************************************************************************
+	 * Encodes the photos that changed into one packet and sends it
+	 * @param isKeyframe - send every field in full instead of the differences
+	 ***************************************************************************/
+	private void flush(boolean isKeyframe){
+
+		if(dirty.isEmpty()) return;
+
+		body.length = 0;
+		int[] now = new int[FIELDS];
+		int count = 0;
+		for(Photograph pic : dirty){
+
+			int tag = (Integer)pic.getTag();
+			quantise(pic, now);
+			int[] last = sent.get(tag);
+			boolean isNew = (last == null);
+			if(isNew){
+				last = new int[FIELDS + 1];
+				sent.put(tag, last);
+			}
+
+			int mask = (pic.isMarked? MARKED : 0) | (pic.isLocked? LOCKED : 0) | ((isKeyframe || isNew)? FULL : 0);
+			for(int f = 0; f < FIELDS; f++){
+				if(isKeyframe || isNew || now[f] != last[f]) mask |= 1 << f;
+			}
+			if(!isKeyframe && !isNew && mask == last[FIELDS]) continue;		//nothing changed at this resolution
+
+			body.writeVarint(tag);
+			body.writeVarint(mask);
+			for(int f = 0; f < FIELDS; f++){
+				if((mask & (1 << f)) == 0) continue;
+				body.writeSigned(isKeyframe? now[f] : now[f] - last[f]);
+				last[f] = now[f];
+			}
+			last[FIELDS] = mask & (MARKED | LOCKED);
+			count++;
+		}
+		dirty.clear();
+		if(count == 0) return;
+
+		out.length = 0;
+		out.writeVarint(senderId);
+		out.writeVarint(sequence++);
+		out.writeVarint(isKeyframe? KEYFRAME : 0);
+		out.writeVarint(count);
+		out.writeBytes(body);
+		transport.send(out.data, out.length);
+		bytesSent += out.length;
+		packetsSent++;
+		updatesSent += count;
+	}
+
+	private static void quantise(Photograph pic, int[] values){
+		values[TX] = Math.round(pic.getTx() * QUANTUM[TX]);
+		values[TY] = Math.round(pic.getTy() * QUANTUM[TY]);
+		values[ANGLE] = Math.round(pic.getAngle() * QUANTUM[ANGLE]);
+		values[SX] = Math.round(pic.getSx() * QUANTUM[SX]);
+		values[SY] = Math.round(pic.getSy() * QUANTUM[SY]);
+	}
+
+	/***************************************************************************
+	 * Transport receiver - decodes a packet into the absolute state of every
+	 * photo in it, and queues the states to be applied on the UI thread. Called
+	 * on the transport's thread
+	 ***************************************************************************/
+	public void onPacket(byte[] packet, int length){
+
+		Packet in = new Packet();
+		in.data = packet;
+		in.length = length;
+
+		try{
+			int sender = in.readVarint();
+			in.readVarint();												//the sequence number (the transport keeps the order)
+			int flags = in.readVarint();
+			boolean isKeyframe = (flags & KEYFRAME) != 0;
+			int count = in.readVarint();
+			if((flags & WANT_KEYFRAME) != 0) board.post(publisher);			//a board has joined
+
+			HashMap<Integer,int[]> base = received.get(sender);				//only this thread touches the received states
+			if(base == null){
+				base = new HashMap<Integer,int[]>();
+				received.put(sender, base);
+			}
+
+			synchronized(incoming){
+				for(int i = 0; i < count; i++){
+					int tag = in.readVarint();
+					int mask = in.readVarint();
+					int[] state = base.get(tag);
+					boolean isFull = isKeyframe || (mask & FULL) != 0;			//every field, as an absolute value
+					if(state == null && isFull){								//differences can be added to it from here on
+						state = new int[FIELDS + 1];
+						base.put(tag, state);
+					}
+					for(int f = 0; f < FIELDS; f++){
+						if((mask & (1 << f)) == 0) continue;
+						int value = in.readSigned();
+						if(state != null) state[f] = isFull? value : state[f] + value;
+					}
+					if(state == null){											//joined halfway through - wait for the keyframe
+						updatesWithoutBase++;
+						continue;
+					}
+					state[FIELDS] = mask & (MARKED | LOCKED);
+
+					int[] latest = incoming.get(tag);
+					if(latest == null) incoming.put(tag, latest = new int[FIELDS + 1]);
+					System.arraycopy(state, 0, latest, 0, FIELDS + 1);
+				}
+
+				bytesReceived += length;
+				packetsReceived++;
+				updatesReceived += count;
+				if(!isApplyPosted && count > 0){
+					isApplyPosted = true;
+					oldestArrival = System.nanoTime();
+					board.post(applier);
+				}
+			}
+		}catch(RuntimeException e){
+			Log.e("BoardSync", "dropped a malformed packet", e);
+		}
+	}
+
+	/***************************************************************************
+	 * Applies the latest state of every photo that was updated by the other
+	 * boards, then redraws the board once
+	 ***************************************************************************/
+	private void applyIncoming(){
+
+		HashMap<Integer,int[]> updates;
+		long arrival;
+		synchronized(incoming){
+			updates = new HashMap<Integer,int[]>(incoming);
+			incoming.clear();
+			arrival = oldestArrival;
+			isApplyPosted = false;
+		}
+
+		isApplying = true;
+		for(Integer tag : updates.keySet()){
+
+			Photograph pic = board.findPhotograph(tag);
+			if(pic == null || pic.getCountPointsOfContact() > 0) continue;	//not here, or being moved here - the local gesture wins
+
+			int[] state = updates.get(tag);
+			pic.setTransform(state[TX] / QUANTUM[TX], state[TY] / QUANTUM[TY], state[ANGLE] / QUANTUM[ANGLE],
+					state[SX] / QUANTUM[SX], state[SY] / QUANTUM[SY], true);
+			boolean marked = (state[FIELDS] & MARKED) != 0, locked = (state[FIELDS] & LOCKED) != 0;
+			if(pic.isMarked != marked) board.setMarked(pic, marked);
+			if(pic.isLocked != locked) pic.setLock(locked);
+			updatesApplied++;
+		}
+		isApplying = false;
+		board.invalidate();
+
+		long latency = System.nanoTime() - arrival;
+		latencySum += latency;
+		latencyMax = Math.max(latencyMax, latency);
+		latencyCount++;
+	}
+
+	/***************************************************************************
+	 * @return - whether the photos are being changed by updates from the other
+	 * boards right now (such changes should not be recorded as local edits)
+	 ***************************************************************************/
+	public boolean isApplying(){
+		return isApplying;
+	}
+
+	public void close(){
+		board.removeCallbacks(flusher);
+		board.removeCallbacks(applier);
+		board.removeCallbacks(publisher);
+		transport.close();
+	}
+
+	public String toString(){
+		float seconds = Math.max(1, SystemClock.uptimeMillis() - startTime) / 1000.0f;
+		return "sent:" + packetsSent + " packets " + updatesSent + " updates " + bytesSent + "B (" + (int)(bytesSent / seconds) + "B/s, "
+				+ ((updatesSent == 0)? 0 : bytesSent / updatesSent) + "B/update)"
+				+ " received:" + packetsReceived + " packets " + updatesReceived + " updates " + bytesReceived + "B (" + (int)(bytesReceived / seconds) + "B/s)"
+				+ " applied:" + updatesApplied + " without base:" + updatesWithoutBase
+				+ " apply latency avg:" + ((latencyCount == 0)? 0 : latencySum / latencyCount / 1000) + "us max:" + (latencyMax / 1000) + "us";
+	}
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Pre-rendered sprites for the decorations of a photo - the checkbox of a marked
+ * photo, the lock of a locked one and the play icon of a movie tile.
+ *
+ * These used to be built from rounded rectangles, circles, lines and a path on every
+ * draw of every photo. Now each one is rendered once into a small bitmap per size
+ * class and simply drawn at draw time:
+ *  - the checkbox and the lock depend only on the border thickness of the photo
+ *    (0 to MAX_BORDER), so there is one sprite per thickness
+ *  - the play icon scales with the photo, so it is rendered at power-of-two radii
+ *    and drawn scaled from the nearest one that is not smaller
+ *
+ * All the sprites are shared by all the photos and are only used on the UI thread.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.graphics.Path;
+import android.graphics.RectF;
+
+public class DecorationCache {
+
+	final static int MIN_PLAY_RADIUS = 8;									//radius of the smallest play icon sprite
+	final static int MAX_PLAY_SHIFT = 6;									//...and the largest is this many doublings bigger
+	final static int PLAY_STROKE = 5;										//width of the ring of the play icon
+
+	private static Bitmap[] checkboxes = new Bitmap[Photograph.MAX_BORDER + 1];
+	private static Bitmap[] locks = new Bitmap[Photograph.MAX_BORDER + 1];
+	private static Bitmap[] playIcons = new Bitmap[MAX_PLAY_SHIFT + 1];
+
+	/***************************************************************************
+	 * The checkbox of a marked photo. Its top left corner goes at (left - 2 *
+	 * border, top - 2 * border) of the photo
+	 ***************************************************************************/
+	public static Bitmap getCheckbox(int border){
+
+		if(checkboxes[border] != null) return checkboxes[border];
+
+		int size = Photograph.MARKER_SIZE + border * 2;
+		Bitmap sprite = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+		Canvas c = new Canvas(sprite);
+		Paint painter = new Paint();
+
+		//The checkbox contains a green rounded rectangle with a white tick mark on it. The green box is outlined by a lighter green color
+		RectF markerRectOutline = new RectF(0, 0, size, size);
+		RectF markerRectFill = new RectF(1, 1, size - 1, size - 1);
+
+		painter.setColor(Color.argb(255,0,178,0));								//choose a lighter and brighter green for the outline
+		c.drawRoundRect(markerRectOutline,3,3,painter);
+		painter.setColor(Color.argb(250,0,128,0));								//choose a darker and less brighter green for the fill
+		c.drawRoundRect(markerRectFill,3,3,painter);
+
+		painter.setColor(Color.WHITE);											//the tick mark, slightly thicker than normal
+		painter.setStrokeWidth(3);
+		c.drawLine(5, size-10, 10, size-5, painter);								//short segment
+		c.drawLine(8, size-5, size-5, 5, painter);								//long segment
+
+		checkboxes[border] = sprite;
+		return sprite;
+	}
+
+	/***************************************************************************
+	 * The lock of a locked photo. Its top left corner goes at (right - border,
+	 * top - getLockOverhang(border)) of the photo - the shackle sticks out above
+	 * the top of the photo
+	 ***************************************************************************/
+	public static Bitmap getLock(int border){
+
+		if(locks[border] != null) return locks[border];
+
+		int width = Photograph.MARKER_SIZE + border;
+		int overhang = getLockOverhang(border);
+		Bitmap sprite = Bitmap.createBitmap(width, Photograph.MARKER_SIZE + overhang, Bitmap.Config.ARGB_8888);
+		Canvas c = new Canvas(sprite);
+		Paint painter = new Paint(Paint.ANTI_ALIAS_FLAG);
+		RectF rectLockBase = new RectF(0, overhang, width, overhang + Photograph.MARKER_SIZE);
+
+		//draw the U shaped arm of the lock
+		painter.setColor(Color.GRAY);
+		painter.setStyle(Style.STROKE);
+		painter.setStrokeWidth(3);
+		c.drawCircle(rectLockBase.centerX(), rectLockBase.top, rectLockBase.width()/3, painter);
+
+		//draw the base of the lock
+		painter.setColor(Color.argb(250,249,200,30));
+		painter.setStyle(Style.FILL);
+		c.drawRoundRect(rectLockBase, 3, 3, painter);
+
+		//draw the keyhole
+		float lockCenterX = rectLockBase.centerX();
+		float lockCenterY = rectLockBase.centerY();
+		painter.setColor(Color.BLACK);
+		painter.setStrokeWidth(1);
+		c.drawCircle(lockCenterX, lockCenterY, 2, painter);
+		c.drawLine(lockCenterX, lockCenterY, lockCenterX, lockCenterY + border*2, painter);
+
+		locks[border] = sprite;
+		return sprite;
+	}
+
+	/***************************************************************************
+	 * @return - how far the shackle of the lock sticks out above the photo
+	 ***************************************************************************/
+	public static int getLockOverhang(int border){
+		return (Photograph.MARKER_SIZE + border) / 3 + 2;
+	}
+
+	/***************************************************************************
+	 * A play icon sprite for an icon of this radius. The sprite is square, with
+	 * the centre of the icon in its centre, and may be larger than asked for -
+	 * scale it by radius / getPlayRadius(radius) when drawing it
+	 ***************************************************************************/
+	public static Bitmap getPlayIcon(float radius){
+
+		int shift = getPlayShift(radius);
+		if(playIcons[shift] != null) return playIcons[shift];
+
+		int r = MIN_PLAY_RADIUS << shift;
+		int half = r + PLAY_STROKE;
+		Bitmap sprite = Bitmap.createBitmap(half * 2, half * 2, Bitmap.Config.ARGB_8888);
+		Canvas c = new Canvas(sprite);
+		Paint painter = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+		painter.setColor(Color.WHITE);
+		painter.setAlpha(200);
+		painter.setStyle(Style.STROKE);
+		painter.setStrokeWidth(PLAY_STROKE);
+		c.drawCircle(half, half, r, painter);
+
+		painter.setStyle(Style.FILL);
+		Path triangle = new Path();												//the sizes are relative to the radius, as they were to the photo
+		triangle.moveTo(half - r/4.0f, half - r/2.0f);
+		triangle.lineTo(half - r/4.0f, half + r/2.0f);
+		triangle.lineTo(half + r/2.0f, half);
+		c.drawPath(triangle, painter);
+
+		playIcons[shift] = sprite;
+		return sprite;
+	}
+
+	/***************************************************************************
+	 * @return - the radius the play icon sprite for this radius was rendered at
+	 ***************************************************************************/
+	public static int getPlayRadius(float radius){
+		return MIN_PLAY_RADIUS << getPlayShift(radius);
+	}
+
+	private static int getPlayShift(float radius){
+		int shift = 0;
+		while(shift < MAX_PLAY_SHIFT && (MIN_PLAY_RADIUS << shift) < radius) shift++;
+		return shift;
+	}
+}
@@ -0,0 +1,359 @@
+/*******************************************************************************
+ * Snaps dragged photos to the edges and centres of the other photos, and shows
+ * guide lines where they line up.
+ *
+ * Every photo contributes three values on each axis - the left edge, the centre and
+ * the right edge of its image (axis aligned bounds, in world coordinates), and the
+ * same for top and bottom. The values of each axis are kept in a sorted array, with
+ * the photo each one belongs to in a parallel array. Looking for the edges near a
+ * value is a binary search followed by a short scan, so a move event costs O(log n)
+ * no matter how many photos are on the board.
+ *
+ * The arrays are kept up to date incrementally: photos that changed are only marked,
+ * and are taken out and put back in (one binary search and one array copy each)
+ * before the next lookup. If a lot of photos changed at once (an arrangement, an
+ * undo), the arrays are rebuilt and sorted in one go instead.
+ *
+ * A photo that is being dragged is taken out of the arrays until the drag ends, so it
+ * never snaps to itself. The drag keeps track of where the photo would be without
+ * snapping, so that the finger can pull it away from an edge again - the photo stays
+ * on the edge until the finger has moved further than the snap distance.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.graphics.PointF;
+import android.graphics.RectF;
+
+public class EdgeIndex {
+
+	final static int MAX_SCAN = 32;										//at most this many edges near a value are looked at
+	final static int LEFT = 0, CENTER_X = 1, RIGHT = 2, TOP = 3, CENTER_Y = 4, BOTTOM = 5;
+
+	public float snapDistance = 12;										//edges closer than this on screen snap together
+	public boolean isEnabled = true;
+
+	private Board board;
+	private Axis xAxis = new Axis(), yAxis = new Axis();
+	private HashMap<Photograph,float[]> indexed = new HashMap<Photograph,float[]>();	//the values each photo is in the arrays with
+	private HashSet<Photograph> dirty = new HashSet<Photograph>();
+	private HashMap<Photograph,float[]> dragging = new HashMap<Photograph,float[]>();	//how far each dragged photo is from where it would be without snapping
+
+	private RectF box = new RectF();
+	private float[] probes = new float[3];
+	private Photograph snapTarget;											//the photo the last snap() lined up with, and the value it lined up at
+	private float snapValue;
+	private float[] guides = new float[8];									//two lines, x1 y1 x2 y2 each
+	private int guideCount;
+	private int snaps, updates, rebuilds;									//statistics
+
+	/***************************************************************************
+	 * The values of one axis, sorted, and the photos they belong to
+	 ***************************************************************************/
+	static class Axis {
+
+		float[] values = new float[192];
+		Photograph[] owners = new Photograph[192];
+		int size;
+
+		/** @return - the index of the first value that is not smaller than v */
+		int lowerBound(float v){
+			int lo = 0, hi = size;
+			while(lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if(values[mid] < v) lo = mid + 1; else hi = mid;
+			}
+			return lo;
+		}
+
+		void insert(float v, Photograph owner){
+			ensure(size + 1);
+			int at = lowerBound(v);
+			System.arraycopy(values, at, values, at + 1, size - at);
+			System.arraycopy(owners, at, owners, at + 1, size - at);
+			values[at] = v;
+			owners[at] = owner;
+			size++;
+		}
+
+		void append(float v, Photograph owner){
+			ensure(size + 1);
+			values[size] = v;
+			owners[size++] = owner;
+		}
+
+		private void ensure(int capacity){
+			if(capacity <= values.length) return;
+			float[] biggerValues = new float[values.length * 2];
+			Photograph[] biggerOwners = new Photograph[values.length * 2];
+			System.arraycopy(values, 0, biggerValues, 0, size);
+			System.arraycopy(owners, 0, biggerOwners, 0, size);
+			values = biggerValues;
+			owners = biggerOwners;
+		}
+
+		void remove(float v, Photograph owner){
+			for(int at = lowerBound(v); at < size && values[at] == v; at++){
+				if(owners[at] != owner) continue;
+				System.arraycopy(values, at + 1, values, at, size - at - 1);
+				System.arraycopy(owners, at + 1, owners, at, size - at - 1);
+				owners[--size] = null;
+				return;
+			}
+		}
+
+		/***************************************************************************
+		 * Sorts all the values at once. The values are turned into integers that
+		 * sort the same way, and packed into longs with the index of their owner
+		 ***************************************************************************/
+		void sort(){
+			long[] keys = new long[size];
+			for(int i = 0; i < size; i++){
+				int bits = Float.floatToIntBits(values[i]);
+				bits ^= (bits >> 31) & 0x7fffffff;							//negative floats sort backwards as ints - flip them
+				keys[i] = ((long)bits << 32) | i;
+			}
+			Arrays.sort(keys);
+
+			Photograph[] sortedOwners = new Photograph[owners.length];
+			float[] sortedValues = new float[values.length];
+			for(int i = 0; i < size; i++){
+				int from = (int)keys[i];
+				sortedValues[i] = values[from];
+				sortedOwners[i] = owners[from];
+			}
+			values = sortedValues;
+			owners = sortedOwners;
+		}
+
+		void clear(){
+			Arrays.fill(owners, 0, size, null);
+			size = 0;
+		}
+	}
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param photoBoard - the board whose photos are indexed
+	 ***************************************************************************/
+	public EdgeIndex(Board photoBoard){
+		board = photoBoard;
+	}
+
+	/***************************************************************************
+	 * To be called when a photo is added to the board or changes. Its edges are
+	 * updated before the next lookup
+	 ***************************************************************************/
+	public void onChanged(Photograph pic){
+		if(!dragging.containsKey(pic)) dirty.add(pic);
+	}
+
+	/***************************************************************************
+	 * To be called when a photo leaves the board
+	 ***************************************************************************/
+	public void remove(Photograph pic){
+		dirty.remove(pic);
+		dragging.remove(pic);
+		removeEntries(pic);
+	}
+
+	/***************************************************************************
+	 * Works out how far to move a dragged photo, snapping it to nearby edges
+	 *
+	 * @param pic - the photo being dragged
+	 * @param dx - how far the finger moved the photo along x (world coordinates)
+	 * @param dy - how far the finger moved the photo along y
+	 * @param out - receives how far to translate the photo
+	 ***************************************************************************/
+	public void snapDrag(Photograph pic, float dx, float dy, PointF out){
+
+		float[] drift = dragging.get(pic);
+		if(drift == null){													//the drag starts - the photo doesn't snap to itself
+			drift = new float[2];
+			dragging.put(pic, drift);
+			dirty.remove(pic);
+			removeEntries(pic);
+		}
+
+		guideCount = 0;
+		float rawX = dx + drift[0], rawY = dy + drift[1];					//the move that would put it where the finger says
+		if(!isEnabled){
+			out.set(rawX, rawY);
+			drift[0] = drift[1] = 0;
+			return;
+		}
+
+		update();
+		pic.updateGeometry();
+		pic.getImageBounds(box);
+		box.offset(rawX, rawY);
+
+		float threshold = snapDistance / board.getZoom();
+		float cx = snap(xAxis, box.left, box.centerX(), box.right, threshold);
+		Photograph xTarget = snapTarget;
+		float xValue = snapValue;
+		float cy = snap(yAxis, box.top, box.centerY(), box.bottom, threshold);
+
+		box.offset(cx, cy);													//the guides run along the photo where it ends up
+		if(xTarget != null) addGuide(xTarget, xValue, true);
+		if(snapTarget != null) addGuide(snapTarget, snapValue, false);
+
+		out.set(rawX + cx, rawY + cy);
+		drift[0] = -cx;
+		drift[1] = -cy;
+		if(cx != 0 || cy != 0) snaps++;
+	}
+
+	/** @return - whether snapDrag() has been called for the photo since its last endDrag() */
+	public boolean isDragging(Photograph pic){
+		return dragging.containsKey(pic);
+	}
+
+	/***************************************************************************
+	 * To be called when the last pointer leaves a dragged photo
+	 ***************************************************************************/
+	public void endDrag(Photograph pic){
+		if(dragging.remove(pic) == null) return;
+		dirty.add(pic);
+		if(guideCount > 0){
+			guideCount = 0;
+			board.invalidate();
+		}
+	}
+
+	/***************************************************************************
+	 * Finds the edge of another photo closest to one of the three values of the
+	 * dragged photo on an axis. The photo and the value are left in snapTarget
+	 * and snapValue (snapTarget is null if there is none)
+	 *
+	 * @return - how far to move the dragged photo to line up with it (0 if there
+	 * is no edge within the threshold)
+	 ***************************************************************************/
+	private float snap(Axis axis, float low, float mid, float high, float threshold){
+
+		float best = threshold;
+		float correction = 0;
+		Photograph target = null;
+		float targetValue = 0;
+		probes[0] = low; probes[1] = mid; probes[2] = high;
+
+		for(int p = 0; p < 3; p++){
+			float v = probes[p];
+			int start = axis.lowerBound(v - threshold);
+			int end = Math.min(axis.size, start + MAX_SCAN);
+			for(int i = start; i < end && axis.values[i] <= v + threshold; i++){
+				Photograph owner = axis.owners[i];
+				if(owner.isCulled) continue;									//only photos that can be seen
+				float d = Math.abs(axis.values[i] - v);
+				if(d < best){
+					best = d;
+					correction = axis.values[i] - v;
+					target = owner;
+					targetValue = axis.values[i];
+				}
+			}
+		}
+		snapTarget = target;
+		snapValue = targetValue;
+		return correction;
+	}
+
+	/***************************************************************************
+	 * Adds a guide along the line the dragged photo (box, already snapped) shares
+	 * with another photo, from one end of the pair to the other
+	 ***************************************************************************/
+	private void addGuide(Photograph target, float value, boolean isX){
+
+		float[] other = indexed.get(target);
+		int g = guideCount * 4;
+		if(isX){
+			guides[g] = guides[g + 2] = value;
+			guides[g + 1] = Math.min(other[TOP], box.top);
+			guides[g + 3] = Math.max(other[BOTTOM], box.bottom);
+		}
+		else{
+			guides[g + 1] = guides[g + 3] = value;
+			guides[g] = Math.min(other[LEFT], box.left);
+			guides[g + 2] = Math.max(other[RIGHT], box.right);
+		}
+		guideCount++;
+	}
+
+	/***************************************************************************
+	 * Puts the photos that changed back into the arrays - one by one if there
+	 * are a few of them, by rebuilding the arrays if there are many
+	 ***************************************************************************/
+	private void update(){
+
+		if(dirty.isEmpty()) return;
+
+		if(dirty.size() > 64 && dirty.size() * 8 > indexed.size()){
+			rebuild();
+			return;
+		}
+		for(Photograph pic : dirty){
+			removeEntries(pic);
+			if(pic.getParent() == board) addEntries(pic, false);
+			updates++;
+		}
+		dirty.clear();
+	}
+
+	private void rebuild(){
+
+		xAxis.clear();
+		yAxis.clear();
+		indexed.clear();
+		dirty.clear();
+		for(Photograph pic = board.getBottomPhoto(); pic != null; pic = pic.zAbove){
+			if(!dragging.containsKey(pic)) addEntries(pic, true);
+		}
+		xAxis.sort();
+		yAxis.sort();
+		rebuilds++;
+	}
+
+	/***************************************************************************
+	 * Adds the six values of a photo to the arrays
+	 * @param isBulk - append them unsorted (the arrays are sorted afterwards)
+	 ***************************************************************************/
+	private void addEntries(Photograph pic, boolean isBulk){
+
+		pic.updateGeometry();
+		pic.getImageBounds(box);
+		float[] v = new float[]{box.left, box.centerX(), box.right, box.top, box.centerY(), box.bottom};
+		indexed.put(pic, v);
+
+		for(int i = 0; i < 6; i++){
+			Axis axis = (i < 3)? xAxis : yAxis;
+			if(isBulk) axis.append(v[i], pic);
+			else axis.insert(v[i], pic);
+		}
+	}
+
+	private void removeEntries(Photograph pic){
+		float[] v = indexed.remove(pic);
+		if(v == null) return;
+		for(int i = 0; i < 6; i++) ((i < 3)? xAxis : yAxis).remove(v[i], pic);
+	}
+
+	/***************************************************************************
+	 * @return - the guide lines of the last snap, as x1 y1 x2 y2 in world
+	 * coordinates (see getGuideCount())
+	 ***************************************************************************/
+	public float[] getGuides(){
+		return guides;
+	}
+
+	public int getGuideCount(){
+		return guideCount;
+	}
+
+	public String toString(){
+		return "indexed:" + indexed.size() + " snaps:" + snaps + " updates:" + updates + " rebuilds:" + rebuilds;
+	}
+}
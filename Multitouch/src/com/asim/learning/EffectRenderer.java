@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Makes the filtered copies of the bitmaps of photos that have colour effects.
+ *
+ * Drawing a bitmap through a ColorMatrixColorFilter costs a pass over all of its
+ * pixels on every draw, which adds up quickly while a photo is dragged in high
+ * quality. Instead, a photo with effects keeps a filtered copy of each bitmap it
+ * draws - one per quality level (the source and the scrubbed source). The copies are
+ * drawn once on a worker thread into bitmaps from the pool and handed back to the
+ * photo on the UI thread.
+ *
+ * A copy is made the first time the photo wants to draw that level, and it is good
+ * until the effects of the photo change (the stack has a version number for that) or
+ * the bitmap it was made from goes away (compressed, evicted). A copy that is out of
+ * date by the time it is finished goes straight back into the pool. The photo keeps
+ * the bitmap a copy is made from out of the pool until the copy is finished (see
+ * Photograph.pin()), so the worker never reads a bitmap that has been reused.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.util.Log;
+import android.view.View;
+
+public class EffectRenderer {
+
+	private BitmapPool pool;												//the copies are taken from here and go back here
+	private View board;
+	private ExecutorService worker = Executors.newSingleThreadExecutor();
+	private Paint filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);		//only used on the worker
+	private int rendered, discarded;										//statistics
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param bitmapPool - pool the filtered copies are allocated from
+	 * @param photoBoard - the board the photos are on (results are posted to it)
+	 ***************************************************************************/
+	public EffectRenderer(BitmapPool bitmapPool, View photoBoard){
+		pool = bitmapPool;
+		board = photoBoard;
+	}
+
+	public BitmapPool getPool(){
+		return pool;
+	}
+
+	/***************************************************************************
+	 * Queues the filtered copy of a bitmap of a photo
+	 *
+	 * @param pic - the photo
+	 * @param level - Photograph.LEVEL_HIGH or LEVEL_SCRUBBED
+	 * @param from - the bitmap of that level
+	 * @param effects - the effects of the photo, as they are now
+	 ***************************************************************************/
+	public void render(final Photograph pic, final int level, final Bitmap from, EffectStack effects){
+
+		final ColorFilter filter = effects.getFilter();
+		final int version = effects.getVersion();
+		pic.pin(from);
+
+		worker.execute(new Runnable(){
+			public void run(){
+
+				Bitmap result = null;
+				try{
+					Bitmap.Config config = (from.getConfig() != null)? from.getConfig() : Bitmap.Config.ARGB_8888;
+					result = pool.get(from.getWidth(), from.getHeight(), config);
+					result.eraseColor(Color.TRANSPARENT);						//pooled bitmaps hold whatever was in them
+
+					filterPaint.setColorFilter(filter);
+					new Canvas(result).drawBitmap(from, 0, 0, filterPaint);
+				}catch(RuntimeException e){
+					Log.e("EffectRenderer", "could not render a filtered copy", e);
+					pool.put(result);
+					result = null;
+				}
+				final Bitmap copy = result;
+
+				board.post(new Runnable(){
+					public void run(){
+						if(copy != null && pic.setFiltered(level, copy, from, version, pool)) rendered++;
+						else{
+							pool.put(copy);
+							discarded++;
+						}
+						pic.unpin(from, pool);
+					}
+				});
+			}
+		});
+	}
+
+	public String toString(){
+		return "rendered:" + rendered + " discarded:" + discarded;
+	}
+}
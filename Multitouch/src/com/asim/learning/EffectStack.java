@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * The colour effects of one photo - grayscale, sepia, brightness and contrast.
+ *
+ * The effects are applied in that order and folded into a single ColorMatrix, so a
+ * stack of any number of them is one colour filter. The stack keeps a version
+ * number that goes up every time a parameter changes. The filtered copies of the
+ * bitmaps of a photo remember the version they were made with (see EffectRenderer),
+ * so they are only thrown away when the effects really change.
+ *
+ * A stack belongs to one photo and is only used on the UI thread. The filter it
+ * hands out is never changed afterwards, so the renderer can use it on its worker.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import android.graphics.ColorFilter;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+
+public class EffectStack {
+
+	//what the effects menu does to the stack of every marked photo
+	public final static int GRAYSCALE = 0, SEPIA = 1, BRIGHTER = 2, DARKER = 3, MORE_CONTRAST = 4, LESS_CONTRAST = 5, NONE = 6;
+	final static String[] ADJUSTMENT_NAMES = {"Grayscale", "Sepia", "Brighter", "Darker", "More contrast", "Less contrast", "Remove effects"};
+
+	final static float BRIGHTNESS_STEP = 0.1f;								//brightness goes from -1 (black) to 1 (white)
+	final static float CONTRAST_STEP = 1.25f;								//contrast is a factor, from 1/4 to 4
+	final static float MAX_CONTRAST = 4;
+
+	private float saturation = 1;											//0 is grayscale
+	private float sepia = 0;												//0 to 1
+	private float brightness = 0;
+	private float contrast = 1;
+	private int version;
+
+	private ColorFilter filter;
+	private int filterVersion = -1;
+
+	public void setSaturation(float value){
+		if(value == saturation) return;
+		saturation = value;
+		version++;
+	}
+
+	public void setSepia(float amount){
+		if(amount == sepia) return;
+		sepia = amount;
+		version++;
+	}
+
+	public void setBrightness(float value){
+		value = Math.max(-1, Math.min(1, Math.round(value * 100) / 100f));	//steps of 0.1 add up to round numbers
+		if(value == brightness) return;
+		brightness = value;
+		version++;
+	}
+
+	public void setContrast(float factor){
+		factor = Math.max(1 / MAX_CONTRAST, Math.min(MAX_CONTRAST, factor));
+		if(factor == contrast) return;
+		contrast = factor;
+		version++;
+	}
+
+	public float getSaturation(){
+		return saturation;
+	}
+
+	public float getSepia(){
+		return sepia;
+	}
+
+	public float getBrightness(){
+		return brightness;
+	}
+
+	public float getContrast(){
+		return contrast;
+	}
+
+	public int getVersion(){
+		return version;
+	}
+
+	/***************************************************************************
+	 * @return - true if the stack leaves the colours as they are
+	 ***************************************************************************/
+	public boolean isIdentity(){
+		return saturation == 1 && sepia == 0 && brightness == 0 && contrast == 1;
+	}
+
+	/***************************************************************************
+	 * Makes one of the adjustments of the effects menu - grayscale and sepia are
+	 * switched on and off, the others go one step further
+	 * @param adjustment - GRAYSCALE to NONE
+	 ***************************************************************************/
+	public void adjust(int adjustment){
+
+		switch(adjustment){
+		case GRAYSCALE:		setSaturation((saturation == 0)? 1 : 0); break;
+		case SEPIA:			setSepia((sepia > 0)? 0 : 1); break;
+		case BRIGHTER:		setBrightness(brightness + BRIGHTNESS_STEP); break;
+		case DARKER:		setBrightness(brightness - BRIGHTNESS_STEP); break;
+		case MORE_CONTRAST:	setContrast(contrast * CONTRAST_STEP); break;
+		case LESS_CONTRAST:	setContrast(contrast / CONTRAST_STEP); break;
+		default:
+			setSaturation(1);
+			setSepia(0);
+			setBrightness(0);
+			setContrast(1);
+		}
+	}
+
+	/***************************************************************************
+	 * @return - a colour filter that applies all the effects at once. It is made
+	 * again only after the stack has changed
+	 ***************************************************************************/
+	public ColorFilter getFilter(){
+
+		if(filter != null && filterVersion == version) return filter;
+
+		ColorMatrix matrix = new ColorMatrix();
+		matrix.setSaturation(saturation);
+
+		if(sepia > 0){															//blended with the identity by the amount of sepia
+			float k = 1 - sepia;
+			matrix.postConcat(new ColorMatrix(new float[]{
+					k + sepia * 0.393f, sepia * 0.769f, sepia * 0.189f, 0, 0,
+					sepia * 0.349f, k + sepia * 0.686f, sepia * 0.168f, 0, 0,
+					sepia * 0.272f, sepia * 0.534f, k + sepia * 0.131f, 0, 0,
+					0, 0, 0, 1, 0}));
+		}
+
+		float offset = 128 * (1 - contrast) + 255 * brightness;					//contrast about mid grey, then the brightness shift
+		if(contrast != 1 || brightness != 0){
+			matrix.postConcat(new ColorMatrix(new float[]{
+					contrast, 0, 0, 0, offset,
+					0, contrast, 0, 0, offset,
+					0, 0, contrast, 0, offset,
+					0, 0, 0, 1, 0}));
+		}
+
+		filter = new ColorMatrixColorFilter(matrix);
+		filterVersion = version;
+		return filter;
+	}
+
+	public String toString(){
+		return "saturation:" + saturation + " sepia:" + sepia + " brightness:" + brightness + " contrast:" + contrast;
+	}
+}
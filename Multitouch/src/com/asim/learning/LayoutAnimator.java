@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Moves photos onto the places computed by the LayoutEngine.
+ *
+ * Starting a view animation on every photo would mean thousands of animations, each
+ * invalidating its own photo on every frame. Instead this animator keeps the start
+ * and end transforms of all the photos in two flat arrays, and on every frame it
+ * interpolates all of them in one pass and redraws the board once. The photos are
+ * drawn from their scrubbed bitmaps while they move, and the snapshot is only told
+ * about them once they have arrived.
+ *
+ * Angles take the shorter way round, and the movement eases out.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import android.os.SystemClock;
+
+public class LayoutAnimator {
+
+	final static int VALUES = 5;											//values per photo: tx, ty, angle, sx, sy
+
+	public long duration = 700;
+	public long frameInterval = 16;
+
+	private Board board;
+	private Photograph[] pics = new Photograph[0];
+	private int count;
+	private float[] from = new float[0], to = new float[0];
+	private long startTime;
+	private boolean isRunning;
+	private OnArrangedListener listener;
+	private int arranged, frames;											//statistics
+
+	private Runnable frame = new Runnable(){
+		public void run(){
+			step();
+		}
+	};
+
+	/***************************************************************************
+	 * Interface definition for a callback to be invoked when the photos have
+	 * arrived at their new places
+	 ***************************************************************************/
+	public interface OnArrangedListener{
+		void onArranged(int count);
+	}
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param photoBoard - the board the photos are on
+	 ***************************************************************************/
+	public LayoutAnimator(Board photoBoard){
+		board = photoBoard;
+	}
+
+	public void setOnArrangedListener(OnArrangedListener arrangedListener){
+		listener = arrangedListener;
+	}
+
+	/***************************************************************************
+	 * Starts moving the photos (finishing any arrangement that is still moving)
+	 *
+	 * @param photos - the photos to move
+	 * @param photoCount - the number of photos
+	 * @param layout - four values per photo, as computed by LayoutEngine.layout()
+	 ***************************************************************************/
+	public void start(Photograph[] photos, int photoCount, float[] layout){
+
+		if(isRunning) finish();
+
+		if(from.length < photoCount * VALUES){
+			from = new float[photoCount * VALUES];
+			to = new float[photoCount * VALUES];
+		}
+		pics = photos;
+		count = photoCount;
+
+		for(int i = 0; i < count; i++){
+
+			Photograph pic = pics[i];
+			int o = i * VALUES, l = i * 4;
+			float angle = pic.getAngle();
+
+			from[o] = pic.getTx();
+			from[o + 1] = pic.getTy();
+			from[o + 2] = angle;
+			from[o + 3] = pic.getSx();
+			from[o + 4] = pic.getSy();
+
+			to[o] = layout[l] - pic.getWidth() / 2 - pic.getInitWidth() / 2.0f;	//the center of a photo is offset by half the board (see getCenter())
+			to[o + 1] = layout[l + 1] - pic.getHeight() / 2 - pic.getInitHeight() / 2.0f;
+			to[o + 2] = layout[l + 2] + 360 * Math.round((angle - layout[l + 2]) / 360);	//the turn of the same angle that is closest
+			//no smaller than a pinch could make it, or it could not be pinched back up (it overflows a tiny cell instead)
+			float scale = Math.max(layout[l + 3], Photograph.MIN_SCALE_VAL / Math.min(from[o + 3], from[o + 4]));
+			to[o + 3] = from[o + 3] * scale;
+			to[o + 4] = from[o + 4] * scale;
+
+			pic.isHighQuality = false;
+		}
+
+		startTime = SystemClock.uptimeMillis();
+		isRunning = true;
+		board.post(frame);
+	}
+
+	/***************************************************************************
+	 * Puts every photo where it is at this point of the animation, then redraws
+	 * the board once
+	 ***************************************************************************/
+	private void step(){
+
+		if(!isRunning) return;
+
+		float t = Math.min(1, (SystemClock.uptimeMillis() - startTime) / (float)duration);
+		if(t >= 1){
+			finish();
+			return;
+		}
+
+		float e = 1 - (1 - t) * (1 - t) * (1 - t);							//ease out
+		for(int i = 0; i < count; i++){
+			int o = i * VALUES;
+			pics[i].setTransform(from[o] + (to[o] - from[o]) * e, from[o + 1] + (to[o + 1] - from[o + 1]) * e,
+					from[o + 2] + (to[o + 2] - from[o + 2]) * e, from[o + 3] + (to[o + 3] - from[o + 3]) * e,
+					from[o + 4] + (to[o + 4] - from[o + 4]) * e, false);
+		}
+		frames++;
+		board.invalidate();
+		board.postDelayed(frame, frameInterval);
+	}
+
+	/***************************************************************************
+	 * Puts every photo at its end place and lets the listener know
+	 ***************************************************************************/
+	public void finish(){
+
+		if(!isRunning) return;
+		isRunning = false;
+		board.removeCallbacks(frame);
+
+		for(int i = 0; i < count; i++){
+			int o = i * VALUES;
+			pics[i].setTransform(to[o], to[o + 1], to[o + 2], to[o + 3], to[o + 4], true);
+			pics[i] = null;
+		}
+		board.invalidate();
+		arranged += count;
+
+		int done = count;
+		count = 0;
+		if(listener != null) listener.onArranged(done);
+	}
+
+	public boolean isRunning(){
+		return isRunning;
+	}
+
+	public String toString(){
+		return "arranged:" + arranged + " frames:" + frames;
+	}
+}
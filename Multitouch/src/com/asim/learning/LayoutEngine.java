@@ -0,0 +1,424 @@
+/*******************************************************************************
+ * Computes auto-arrange layouts for the photos on the board.
+ *
+ * A layout gets the drawn size of every photo (in world coordinates) and gives back
+ * where the centre of each photo goes, its angle, and a multiplier for its scale.
+ * There are four modes:
+ *  - GRID    - equal cells in rows, every photo scaled to fit its cell
+ *  - MASONRY - columns of equal width, every photo scaled to the column width and
+ *              dropped into the shortest column
+ *  - SCATTER - photos at random places and angles, but never overlapping: every
+ *              photo gets a cell of a jittered grid, and is moved around only so
+ *              far that its bounding circle stays within the cell
+ *  - PILES   - piles of pileSize photos (in the order they are given) in the cells of
+ *              a grid, every photo scaled to fit the cell and dropped onto its pile a
+ *              little off centre and turned a little. The caller gathers the photos
+ *              of each pile into a PhotoPile once they are there
+ * The layouts are shaped to the aspect ratio of the board, so that all the photos
+ * can be seen at once by zooming out.
+ *
+ * Boards can hold tens of thousands of photos, so the work is split over a pool of
+ * worker threads. Each pass over the photos is cut into chunks of at least minChunk
+ * photos, the chunks are queued on the pool and the calling thread works on them as
+ * well until all are done. (ForkJoinPool would do the same with work stealing, but
+ * it needs API 21.) Sums over the photos are added up per chunk and then over the chunks. Only
+ * the packing of the masonry columns is sequential - it is a single cheap pass.
+ *
+ * Random numbers are derived from the seed and the index of the photo, so a layout
+ * comes out the same whatever the number of threads. This class does not depend on
+ * Android, main() times the layouts on a desktop JVM.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+public class LayoutEngine {
+
+	public final static int GRID = 0, MASONRY = 1, SCATTER = 2, PILES = 3;
+	final static String[] MODE_NAMES = {"grid", "masonry", "scatter", "piles"};
+	final static int MAX_CHUNKS = 64;
+
+	public float gap = 20;													//space between photos (world coordinates)
+	public float maxScatterAngle = 30;										//scattered photos are turned by up to this many degrees either way
+	public int pileSize = 25;												//photos per pile
+	public float maxPileAngle = 8;											//piled photos are turned by up to this many degrees either way
+	public float pileJitter = 0.05f;										//and moved off the centre of the pile by up to this much of their size
+	public int minChunk = 512;												//passes over fewer photos than this are not split
+	public long seed = 1;
+
+	private ExecutorService workers;
+	private int threads;
+
+	/***************************************************************************
+	 * A pass over a range of photos
+	 ***************************************************************************/
+	interface RangeTask{
+		void run(int from, int to, int chunk);
+	}
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param threadCount - number of threads working on a layout, including the
+	 * thread that asks for it
+	 ***************************************************************************/
+	public LayoutEngine(int threadCount){
+
+		threads = Math.max(1, threadCount);
+		if(threads > 1){
+			workers = Executors.newFixedThreadPool(threads - 1, new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread worker = new Thread(r, "LayoutEngine");
+					worker.setDaemon(true);
+					return worker;
+				}
+			});
+		}
+	}
+
+	public void shutdown(){
+		if(workers != null) workers.shutdown();
+	}
+
+	/***************************************************************************
+	 * @return - the mode with this name (GRID if the name is unknown)
+	 ***************************************************************************/
+	public static int parseMode(String name){
+		for(int i = 0; i < MODE_NAMES.length; i++){
+			if(MODE_NAMES[i].equalsIgnoreCase(name)) return i;
+		}
+		return GRID;
+	}
+
+	/***************************************************************************
+	 * Lays out a number of photos
+	 *
+	 * @param mode - GRID, MASONRY, SCATTER or PILES
+	 * @param widths - drawn width of every photo
+	 * @param heights - drawn height of every photo
+	 * @param count - number of photos
+	 * @param originX - x coordinate of the top left corner of the layout
+	 * @param originY - y coordinate of the top left corner of the layout
+	 * @param aspect - width / height the layout should have
+	 * @param out - receives four values per photo: the x and y coordinates of
+	 * its centre, its angle and the multiplier for its scale
+	 ***************************************************************************/
+	public void layout(int mode, float[] widths, float[] heights, int count, float originX, float originY, float aspect, float[] out){
+
+		if(count == 0) return;
+		if(mode == MASONRY) layoutMasonry(widths, heights, count, originX, originY, aspect, out);
+		else if(mode == SCATTER) layoutScatter(widths, heights, count, originX, originY, aspect, out);
+		else if(mode == PILES) layoutPiles(widths, heights, count, originX, originY, aspect, out);
+		else layoutGrid(widths, heights, count, originX, originY, aspect, out);
+	}
+
+	/***************************************************************************
+	 * Equal cells of the average size of the photos, in rows
+	 ***************************************************************************/
+	private void layoutGrid(final float[] widths, final float[] heights, int count, final float originX, final float originY,
+			float aspect, final float[] out){
+
+		float[] mean = meanSize(widths, heights, count);
+		final float cellW = mean[0], cellH = mean[1];
+		final float stepX = cellW + gap, stepY = cellH + gap;
+		final int cols = Math.max(1, (int)Math.ceil(Math.sqrt(count * aspect * stepY / stepX)));
+
+		forEach(count, new RangeTask(){
+			public void run(int from, int to, int chunk){
+				for(int i = from; i < to; i++){
+					int o = i * 4;
+					out[o] = originX + (i % cols) * stepX + cellW / 2;
+					out[o + 1] = originY + (i / cols) * stepY + cellH / 2;
+					out[o + 2] = 0;
+					out[o + 3] = Math.min(cellW / widths[i], cellH / heights[i]);
+				}
+			}
+		});
+	}
+
+	/***************************************************************************
+	 * Columns as wide as the average photo. The heights at the column width are
+	 * measured in parallel, the photos are then dropped into the shortest column
+	 * one after the other
+	 ***************************************************************************/
+	private void layoutMasonry(final float[] widths, final float[] heights, int count, float originX, float originY,
+			float aspect, final float[] out){
+
+		final float colW = meanSize(widths, heights, count)[0];
+		final float[] partial = new float[chunks(count)];
+
+		forEach(count, new RangeTask(){
+			public void run(int from, int to, int chunk){
+				float sum = 0;
+				for(int i = from; i < to; i++){
+					float scale = colW / widths[i];
+					out[i * 4 + 1] = heights[i] * scale;						//the height at the column width, for now
+					out[i * 4 + 3] = scale;
+					sum += heights[i] * scale + gap;
+				}
+				partial[chunk] = sum;
+			}
+		});
+
+		float total = 0;
+		for(int c = 0; c < partial.length; c++) total += partial[c];
+		int cols = Math.max(1, (int)Math.round(Math.sqrt(total * aspect / (colW + gap))));	//cols * width = aspect * total / cols
+
+		//drop every photo into the shortest column - the columns are kept in a heap ordered by their height
+		float[] colHeight = new float[cols];
+		int[] heap = new int[cols];
+		for(int c = 0; c < cols; c++) heap[c] = c;
+
+		for(int i = 0; i < count; i++){
+			int col = heap[0];
+			float h = out[i * 4 + 1];
+			out[i * 4] = originX + col * (colW + gap) + colW / 2;
+			out[i * 4 + 1] = originY + colHeight[col] + h / 2;
+			out[i * 4 + 2] = 0;
+			colHeight[col] += h + gap;
+			siftDown(heap, colHeight, cols);
+		}
+	}
+
+	private static void siftDown(int[] heap, float[] key, int size){
+		int i = 0;
+		while(true){
+			int smallest = i, l = i * 2 + 1, r = l + 1;
+			if(l < size && key[heap[l]] < key[heap[smallest]]) smallest = l;
+			if(r < size && key[heap[r]] < key[heap[smallest]]) smallest = r;
+			if(smallest == i) return;
+			int t = heap[i]; heap[i] = heap[smallest]; heap[smallest] = t;
+			i = smallest;
+		}
+	}
+
+	/***************************************************************************
+	 * One cell of a grid per photo, large enough for the bounding circle of the
+	 * photo at any angle. Photos much larger than the average are scaled down so
+	 * that a few big ones don't spread all the others apart
+	 ***************************************************************************/
+	private void layoutScatter(final float[] widths, final float[] heights, int count, final float originX, final float originY,
+			float aspect, final float[] out){
+
+		float[] mean = meanSize(widths, heights, count);
+		final float maxRadius = (float)Math.hypot(mean[0], mean[1]) * 0.75f;	//half the diagonal of the average photo, and a half again
+		final float cell = maxRadius * 2 + gap;
+		final int cols = Math.max(1, (int)Math.ceil(Math.sqrt(count * aspect)));
+
+		forEach(count, new RangeTask(){
+			public void run(int from, int to, int chunk){
+				for(int i = from; i < to; i++){
+					long bits = mix(seed + i);
+					float radius = (float)Math.hypot(widths[i], heights[i]) / 2;
+					float scale = Math.min(1, maxRadius / radius);
+					float slack = maxRadius - radius * scale;					//how far the photo can move and still stay in its cell
+
+					int o = i * 4;
+					out[o] = originX + (i % cols) * cell + cell / 2 + slack * unit(bits);
+					out[o + 1] = originY + (i / cols) * cell + cell / 2 + slack * unit(bits >>> 21);
+					out[o + 2] = maxScatterAngle * unit(bits >>> 42);
+					out[o + 3] = scale;
+				}
+			}
+		});
+	}
+
+	/***************************************************************************
+	 * One pile per cell of a grid. The cells are as large as the bounding circle
+	 * of the average photo, so the turned photos of neighbouring piles don't touch
+	 ***************************************************************************/
+	private void layoutPiles(final float[] widths, final float[] heights, int count, final float originX, final float originY,
+			float aspect, final float[] out){
+
+		float[] mean = meanSize(widths, heights, count);
+		final float fitW = mean[0], fitH = mean[1];
+		final float cell = (float)Math.hypot(fitW, fitH) * (1 + pileJitter * 2) + gap;
+		final int size = Math.max(1, pileSize);
+		int piles = (count + size - 1) / size;
+		final int cols = Math.max(1, (int)Math.ceil(Math.sqrt(piles * aspect)));
+
+		forEach(count, new RangeTask(){
+			public void run(int from, int to, int chunk){
+				for(int i = from; i < to; i++){
+					int pile = i / size;
+					float scale = Math.min(fitW / widths[i], fitH / heights[i]);
+					drop(i, originX + (pile % cols) * cell + cell / 2, originY + (pile / cols) * cell + cell / 2,
+							widths[i], heights[i], scale, out);
+				}
+			}
+		});
+	}
+
+	/***************************************************************************
+	 * Lays out a single pile - every photo keeps its size and is dropped onto
+	 * the centre, the way the piles of the PILES mode are made
+	 *
+	 * @param cx - x coordinate of the centre of the pile
+	 * @param cy - y coordinate of the centre of the pile
+	 * @param out - receives four values per photo, as for layout()
+	 ***************************************************************************/
+	public void stack(final float[] widths, final float[] heights, int count, final float cx, final float cy, final float[] out){
+
+		forEach(count, new RangeTask(){
+			public void run(int from, int to, int chunk){
+				for(int i = from; i < to; i++) drop(i, cx, cy, widths[i], heights[i], 1, out);
+			}
+		});
+	}
+
+	/** puts a photo onto a pile, a little off centre and turned a little */
+	private void drop(int i, float cx, float cy, float width, float height, float scale, float[] out){
+		long bits = mix(seed + i);
+		int o = i * 4;
+		out[o] = cx + width * scale * pileJitter * unit(bits);
+		out[o + 1] = cy + height * scale * pileJitter * unit(bits >>> 21);
+		out[o + 2] = maxPileAngle * unit(bits >>> 42);
+		out[o + 3] = scale;
+	}
+
+	/** a well mixed 64 bit hash (the finaliser of MurmurHash3) */
+	private static long mix(long x){
+		x ^= x >>> 33;
+		x *= 0xff51afd7ed558ccdL;
+		x ^= x >>> 33;
+		x *= 0xc4ceb9fe1a85ec53L;
+		x ^= x >>> 33;
+		return x;
+	}
+
+	/** the lowest 21 bits as a number from -1 to 1 */
+	private static float unit(long bits){
+		return (bits & 0x1fffff) / (float)0x100000 - 1;
+	}
+
+	/***************************************************************************
+	 * @return - the average width and height of the photos
+	 ***************************************************************************/
+	private float[] meanSize(final float[] widths, final float[] heights, int count){
+
+		final float[] partial = new float[chunks(count) * 2];
+		forEach(count, new RangeTask(){
+			public void run(int from, int to, int chunk){
+				float w = 0, h = 0;
+				for(int i = from; i < to; i++){
+					w += widths[i];
+					h += heights[i];
+				}
+				partial[chunk * 2] = w;
+				partial[chunk * 2 + 1] = h;
+			}
+		});
+
+		float w = 0, h = 0;
+		for(int c = 0; c < partial.length; c += 2){
+			w += partial[c];
+			h += partial[c + 1];
+		}
+		return new float[]{w / count, h / count};
+	}
+
+	/***************************************************************************
+	 * @return - the number of chunks a pass over this many photos is cut into
+	 ***************************************************************************/
+	private int chunks(int count){
+		return Math.max(1, Math.min(MAX_CHUNKS, count / minChunk));			//not by the number of threads, so that the sums come out the same
+	}
+
+	/***************************************************************************
+	 * Runs a pass over all the photos. The chunks are queued on the workers and
+	 * the calling thread takes part in the work, then waits for the rest
+	 ***************************************************************************/
+	private void forEach(final int count, final RangeTask task){
+
+		final int chunks = chunks(count);
+		if(workers == null || chunks == 1){
+			for(int c = 0; c < chunks; c++) task.run(start(c, chunks, count), start(c + 1, chunks, count), c);
+			return;
+		}
+
+		ArrayList<Future<?>> queued = new ArrayList<Future<?>>(chunks - 1);
+		for(int c = 1; c < chunks; c++){
+			final int chunk = c;
+			queued.add(workers.submit(new Runnable(){
+				public void run(){
+					task.run(start(chunk, chunks, count), start(chunk + 1, chunks, count), chunk);
+				}
+			}));
+		}
+		task.run(0, start(1, chunks, count), 0);
+
+		try{
+			for(int c = 0; c < queued.size(); c++) queued.get(c).get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}catch(ExecutionException e){
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static int start(int chunk, int chunks, int count){
+		return (int)((long)count * chunk / chunks);
+	}
+
+	public String toString(){
+		return "threads:" + threads + " gap:" + gap + " min chunk:" + minChunk;
+	}
+
+	/***************************************************************************
+	 * Times the layouts of a large board on one thread and on all the cores.
+	 * Arguments are name=value: photos (10000), runs (20), threads (all cores)
+	 ***************************************************************************/
+	public static void main(String[] args){
+
+		int photos = 10000, runs = 20, cores = Runtime.getRuntime().availableProcessors();
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if(eq < 0) continue;
+			String name = arg.substring(0, eq), value = arg.substring(eq + 1);
+			if(name.equals("photos")) photos = Integer.parseInt(value);
+			else if(name.equals("runs")) runs = Integer.parseInt(value);
+			else if(name.equals("threads")) cores = Integer.parseInt(value);
+		}
+
+		Random rnd = new Random(1);
+		float[] widths = new float[photos], heights = new float[photos];
+		for(int i = 0; i < photos; i++){										//the sizes new photos get on the board
+			widths[i] = 150 + rnd.nextInt(300);
+			heights[i] = widths[i] * (0.5f + rnd.nextFloat());
+		}
+		float[] out = new float[photos * 4];
+
+		LayoutEngine single = new LayoutEngine(1), parallel = new LayoutEngine(cores);
+		System.out.println(photos + " photos, " + runs + " runs, 1 thread vs " + cores + " threads");
+
+		for(int mode = GRID; mode <= PILES; mode++){
+			long[] times = new long[2];
+			long[] checksums = new long[2];
+			LayoutEngine[] engines = {single, parallel};
+
+			for(int e = 0; e < 2; e++){
+				for(int r = 0; r < runs / 2; r++) engines[e].layout(mode, widths, heights, photos, 0, 0, 16 / 9.0f, out);	//warm up
+
+				long start = System.nanoTime();
+				for(int r = 0; r < runs; r++) engines[e].layout(mode, widths, heights, photos, 0, 0, 16 / 9.0f, out);
+				times[e] = (System.nanoTime() - start) / runs;
+
+				long checksum = 0;
+				for(int i = 0; i < out.length; i++) checksum = checksum * 31 + Float.floatToIntBits(out[i]);
+				checksums[e] = checksum;
+			}
+
+			System.out.println(MODE_NAMES[mode] + ": " + (times[0] / 1000) + "us vs " + (times[1] / 1000) + "us"
+					+ " (x" + ((float)times[0] / times[1]) + ")" + ((checksums[0] == checksums[1])? "" : " LAYOUTS DIFFER"));
+		}
+
+		single.shutdown();
+		parallel.shutdown();
+	}
+}
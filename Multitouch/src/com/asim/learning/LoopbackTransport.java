@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * A SyncTransport between boards in the same process - a stand-in for a network
+ * transport, for testing and for two boards shown side by side.
+ *
+ * Boards join a channel by name and every packet sent on the channel is delivered to
+ * all the other boards on it, in order, on a delivery thread of the channel (the way
+ * a network transport would deliver on its own thread). A delay can be set to mimic
+ * the latency of a network.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class LoopbackTransport implements SyncTransport {
+
+	private static HashMap<String,Channel> channels = new HashMap<String,Channel>();
+
+	private Channel channel;
+	private volatile Receiver receiver;
+
+	/** the boards on one channel, and the thread packets are delivered on */
+	static class Channel {
+		final ArrayList<LoopbackTransport> members = new ArrayList<LoopbackTransport>();
+		final ExecutorService delivery = Executors.newSingleThreadExecutor();
+		volatile long delayMillis;
+	}
+
+	/***************************************************************************
+	 * Joins a channel, creating it if needed
+	 * @param name - boards that join the same name mirror each other
+	 ***************************************************************************/
+	public static LoopbackTransport join(String name){
+
+		synchronized(channels){
+			Channel channel = channels.get(name);
+			if(channel == null){
+				channel = new Channel();
+				channels.put(name, channel);
+			}
+			LoopbackTransport transport = new LoopbackTransport(channel);
+			synchronized(channel.members){
+				channel.members.add(transport);
+			}
+			return transport;
+		}
+	}
+
+	private LoopbackTransport(Channel joined){
+		channel = joined;
+	}
+
+	/***************************************************************************
+	 * Makes every packet on the channel arrive this much later
+	 ***************************************************************************/
+	public void setDelay(long millis){
+		channel.delayMillis = millis;
+	}
+
+	public void setReceiver(Receiver packetReceiver){
+		receiver = packetReceiver;
+	}
+
+	public void send(byte[] packet, int length){
+
+		final byte[] copy = new byte[length];
+		System.arraycopy(packet, 0, copy, 0, length);
+
+		final ArrayList<LoopbackTransport> others = new ArrayList<LoopbackTransport>();
+		synchronized(channel.members){
+			for(int i = 0; i < channel.members.size(); i++){
+				if(channel.members.get(i) != this) others.add(channel.members.get(i));
+			}
+		}
+		if(others.isEmpty()) return;
+
+		final long due = System.currentTimeMillis() + channel.delayMillis;
+		channel.delivery.execute(new Runnable(){
+			public void run(){
+				long wait = due - System.currentTimeMillis();
+				if(wait > 0){
+					try{
+						Thread.sleep(wait);
+					}catch(InterruptedException e){
+						return;
+					}
+				}
+				for(int i = 0; i < others.size(); i++){
+					Receiver r = others.get(i).receiver;
+					if(r != null) r.onPacket(copy, copy.length);
+				}
+			}
+		});
+	}
+
+	public void close(){
+		receiver = null;
+		synchronized(channel.members){
+			channel.members.remove(this);
+		}
+	}
+}
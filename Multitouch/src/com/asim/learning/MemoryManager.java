@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Keeps the pixels held by the board within a memory budget.
+ *
+ * Every photo holds a scrubbed bitmap, a high quality source (or a compressed copy of
+ * it) and maybe some full resolution tiles. The manager adds up the bytes held by
+ * every photo, the composites of the piles, the bitmap pool and the tile cache,
+ * compares the total with its budget and keeps a pressure level:
+ *
+ *  - NORMAL   - nothing is done beyond the usual idle compression
+ *  - COMPRESS - the sources of all photos that are not being drawn from them are
+ *               compressed right away, without waiting for them to be idle
+ *  - CAP      - photos that are not touched are capped to low quality (so their
+ *               sources can be compressed as well), the pool is emptied and the
+ *               tiles and the composites of the piles are thrown away
+ *  - EVICT    - photos that are off screen give up all their pixels, and are
+ *               decoded again from their resource when they come back into view.
+ *               The thumbnail atlas is thrown away as well
+ *
+ * The level goes up one step at a time while the total is over budget, and it jumps
+ * straight to the level the platform asks for when memory is trimmed or runs low.
+ * Once the total has been comfortably under budget for a while, the level comes down
+ * again one step at a time - evicted photos reload, and new photos can be added again.
+ *
+ * After every check a report of the budget is handed to the listener, if any.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.view.View;
+
+public class MemoryManager {
+
+	public final static int NORMAL = 0, COMPRESS = 1, CAP = 2, EVICT = 3;
+	final static String[] LEVEL_NAMES = {"normal", "compress", "cap", "evict"};
+
+	//levels of onTrimMemory() (ComponentCallbacks2, API 14)
+	final static int TRIM_MEMORY_RUNNING_LOW = 10, TRIM_MEMORY_RUNNING_CRITICAL = 15, TRIM_MEMORY_UI_HIDDEN = 20,
+			TRIM_MEMORY_MODERATE = 60, TRIM_MEMORY_COMPLETE = 80;
+
+	public long budgetBytes;												//the pixels of the board should fit in this many bytes
+	public float relaxThreshold = 0.6f;									//the level comes down when the total is under this part of the budget...
+	public long relaxDelay = 10000;										//...and nothing has raised it for this long
+	public long checkInterval = 2000;										//how often the board is checked
+
+	private MultiTouchActivity activity;									//decodes the pixels of evicted photos
+	private Board board;
+	private BitmapPool pool;
+	private PixelPolicy pixelPolicy;
+	private TiledImage.TileCache tileCache;
+	private ThumbnailAtlas atlas;
+	private ExecutorService loader = Executors.newSingleThreadExecutor();
+	private OnMemoryReportListener listener;
+
+	private int level = NORMAL;
+	private long lastRaised;												//when the level last went up
+	private boolean isChecking;
+
+	//the state found by the last check
+	private long photoBytes, pileBytes, pooledBytes, tileBytes, atlasBytes;
+	private int photos, capped, evicted, reloads, evictions, signals;
+
+	private Runnable checker = new Runnable(){
+		public void run(){
+			check();
+			if(isChecking) board.postDelayed(this, checkInterval);
+		}
+	};
+
+	/***************************************************************************
+	 * Interface definition for a callback to be invoked after every check of
+	 * the memory used by the board
+	 ***************************************************************************/
+	public interface OnMemoryReportListener{
+		void onMemoryReport(MemoryManager manager);
+	}
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param owner - the activity, which decodes the pixels of evicted photos again
+	 * @param photoBoard - the board whose photos are managed
+	 * @param bitmapPool - the pool, emptied when memory gets tight
+	 * @param policy - compresses the sources of photos
+	 * @param tiles - the tile cache, cleared when memory gets tight
+	 * @param budget - the number of bytes the pixels of the board should fit in
+	 ***************************************************************************/
+	public MemoryManager(MultiTouchActivity owner, Board photoBoard, BitmapPool bitmapPool, PixelPolicy policy,
+			TiledImage.TileCache tiles, long budget){
+		activity = owner;
+		board = photoBoard;
+		pool = bitmapPool;
+		pixelPolicy = policy;
+		tileCache = tiles;
+		budgetBytes = budget;
+	}
+
+	/***************************************************************************
+	 * The pages of the thumbnail atlas are counted too, and thrown away when
+	 * memory gets tight
+	 ***************************************************************************/
+	public void setAtlas(ThumbnailAtlas thumbnailAtlas){
+		atlas = thumbnailAtlas;
+	}
+
+	public void setOnMemoryReportListener(OnMemoryReportListener reportListener){
+		listener = reportListener;
+	}
+
+	/***************************************************************************
+	 * Starts checking the board periodically
+	 ***************************************************************************/
+	public void startChecking(){
+		if(isChecking) return;
+		isChecking = true;
+		board.post(checker);
+	}
+
+	public void stopChecking(){
+		isChecking = false;
+		board.removeCallbacks(checker);
+	}
+
+	/***************************************************************************
+	 * To be called from onTrimMemory() of the activity
+	 * @param trimLevel - the level passed in by the platform
+	 ***************************************************************************/
+	public void onTrimMemory(int trimLevel){
+
+		if(trimLevel >= TRIM_MEMORY_COMPLETE || trimLevel == TRIM_MEMORY_RUNNING_CRITICAL) raiseTo(EVICT);
+		else if(trimLevel >= TRIM_MEMORY_MODERATE || trimLevel == TRIM_MEMORY_RUNNING_LOW) raiseTo(CAP);
+		else raiseTo(COMPRESS);												//the UI is hidden or the app is in the background
+		signals++;
+		check();
+	}
+
+	/***************************************************************************
+	 * To be called from onLowMemory() of the activity
+	 ***************************************************************************/
+	public void onLowMemory(){
+		raiseTo(EVICT);
+		signals++;
+		check();
+	}
+
+	private void raiseTo(int newLevel){
+		if(newLevel > level) level = newLevel;
+		lastRaised = SystemClock.uptimeMillis();
+	}
+
+	/***************************************************************************
+	 * Adds up the bytes held by the board, moves the level if needed and applies
+	 * it to the photos
+	 ***************************************************************************/
+	public void check(){
+
+		measure();
+		long now = SystemClock.uptimeMillis();
+		long total = getUsedBytes();
+
+		if(total > budgetBytes && level < EVICT){
+			raiseTo(level + 1);
+		}
+		else if(level > NORMAL && total < budgetBytes * relaxThreshold && now - lastRaised > relaxDelay){
+			level--;
+			lastRaised = now;												//give every step down some time before the next one
+		}
+
+		apply();
+		if(listener != null) listener.onMemoryReport(this);
+	}
+
+	/***************************************************************************
+	 * Adds up the bytes held by every photo, the piles, the pool and the tiles
+	 ***************************************************************************/
+	private void measure(){
+
+		photoBytes = 0;
+		pileBytes = 0;
+		photos = 0; capped = 0; evicted = 0;
+
+		for(int i = 0; i < board.getChildCount(); i++){
+
+			View child = board.getChildAt(i);
+			if(!(child instanceof Photograph)) continue;
+
+			Photograph pic = (Photograph)child;
+			photoBytes += pic.getResidentBytes();
+			photos++;
+			if(pic.isQualityCapped) capped++;
+			if(pic.isEvicted) evicted++;
+		}
+
+		ArrayList<PhotoPile> piles = board.getPiles();
+		for(int i = 0; i < piles.size(); i++) pileBytes += piles.get(i).getCompositeBytes();
+
+		pooledBytes = pool.getPooledBytes();
+		tileBytes = tileCache.getBytes();
+		atlasBytes = (atlas == null)? 0 : atlas.getBytes();
+	}
+
+	/***************************************************************************
+	 * Does what the current level asks for. Photos that are being touched are
+	 * never changed
+	 ***************************************************************************/
+	private void apply(){
+
+		if(level >= CAP){
+			ArrayList<PhotoPile> piles = board.getPiles();
+			for(int i = 0; i < piles.size(); i++) piles.get(i).release();	//before the pool is emptied, so they are freed too
+			pool.trimTo(0);
+			tileCache.clear();
+		}
+		if(level >= EVICT && atlas != null) atlas.clear();
+
+		for(int i = 0; i < board.getChildCount(); i++){
+
+			View child = board.getChildAt(i);
+			if(!(child instanceof Photograph)) continue;
+
+			Photograph pic = (Photograph)child;
+			if(pic.getCountPointsOfContact() > 0) continue;
+
+			if(pic.isEvicted){
+				if(level < EVICT || !pic.isCulled) reload(pic);				//back in view, or memory has freed up
+				continue;
+			}
+
+			if(level >= EVICT && pic.isCulled && pic.getResourceId() != 0){	//only photos that can be decoded again are evicted
+				pic.evictPixels(pool);
+				evictions++;
+			}
+			else if(level >= CAP && !pic.isQualityCapped){
+				pic.isQualityCapped = true;
+				pic.refresh();
+			}
+		}
+
+		if(level >= COMPRESS) pixelPolicy.compressNow();
+	}
+
+	/***************************************************************************
+	 * Decodes the pixels of an evicted photo again on the loader thread
+	 ***************************************************************************/
+	private void reload(final Photograph pic){
+
+		if(pic.isReloading) return;
+		pic.isReloading = true;
+		reloads++;
+
+		final int id = pic.getResourceId();
+		loader.execute(new Runnable(){
+			public void run(){
+				final Bitmap[] bitmaps = activity.decodePhotoBitmaps(id);
+				board.post(new Runnable(){
+					public void run(){
+						pic.isReloading = false;
+						if(bitmaps == null) return;							//the resource is gone - the photo stays empty
+						if(pic.isEvicted && pic.getParent() == board){
+							pic.setContent(bitmaps[0], bitmaps[1]);
+						}
+						else{
+							pool.put(bitmaps[0]);
+							pool.put(bitmaps[1]);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/***************************************************************************
+	 * @return - whether there is room for one more photo - about as much as an
+	 * average photo on the board takes
+	 ***************************************************************************/
+	public boolean canAddPhoto(){
+
+		if(level >= EVICT) return false;
+		long average = (photos == 0)? 0 : photoBytes / photos;
+		return getUsedBytes() + average <= budgetBytes;
+	}
+
+	public int getLevel(){
+		return level;
+	}
+
+	/***************************************************************************
+	 * @return - the bytes held by the board, as found by the last check
+	 ***************************************************************************/
+	public long getUsedBytes(){
+		return photoBytes + pileBytes + pooledBytes + tileBytes + atlasBytes;
+	}
+
+	/***************************************************************************
+	 * @return - a one line summary of the budget, short enough for a title bar
+	 ***************************************************************************/
+	public String getSummary(){
+		return (getUsedBytes() / 1024) + "KB of " + (budgetBytes / 1024) + "KB - " + LEVEL_NAMES[level];
+	}
+
+	public String toString(){
+		return "level:" + LEVEL_NAMES[level] + " used:" + (getUsedBytes() / 1024) + "KB of " + (budgetBytes / 1024) + "KB"
+				+ " (photos:" + (photoBytes / 1024) + "KB piles:" + (pileBytes / 1024) + "KB pool:" + (pooledBytes / 1024) + "KB tiles:" + (tileBytes / 1024) + "KB atlas:" + (atlasBytes / 1024) + "KB)"
+				+ " photos:" + photos + " capped:" + capped + " evicted:" + evicted
+				+ " evictions:" + evictions + " reloads:" + reloads + " signals:" + signals;
+	}
+}
@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Plays the movie tiles on the board.
+ *
+ * A movie tile is a photo (isPlayable) whose pixels come from a video clip. Decoding
+ * a video frame is expensive, and the board may hold many clips, so all of them share
+ * this one player:
+ *
+ *  - a ticker on the UI thread advances every clip at a fixed frame rate and hands
+ *    the decoding of its next frame to a small pool of background threads
+ *  - a clip is only decoded while its photo can be seen - clips that are culled (off
+ *    screen or hidden under opaque photos) or drawn very small are paused, and so
+ *    are all clips while the activity is in the background
+ *  - frames are kept at the size the photo is drawn at on screen (not the size of
+ *    the video), into two buffers per clip that are reused from frame to frame - one
+ *    is drawn while the next frame is decoded into the other
+ *  - the decode threads run at background priority, and a clip never has more than
+ *    one frame in flight, so a board full of clips cannot build up a queue of work
+ *    that starves the UI thread
+ *
+ * Clips use MediaMetadataRetriever (API 10), which hands out frames at the size of
+ * the video - each frame is scaled into the buffer as it is drawn into it. Frames
+ * are played with OPTION_CLOSEST (the frame at the position, decoded from the sync
+ * frame before it); only the poster frame is taken from the nearest sync frame.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.MediaMetadataRetriever;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+public class MoviePlayer {
+
+	final static int SIZE_STEP = 64;										//frame sizes are rounded up to this, so small zoom changes keep the buffers
+
+	public long frameInterval = 66;										//time between two frames of a clip (about 15 fps)
+	public int minWidth = 48;												//clips drawn narrower than this on screen are paused
+	public Bitmap.Config frameConfig = Bitmap.Config.RGB_565;
+
+	private Board board;
+	private BitmapPool pool;
+	private ExecutorService decoders;
+	private ArrayList<Clip> clips = new ArrayList<Clip>();
+	private boolean isPlaying;
+	private int decoded, skipped, paused;									//statistics
+
+	private Runnable ticker = new Runnable(){
+		public void run(){
+			tick();
+			if(isPlaying) board.postDelayed(this, frameInterval);
+		}
+	};
+
+	/***************************************************************************
+	 * A video clip shown on a photo, with its decode buffers
+	 ***************************************************************************/
+	public static class Clip {
+
+		final String path;
+		final Photograph pic;
+		private MediaMetadataRetriever retriever;
+		private long durationMillis;
+		private int videoWidth, videoHeight;
+
+		private long position;												//the playback position in milliseconds
+		private long lastTick;
+		private Bitmap front, back;											//front is drawn, back is decoded into
+		private volatile boolean isDecoding;
+		private boolean isReleased;
+
+		private Canvas scaler = new Canvas();								//used only by the thread decoding this clip
+		private Paint filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		private Rect scaleDst = new Rect();
+
+		Clip(String moviePath, Photograph photo, MediaMetadataRetriever opened){
+			path = moviePath;
+			pic = photo;
+			retriever = opened;
+			durationMillis = parse(opened.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION), 0);
+		}
+	}
+
+	/***************************************************************************
+	 * Opens a video and grabs its first frame. This blocks, so it must be called
+	 * on a background thread
+	 *
+	 * @param path - path of the video file
+	 * @return - the opened retriever and its first frame, or null if the video can't be read
+	 ***************************************************************************/
+	public static Object[] open(String path){
+
+		MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+		try{
+			retriever.setDataSource(path);
+			Bitmap poster = retriever.getFrameAtTime(0, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+			if(poster != null) return new Object[]{retriever, poster};
+		}catch(RuntimeException e){
+			Log.e("MoviePlayer", "could not open " + path, e);
+		}
+		retriever.release();
+		return null;
+	}
+
+	private static long parse(String value, long fallback){
+		try{
+			return (value == null)? fallback : Long.parseLong(value);
+		}catch(NumberFormatException e){
+			return fallback;
+		}
+	}
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param photoBoard - the board the movie tiles are on
+	 * @param bitmapPool - the frame buffers are taken from and returned to this pool
+	 ***************************************************************************/
+	public MoviePlayer(Board photoBoard, BitmapPool bitmapPool){
+
+		board = photoBoard;
+		pool = bitmapPool;
+
+		int threads = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));	//leave a core to the UI thread
+		decoders = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			public Thread newThread(final Runnable r){
+				return new Thread(new Runnable(){
+					public void run(){
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "MoviePlayer");
+			}
+		});
+	}
+
+	/***************************************************************************
+	 * Starts playing a clip on a photo
+	 *
+	 * @param pic - the movie tile
+	 * @param path - path of the video file
+	 * @param retriever - the retriever returned by open()
+	 * @param posterWidth - width of the first frame (the size of the video)
+	 * @param posterHeight - height of the first frame
+	 ***************************************************************************/
+	public void add(Photograph pic, String path, MediaMetadataRetriever retriever, int posterWidth, int posterHeight){
+
+		Clip clip = new Clip(path, pic, retriever);
+		clip.videoWidth = posterWidth;
+		clip.videoHeight = posterHeight;
+		clip.lastTick = SystemClock.uptimeMillis();
+		clips.add(clip);
+	}
+
+	/***************************************************************************
+	 * Stops the clip of a photo that is taken off the board and frees its buffers
+	 ***************************************************************************/
+	public void remove(Photograph pic){
+
+		for(int i = 0; i < clips.size(); i++){
+			final Clip clip = clips.get(i);
+			if(clip.pic != pic) continue;
+
+			clips.remove(i);
+			clip.isReleased = true;
+			pic.setMovieFrame(null);
+			if(!clip.isDecoding) release(clip);								//else it is released once its last frame is done
+			return;
+		}
+	}
+
+	/***************************************************************************
+	 * Closes the retriever of a clip on a decode thread (it may take a while)
+	 * and returns its buffers to the pool. No frame may be in flight for it
+	 ***************************************************************************/
+	private void release(final Clip clip){
+		final Bitmap front = clip.front, back = clip.back;
+		clip.front = null;
+		clip.back = null;
+		decoders.execute(new Runnable(){
+			public void run(){
+				clip.retriever.release();
+				pool.put(front);
+				pool.put(back);
+			}
+		});
+	}
+
+	public void start(){
+		if(isPlaying) return;
+		isPlaying = true;
+		long now = SystemClock.uptimeMillis();
+		for(int i = 0; i < clips.size(); i++) clips.get(i).lastTick = now;	//the time spent in the background is not played
+		board.post(ticker);
+	}
+
+	public void stop(){
+		isPlaying = false;
+		board.removeCallbacks(ticker);
+	}
+
+	/***************************************************************************
+	 * Advances every visible clip and queues the decoding of its next frame
+	 ***************************************************************************/
+	private void tick(){
+
+		long now = SystemClock.uptimeMillis();
+		float zoom = board.getZoom();
+
+		for(int i = 0; i < clips.size(); i++){
+
+			Clip clip = clips.get(i);
+			long elapsed = now - clip.lastTick;
+			clip.lastTick = now;
+
+			int drawnWidth = (int)(clip.pic.getInitWidth() * clip.pic.getSx() * zoom);
+			if(clip.pic.isCulled || drawnWidth < minWidth){					//can't be seen - pause it where it is
+				paused++;
+				continue;
+			}
+
+			clip.position += elapsed;
+			if(clip.durationMillis > 0) clip.position %= clip.durationMillis;	//short clips loop
+
+			if(clip.isDecoding){											//the last frame is not done yet - drop this one
+				skipped++;
+				continue;
+			}
+
+			//decode at the size the clip is drawn at, but never larger than the video
+			int width = Math.min(clip.videoWidth, (drawnWidth + SIZE_STEP - 1) / SIZE_STEP * SIZE_STEP);
+			int height = Math.max(1, width * clip.videoHeight / Math.max(1, clip.videoWidth));
+			decode(clip, clip.position, width, height);
+		}
+	}
+
+	/***************************************************************************
+	 * Decodes one frame of a clip into its back buffer on a decode thread, then
+	 * swaps the buffers on the UI thread
+	 ***************************************************************************/
+	private void decode(final Clip clip, final long positionMillis, final int width, final int height){
+
+		clip.isDecoding = true;
+		final Bitmap buffer = clip.back;
+		clip.back = null;
+
+		decoders.execute(new Runnable(){
+			public void run(){
+
+				Bitmap target = buffer;
+				if(target == null || target.getWidth() != width || target.getHeight() != height){	//the clip is drawn at another size now
+					pool.put(target);
+					target = pool.get(width, height, frameConfig);
+				}
+
+				final Bitmap frame = target;
+				final boolean isDecoded = grabFrame(clip, positionMillis * 1000, target);
+				board.post(new Runnable(){
+					public void run(){
+						clip.isDecoding = false;
+						if(clip.isReleased){								//removed while this frame was decoded
+							clip.back = frame;
+							release(clip);
+							return;
+						}
+						if(!isDecoded){
+							clip.back = frame;
+							return;
+						}
+						clip.back = clip.front;								//swap - the old frame is decoded into next time
+						clip.front = frame;
+						clip.pic.setMovieFrame(frame);
+						decoded++;
+					}
+				});
+			}
+		});
+	}
+
+	/***************************************************************************
+	 * Draws the frame at a position of a clip into a buffer, scaled to fit
+	 * @return - false if there is no frame at this position
+	 ***************************************************************************/
+	private boolean grabFrame(Clip clip, long positionMicros, Bitmap target){
+
+		Bitmap frame;
+		try{
+			frame = clip.retriever.getFrameAtTime(positionMicros, MediaMetadataRetriever.OPTION_CLOSEST);	//the exact frame - the nearest sync frame can be seconds away, which would stutter
+		}catch(RuntimeException e){
+			Log.e("MoviePlayer", "could not decode " + clip.path, e);
+			return false;
+		}
+		if(frame == null) return false;
+
+		clip.scaler.setBitmap(target);
+		clip.scaleDst.set(0, 0, target.getWidth(), target.getHeight());
+		clip.scaler.drawBitmap(frame, null, clip.scaleDst, clip.filterPaint);
+		frame.recycle();													//made by the retriever for this call only
+		return true;
+	}
+
+	public String toString(){
+		return "clips:" + clips.size() + " decoded:" + decoded + " skipped:" + skipped + " paused ticks:" + paused;
+	}
+}
@@ -38,18 +38,25 @@
 
 package com.asim.learning;
 
-import java.text.DecimalFormat;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
 
 import android.app.Activity;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
+import android.graphics.PointF;
+import android.graphics.RectF;
+import android.media.MediaMetadataRetriever;
 import android.os.Bundle;
-import android.os.Debug;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -62,15 +69,22 @@ import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 import android.widget.Toast;
 
-public class MultiTouchActivity extends Activity implements OnTouchListener, OnClickListener, AnimationListener{
+public class MultiTouchActivity extends Activity implements OnTouchListener, OnClickListener, AnimationListener, Photograph.OnChangeListener,
+		MemoryManager.OnMemoryReportListener, LayoutAnimator.OnArrangedListener, StallWatchdog.StatsSource{
 
 	final int PICTURE_ADD_DURATION = 500;							//the duration of the alphaAnimation - when adding a view
 	final private int SCRUB_FACTOR = 2;							//scrub factor - bitmaps will be scrubbed down by a factor of this value
+	final static String SNAPSHOT_FILE = "board.snapshot";			//name of the file in which the board state is saved
+	final static String STRESS_SNAPSHOT_FILE = "stress.snapshot";	//the board of a stress test is kept apart from the user's board
+	final static int MENU_ARRANGE = 1;								//menu ids of the arrange modes start here (one per mode of the LayoutEngine)
+	final static int MENU_UNDO = 10, MENU_REDO = 11, MENU_EXPORT_ANALYTICS = 12, MENU_PILE_UP = 13, MENU_SPREAD = 14;
+	final static int MENU_EFFECT = 20;								//menu ids of the effect adjustments start here (one per adjustment of the EffectStack)
+	final static int RESTORE_CACHE_SIZE = 8;						//full decodes kept while restoring, for photos of the same resource
 
 	LinearLayout outer;												//this is the outer container, will hold the add button and parent container
 	Button btnAdd;													//button to add images
 
-	FrameLayout parent; 											//parent container will hold all the images
+	Board parent; 													//parent container will hold all the images
 	Slate drawingSurface;											//this is a surface on which the touch point markers will be drawn
 	FrameLayout grandParent;										//this container will hold the parent container and the drawing surface
 
@@ -79,9 +93,32 @@ public class MultiTouchActivity extends Activity implements OnTouchListener, OnC
 
 	int tagCount = 0;												//a variable used to assign sequential tags to the views
 	boolean isInteractive = true;									//this will indicate if the UI is interactive or not
-
-	private static boolean disableFlag = false;
-
+	BoardSnapshot snapshot;											//keeps the state of the board across activity restarts
+	BitmapPool bitmapPool;											//bitmaps of removed photos are reused from here
+	PixelPolicy pixelPolicy;										//decides the pixel formats and compresses idle photos
+	TiledImage.TileCache tileCache;									//full resolution tiles of zoomed in photos, shared by all of them
+	QualityController qualityController;							//picks the quality of each photo to keep frames within budget
+	RefinementScheduler refinementScheduler;						//brings settled photos up to high quality once the board is idle
+	TouchPredictor predictor = new TouchPredictor();				//estimates where each pointer will be when the next frame is shown
+	boolean isPredicting = true;									//when false, photos follow the raw pointer positions
+	StressTest stressTest;											//set when the activity was started in stress mode
+	MemoryManager memoryManager;									//keeps the pixels of the board within a budget
+	MoviePlayer moviePlayer;										//decodes the frames of all the movie tiles
+	ThumbnailAtlas thumbnailAtlas;									//small copies of the idle photos, packed into a few shared bitmaps
+	LayoutEngine layoutEngine;										//computes the auto-arrange layouts on all the cores
+	LayoutAnimator layoutAnimator;									//moves the photos onto an arrangement, all of them in one pass per frame
+	BoardHistory history;											//undo and redo of gestures, marks, locks and arrangements
+	BoardSync sync;													//mirrors this board with other boards (only when started with a sync channel)
+	TouchAnalytics analytics;										//heatmap of the touches and per photo usage counts
+	EffectRenderer effectRenderer;									//filtered copies of the bitmaps of photos with colour effects
+	StallWatchdog watchdog;											//writes a report when the UI thread stops responding
+	volatile int pointersDown;										//pointers on the board now (read by the watchdog)
+	ArrayList<ArrayList<Photograph>> pendingPiles = new ArrayList<ArrayList<Photograph>>();	//piles to be formed once the photos moving onto them have arrived
+	
+	//scratch space for routing the pointers of a move event to their photographs
+	int[] moveX = new int[10], moveY = new int[10];					//new positions of the pointers, by pointer index
+	Photograph[] routeOwners = new Photograph[10];					//photographs that had a pointer move in this event
+	PointF snapMove = new PointF();									//how far a dragged photo moves once it has snapped to the edges nearby
 
 	/******************************************************************************
 	 * Called when the activity starts - initialise the views
@@ -96,7 +133,7 @@ public class MultiTouchActivity extends Activity implements OnTouchListener, OnC
 		btnAdd.setText("ADD IMAGE");											//set the text label
 		btnAdd.setOnClickListener(this);										//assign it a click event handler
 
-		parent = new FrameLayout(this);											//this container will hold all the photographs
+		parent = new Board(this);												//this container will hold all the photographs (and skips drawing hidden ones)
 		parent.setTag(tagCount-1);												//assign it a tag of -1
 
 		drawingSurface = new Slate(this);										//the drawing surface on which touch point markers will be drawn
@@ -108,15 +145,555 @@ public class MultiTouchActivity extends Activity implements OnTouchListener, OnC
 		//outer.addView(btnAdd);													//add the button to the linear layout
 		outer.addView(grandParent);												//add the big container (photos + surface) into this linear layout
 		
-		this.addDrawableToParent(R.drawable.img1);
-		this.addDrawableToParent(R.drawable.img2);
-		this.addDrawableToParent(R.drawable.img3);
-		this.addDrawableToParent(R.drawable.img4);
-		this.addDrawableToParent(R.drawable.img5);
+		bitmapPool = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);	//let the pool use up to an eighth of the heap
+		parent.setBitmapPool(bitmapPool);
+		pixelPolicy = new PixelPolicy(bitmapPool, parent);						//scrubbed copies in RGB_565, idle sources compressed
+		tileCache = new TiledImage.TileCache(Runtime.getRuntime().maxMemory() / 16);	//tiles get a sixteenth of the heap
+		qualityController = new QualityController(parent);
+		parent.setOnFrameListener(qualityController);							//the controller watches how long each frame takes
+		refinementScheduler = new RefinementScheduler(parent, pixelPolicy);
+		memoryManager = new MemoryManager(this, parent, bitmapPool, pixelPolicy, tileCache, Runtime.getRuntime().maxMemory() / 2);
+		memoryManager.setOnMemoryReportListener(this);							//the budget is shown in the title bar
+		moviePlayer = new MoviePlayer(parent, bitmapPool);
+		thumbnailAtlas = new ThumbnailAtlas(parent, bitmapPool);
+		memoryManager.setAtlas(thumbnailAtlas);
+		layoutEngine = new LayoutEngine(Runtime.getRuntime().availableProcessors());
+		layoutAnimator = new LayoutAnimator(parent);
+		layoutAnimator.setOnArrangedListener(this);
+		history = new BoardHistory(parent);
+		analytics = new TouchAnalytics(parent);
+		effectRenderer = new EffectRenderer(bitmapPool, parent);
+		watchdog = new StallWatchdog(getFilesDir(), this,					//the threshold can be set by whoever starts the activity
+				getIntent().getIntExtra("stall_threshold", (int)StallWatchdog.DEFAULT_THRESHOLD));
+		StressScenario stress = StressTest.readScenario(getIntent());
+		if(stress != null){
+			snapshot = new BoardSnapshot(new File(getFilesDir(), STRESS_SNAPSHOT_FILE), getResources());	//start from an empty board, and leave the user's one alone
+			snapshot.clear();
+			stressTest = new StressTest(this, parent, stress);
+			thumbnailAtlas.isEnabled = getIntent().getBooleanExtra("stress_atlas", true);	//to compare the frame times without the atlas
+			parent.postDelayed(new Runnable(){									//the test fits the scenario to the size of the board, so wait for the layout
+				public void run(){
+					stressTest.start();
+				}
+			}, 500);
+			setContentView(outer);
+			return;
+		}
+		
+		snapshot = new BoardSnapshot(new File(getFilesDir(), SNAPSHOT_FILE), getResources());	//the board is saved into this file as it changes
+		BoardSnapshot.Record[] saved = snapshot.read();
+		
+		if(saved != null && saved.length > 0){
+			restoreBoard(saved);												//rebuild the board the way the user left it
+		}
+		else{
+			this.addDrawableToParent(R.drawable.img1);
+			this.addDrawableToParent(R.drawable.img2);
+			this.addDrawableToParent(R.drawable.img3);
+			this.addDrawableToParent(R.drawable.img4);
+			this.addDrawableToParent(R.drawable.img5);
+		}
+		
+		String channel = getIntent().getStringExtra("sync_channel");			//boards started with the same channel mirror each other
+		if(channel != null){
+			sync = new BoardSync(parent, LoopbackTransport.join(channel));
+			sync.join();
+		}
 		
+		String movies = getIntent().getStringExtra("movies");					//paths of video files to put on the board, separated by commas
+		if(movies != null){
+			for(String path : movies.split(",")) addMovieToParent(path.trim());
+		}
 		
 		setContentView(outer);													//the linear layout will be the final view for this activity
 	}
+	
+	/******************************************************************************
+	 * Called when the activity comes to the foreground - start the background work
+	 ******************************************************************************/
+	protected void onResume(){
+		super.onResume();
+		pixelPolicy.startSweeping();
+		memoryManager.startChecking();
+		moviePlayer.start();
+		thumbnailAtlas.start();
+		watchdog.start();
+	}
+	
+	/******************************************************************************
+	 * Called when the activity goes into the background - write out whatever has
+	 * changed on the board since the last save
+	 ******************************************************************************/
+	protected void onPause(){
+		super.onPause();
+		pixelPolicy.stopSweeping();
+		memoryManager.stopChecking();
+		moviePlayer.stop();
+		thumbnailAtlas.stop();
+		watchdog.stop();
+		layoutAnimator.finish();
+		refinementScheduler.cancel();
+		if(stressTest != null) stressTest.stop();
+		snapshot.flush();
+		Log.i("BitmapPool", bitmapPool.toString());
+		Log.i("Board", parent.toString());
+		Log.i("QualityController", qualityController.toString());
+		Log.i("RefinementScheduler", refinementScheduler.toString());
+		Log.i("MemoryManager", memoryManager.toString());
+		Log.i("MoviePlayer", moviePlayer.toString());
+		Log.i("ThumbnailAtlas", thumbnailAtlas.toString());
+		Log.i("LayoutAnimator", layoutAnimator.toString());
+		Log.i("BoardHistory", history.toString());
+		if(sync != null) Log.i("BoardSync", sync.toString());
+		Log.i("TouchAnalytics", analytics.toString());
+		Log.i("EdgeIndex", parent.getEdgeIndex().toString());
+		Log.i("EffectRenderer", effectRenderer.toString());
+		Log.i("StallWatchdog", watchdog.toString());
+	}
+	
+	/******************************************************************************
+	 * Called by the platform when memory is getting tight (API 14 and later) - the
+	 * board gives up pixels according to how tight it is
+	 ******************************************************************************/
+	public void onTrimMemory(int level){
+		super.onTrimMemory(level);
+		memoryManager.onTrimMemory(level);
+	}
+	
+	public void onLowMemory(){
+		super.onLowMemory();
+		memoryManager.onLowMemory();
+	}
+	
+	/******************************************************************************
+	 * Memory report listener - shows the budget, and stops photos from being brought
+	 * back up to high quality while memory is tight
+	 ******************************************************************************/
+	public void onMemoryReport(MemoryManager manager){
+		boolean isTight = manager.getLevel() >= MemoryManager.CAP;
+		refinementScheduler.isHeld = isTight;
+		qualityController.isHeld = isTight;
+		thumbnailAtlas.isHeld = manager.getLevel() >= MemoryManager.EVICT;
+		setTitle(getString(R.string.app_name) + " - " + manager.getSummary());
+	}
+	
+	/******************************************************************************
+	 * Stats source of the watchdog - called on its thread while the UI thread is
+	 * stuck, so it only reads fields that don't need a lock
+	 ******************************************************************************/
+	public String getStallStats(){
+		return "photos:" + parent.getChildCount() + " piles:" + parent.getPiles().size() + " pointers:" + pointersDown
+				+ " interactive:" + isInteractive + " frames:" + parent.getFrameCount() + " bitmaps: " + memoryManager.toString();
+	}
+	
+	protected void onDestroy(){
+		super.onDestroy();
+		snapshot.close();
+		layoutEngine.shutdown();
+		if(sync != null) sync.close();
+	}
+	
+	/******************************************************************************
+	 * The options menu holds the auto-arrange modes
+	 ******************************************************************************/
+	public boolean onCreateOptionsMenu(Menu menu){
+		menu.add(Menu.NONE, MENU_ARRANGE + LayoutEngine.GRID, Menu.NONE, "Arrange in a grid");
+		menu.add(Menu.NONE, MENU_ARRANGE + LayoutEngine.MASONRY, Menu.NONE, "Arrange in columns");
+		menu.add(Menu.NONE, MENU_ARRANGE + LayoutEngine.SCATTER, Menu.NONE, "Scatter");
+		menu.add(Menu.NONE, MENU_ARRANGE + LayoutEngine.PILES, Menu.NONE, "Arrange in piles");
+		menu.add(Menu.NONE, MENU_PILE_UP, Menu.NONE, "Pile up the marked photos");
+		menu.add(Menu.NONE, MENU_SPREAD, Menu.NONE, "Spread the piles");
+		for(int i = 0; i < EffectStack.ADJUSTMENT_NAMES.length; i++)
+			menu.add(Menu.NONE, MENU_EFFECT + i, Menu.NONE, EffectStack.ADJUSTMENT_NAMES[i]);
+		menu.add(Menu.NONE, MENU_UNDO, Menu.NONE, "Undo");
+		menu.add(Menu.NONE, MENU_REDO, Menu.NONE, "Redo");
+		menu.add(Menu.NONE, MENU_EXPORT_ANALYTICS, Menu.NONE, "Export touch analytics");
+		return true;
+	}
+	
+	public boolean onOptionsItemSelected(MenuItem item){
+		int id = item.getItemId();
+		if(id >= MENU_ARRANGE + LayoutEngine.GRID && id <= MENU_ARRANGE + LayoutEngine.PILES){
+			arrange(id - MENU_ARRANGE);
+			return true;
+		}
+		if(id == MENU_PILE_UP){
+			pileUpSelection();
+			return true;
+		}
+		if(id == MENU_SPREAD){
+			spreadPiles();
+			return true;
+		}
+		if(id >= MENU_EFFECT && id < MENU_EFFECT + EffectStack.ADJUSTMENT_NAMES.length){
+			adjustEffects(id - MENU_EFFECT);
+			return true;
+		}
+		if(id == MENU_UNDO || id == MENU_REDO){
+			if(!isInteractive) return true;									//not while photos are moving on their own
+			boolean isDone = (id == MENU_UNDO)? history.undo() : history.redo();
+			if(!isDone) Toast.makeText(this, (id == MENU_UNDO)? "Nothing to undo" : "Nothing to redo", Toast.LENGTH_SHORT).show();
+			snapshot.flush();
+			return true;
+		}
+		if(id == MENU_EXPORT_ANALYTICS){
+			analytics.export(getFilesDir());
+			Toast.makeText(this, "Writing " + TouchAnalytics.HEATMAP_FILE + " and the CSV files to " + getFilesDir(), Toast.LENGTH_LONG).show();
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+	
+	/******************************************************************************
+	 * Arranges all the photos that are not locked, in stacking order from the
+	 * bottom up, starting at the top left corner of what is on screen. The layout
+	 * is computed on a separate thread (with the help of the engine's workers),
+	 * then the photos are animated onto it. The UI is not interactive until they
+	 * have arrived. The piles are spread first - the PILES mode makes new ones
+	 * 
+	 * @param mode - one of the modes of the LayoutEngine
+	 ******************************************************************************/
+	public void arrange(final int mode){
+		
+		if(!isInteractive) return;
+		
+		parent.spreadAll();
+		final Photograph[] pics = new Photograph[parent.getChildCount()];
+		int n = 0;
+		for(Photograph pic = parent.getBottomPhoto(); pic != null; pic = pic.zAbove){
+			if(!pic.isLocked) pics[n++] = pic;
+		}
+		if(n == 0) return;
+		
+		final int count = n;
+		final float[] widths = new float[count], heights = new float[count];
+		for(int i = 0; i < count; i++){
+			widths[i] = pics[i].getInitWidth() * pics[i].getSx();				//the size it is drawn at
+			heights[i] = pics[i].getInitHeight() * pics[i].getSy();
+		}
+		
+		RectF view = parent.getViewport();
+		final float originX = view.left + layoutEngine.gap, originY = view.top + layoutEngine.gap;
+		final float aspect = (view.height() > 0)? view.width() / view.height() : 1;
+		isInteractive = false;
+		
+		Thread worker = new Thread(new Runnable(){
+			public void run(){
+				final float[] layout = new float[count * 4];
+				long start = System.nanoTime();
+				layoutEngine.layout(mode, widths, heights, count, originX, originY, aspect, layout);
+				final long took = System.nanoTime() - start;
+				
+				parent.post(new Runnable(){
+					public void run(){
+						Log.i("LayoutEngine", LayoutEngine.MODE_NAMES[mode] + " layout of " + count + " photos took " + (took / 1000) + "us");
+						if(mode == LayoutEngine.PILES){						//the photos of each pile, in the order the engine used
+							int size = Math.max(1, layoutEngine.pileSize);
+							for(int from = 0; from < count; from += size){
+								ArrayList<Photograph> group = new ArrayList<Photograph>();
+								for(int i = from; i < Math.min(count, from + size); i++) group.add(pics[i]);
+								pendingPiles.add(group);
+							}
+						}
+						layoutAnimator.start(pics, count, layout);
+					}
+				});
+			}
+		});
+		worker.start();
+	}
+	
+	/******************************************************************************
+	 * Piles up the marked photos (and the marked piles) on the topmost of them.
+	 * The photos keep their size and are animated onto the pile, which is formed
+	 * once they have arrived
+	 ******************************************************************************/
+	public void pileUpSelection(){
+		
+		if(!isInteractive) return;
+		
+		ArrayList<Photograph> group = new ArrayList<Photograph>();
+		for(Photograph pic = parent.getBottomPhoto(); pic != null; pic = pic.zAbove){	//in stacking order, so the pile keeps it
+			Photograph head = (pic.pile != null)? pic.pile.getTop() : pic;
+			if(head.isMarked && !pic.isLocked) group.add(pic);
+		}
+		if(group.size() < 2){
+			Toast.makeText(this, "Mark at least two photos (touch them with three fingers) to pile them up", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		
+		int count = group.size();
+		Photograph[] pics = new Photograph[count];
+		float[] widths = new float[count], heights = new float[count];
+		for(int i = 0; i < count; i++){
+			Photograph pic = group.get(i);
+			if(pic.pile != null) parent.spread(pic.pile);
+			if(pic.isMarked) parent.setMarked(pic, false);
+			pics[i] = pic;
+			widths[i] = pic.getInitWidth() * pic.getSx();
+			heights[i] = pic.getInitHeight() * pic.getSy();
+		}
+		
+		PointF center = new PointF();
+		pics[count - 1].getCenter(center);
+		float[] layout = new float[count * 4];
+		layoutEngine.stack(widths, heights, count, center.x, center.y, layout);
+		
+		pendingPiles.add(group);
+		isInteractive = false;
+		layoutAnimator.start(pics, count, layout);
+	}
+	
+	/******************************************************************************
+	 * Spreads the marked piles (all of them if none is marked). The photos of
+	 * every pile are scattered around where the pile was
+	 ******************************************************************************/
+	public void spreadPiles(){
+		
+		if(!isInteractive) return;
+		
+		ArrayList<PhotoPile> chosen = new ArrayList<PhotoPile>();
+		ArrayList<PhotoPile> piles = parent.getPiles();
+		for(int i = 0; i < piles.size(); i++){
+			if(piles.get(i).getTop().isMarked) chosen.add(piles.get(i));
+		}
+		if(chosen.isEmpty()) chosen.addAll(piles);
+		if(chosen.isEmpty()){
+			Toast.makeText(this, "There are no piles to spread", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		
+		int total = 0;
+		for(int p = 0; p < chosen.size(); p++) total += chosen.get(p).size();
+		Photograph[] pics = new Photograph[total];
+		float[] layout = new float[total * 4];
+		PointF center = new PointF();
+		int n = 0;
+		
+		for(int p = 0; p < chosen.size(); p++){
+			
+			PhotoPile pile = chosen.get(p);
+			int size = 0;
+			float[] widths = new float[pile.size()], heights = new float[pile.size()];
+			for(int i = 0; i < pile.size(); i++){
+				Photograph pic = pile.members.get(i);
+				if(pic.isLocked) continue;										//a locked top stays where it is
+				pics[n + size] = pic;
+				widths[size] = pic.getInitWidth() * pic.getSx();
+				heights[size] = pic.getInitHeight() * pic.getSy();
+				size++;
+			}
+			pile.getTop().getCenter(center);
+			parent.spread(pile);
+			if(size == 0) continue;
+			
+			float[] part = new float[size * 4];								//scattered about the origin, then moved onto the centre of the pile
+			layoutEngine.layout(LayoutEngine.SCATTER, widths, heights, size, 0, 0, 1, part);
+			float mx = 0, my = 0;
+			for(int i = 0; i < size; i++){
+				mx += part[i * 4];
+				my += part[i * 4 + 1];
+			}
+			for(int i = 0; i < size; i++){
+				part[i * 4] += center.x - mx / size;
+				part[i * 4 + 1] += center.y - my / size;
+			}
+			System.arraycopy(part, 0, layout, n * 4, size * 4);
+			n += size;
+		}
+		if(n == 0) return;
+		
+		isInteractive = false;
+		layoutAnimator.start(pics, n, layout);
+	}
+	
+	/******************************************************************************
+	 * Makes an adjustment to the colour effects of every marked photo. The new
+	 * filtered bitmaps are made on the renderer's worker, the photos are drawn
+	 * through the filter until they are ready
+	 * 
+	 * @param adjustment - one of the adjustments of the EffectStack
+	 ******************************************************************************/
+	public void adjustEffects(int adjustment){
+		
+		ArrayList<Photograph> marked = parent.getSelection();
+		if(marked.isEmpty()){
+			Toast.makeText(this, "Mark photos (touch them with three fingers) to change their colours", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		
+		for(int i = 0; i < marked.size(); i++){
+			Photograph pic = marked.get(i);
+			EffectStack stack = pic.getEffects();
+			if(stack == null) stack = new EffectStack();
+			stack.adjust(adjustment);
+			pic.setEffects(stack.isIdentity()? null : stack, effectRenderer);
+		}
+	}
+	
+	/******************************************************************************
+	 * Arranged listener - the photos have arrived, so the UI can be used again.
+	 * Photos that were moving onto a pile are gathered into it now
+	 ******************************************************************************/
+	public void onArranged(int count){
+		for(int i = 0; i < pendingPiles.size(); i++) parent.pileUp(pendingPiles.get(i));
+		pendingPiles.clear();
+		isInteractive = true;
+		history.commit();														//the whole arrangement is one step
+		snapshot.flush();
+	}
+	
+	/******************************************************************************
+	 * Rebuilds the board from a saved snapshot. This is done in two steps - first
+	 * all the photos are placed using only their saved geometry (which is fast even
+	 * for very large boards), then the pixels are decoded on a separate thread and
+	 * handed over to the photos one by one, topmost photo first. Records of
+	 * resources that no longer exist are skipped, and so are photos whose
+	 * resource can't be decoded
+	 * 
+	 * @param saved - the records read from the snapshot, sorted by z order
+	 ******************************************************************************/
+	private void restoreBoard(BoardSnapshot.Record[] saved){
+		
+		long start = System.nanoTime();
+		final ArrayList<Photograph> pics = new ArrayList<Photograph>(saved.length);
+		HashMap<String,Integer> ids = new HashMap<String,Integer>();			//resource ids of the names looked up so far
+		
+		for(int i = 0; i < saved.length; i++){
+			
+			BoardSnapshot.Record r = saved[i];
+			Integer id = ids.get(r.resourceName);
+			if(id == null){
+				id = getResources().getIdentifier(r.resourceName, "drawable", getPackageName());
+				ids.put(r.resourceName, id);
+				if(id == 0) Log.w("BoardSnapshot", "resource " + r.resourceName + " is gone - its photos are not restored");
+			}
+			if(id == 0) continue;
+			
+			Photograph pic = new Photograph(this,null,null,r.angle,r.width,3,r.isPlayable());	//no pixels yet, only geometry
+			pic.restoreState(r.width, r.height, r.tx, r.ty, r.angle, r.sx, r.sy, r.isMarked(), r.isLocked(), r.label);
+			pic.setResourceId(id);
+			pic.setTiledImage(new TiledImage(getResources(), id, tileCache));
+			pic.setTag(r.tag);
+			pic.zStamp = r.zStamp;
+			pic.setOnChangeListener(this);
+			parent.addView(pic);
+			history.track(pic);
+			
+			pics.add(pic);
+			if(r.isMarked()) parent.getSelection().add(pic);
+			if(r.tag >= tagCount) tagCount = r.tag + 1;							//new photos must not reuse a saved tag
+		}
+		btnAdd.setText("ADD IMAGE ("+tagCount+")");
+		Log.i("BoardSnapshot", "placed " + pics.size() + " of " + saved.length + " photos in " + ((System.nanoTime() - start) / 1000000) + "ms");
+		
+		Thread loader = new Thread(new Runnable(){
+			public void run(){
+				
+				//boards hold many photos of the same few resources - each one is decoded once, and every photo is scaled from that
+				LinkedHashMap<Integer,Bitmap> decoded = new LinkedHashMap<Integer,Bitmap>(16, 0.75f, true){
+					protected boolean removeEldestEntry(Map.Entry<Integer,Bitmap> eldest){
+						if(size() <= RESTORE_CACHE_SIZE) return false;
+						bitmapPool.put(eldest.getValue());
+						return true;
+					}
+				};
+				
+				for(int i = pics.size() - 1; i >= 0; i--){						//top of the stack first - these are the ones that can be seen
+					final Photograph pic = pics.get(i);
+					int id = pic.getResourceId();
+					Bitmap full = decoded.get(id);
+					if(full == null && !decoded.containsKey(id)){
+						full = decodeResource(id);
+						decoded.put(id, full);									//a failed decode is not tried again either
+					}
+					final Bitmap[] bitmaps = (full == null)? null : scalePhotoBitmaps(full);
+					parent.post(new Runnable(){
+						public void run(){
+							if(bitmaps != null) pic.setContent(bitmaps[0], bitmaps[1]);
+							else removePhotograph(pic);
+						}
+					});
+				}
+				for(Bitmap full : decoded.values()) bitmapPool.put(full);
+			}
+		});
+		loader.setPriority(Thread.MIN_PRIORITY);
+		loader.start();
+	}
+	
+	/******************************************************************************
+	 * Decodes the two versions of the image for a resource - the high quality one
+	 * and the scrubbed one. This is safe to call from any thread
+	 * 
+	 * @param id - the id of the drawable resource
+	 * @return - an array holding the high quality and the scrubbed bitmap, or
+	 * null if the resource can't be decoded
+	 ******************************************************************************/
+	Bitmap[] decodePhotoBitmaps(int id){
+		
+		Bitmap bmp = decodeResource(id);
+		if(bmp == null) return null;
+		Bitmap[] bitmaps = scalePhotoBitmaps(bmp);
+		bitmapPool.put(bmp);													//the full decode goes back into the pool
+		return bitmaps;
+	}
+	
+	/******************************************************************************
+	 * Decodes the full image of a resource (into a pooled bitmap if possible)
+	 * @return - the image, or null if it can't be decoded
+	 ******************************************************************************/
+	private Bitmap decodeResource(int id){
+		
+		try{
+			Bitmap bmp = bitmapPool.decodeResource(getResources(), id, Bitmap.Config.ARGB_8888);
+			if(bmp == null) Log.e("MultiTouchActivity", "could not decode resource " + id);
+			return bmp;
+		}catch(Resources.NotFoundException e){
+			Log.e("MultiTouchActivity", "no resource with id " + id);
+			return null;
+		}
+	}
+	
+	/******************************************************************************
+	 * Draws both versions of a photo from a full decode, into pooled bitmaps. The
+	 * full decode is left as it is
+	 ******************************************************************************/
+	private Bitmap[] scalePhotoBitmaps(Bitmap bmp){
+		
+		int w = bmp.getWidth(), h = bmp.getHeight();
+		Bitmap scaled = bitmapPool.getScaled(bmp, (int)(w * 0.75f), (int)(h * 0.75f), pixelPolicy.sourceConfig);
+		Bitmap lowBmp = bitmapPool.getScaled(bmp, w / SCRUB_FACTOR, h / SCRUB_FACTOR, pixelPolicy.getScrubbedConfig(bmp.hasAlpha()));
+		return new Bitmap[]{scaled, lowBmp};
+	}
+	
+	/******************************************************************************
+	 * Takes a photo off the board. Its bitmaps go back into the pool so that the
+	 * next photo that is added can reuse them
+	 * 
+	 * @param pic - the photo to be removed
+	 ******************************************************************************/
+	public void removePhotograph(Photograph pic){
+		
+		parent.removeView(pic);
+		parent.getSelection().remove(pic);
+		if(pic.isPlayable) moviePlayer.remove(pic);
+		thumbnailAtlas.remove(pic);
+		snapshot.remove(pic);
+		pic.releaseBitmaps(bitmapPool);
+	}
+	
+	/******************************************************************************
+	 * Photograph change listener - the changed photo will be written into the
+	 * snapshot the next time it is flushed
+	 ******************************************************************************/
+	public void onPhotographChanged(Photograph pic) {
+		snapshot.markDirty(pic);
+		if(pic.pile != null && pic.pile.onChanged(pic)) parent.invalidate();	//a photo inside a pile moved on its own - draw the pile again
+		parent.getEdgeIndex().onChanged(pic);
+		if(sync != null) sync.onChanged(pic);
+		if(sync == null || !sync.isApplying()) history.onChanged(pic);		//what the other boards did can't be undone here
+	}
 
 	/******************************************************************************
 	 * This routine adds a randomly chosen image to the parent layout. The addition is
@@ -130,16 +707,18 @@ public class MultiTouchActivity extends Activity implements OnTouchListener, OnC
 		Random rnd = new Random();
 		isInteractive = false;													//the UI will not be interactive - touch events will not be serviced
 
-		Drawable drw = (getResources().getDrawable(id));						//get the drawable for this resource
-		Bitmap bmp = (((BitmapDrawable)drw).getBitmap());							//convert that into a bitmap
-		bmp = Bitmap.createScaledBitmap(bmp,(int)( bmp.getWidth() * 0.75f), (int)(bmp.getHeight() * 0.75f), true);
-
-		BitmapFactory.Options opt = new BitmapFactory.Options();				//get a scrubbed version of this bitmap
-		opt.inSampleSize = SCRUB_FACTOR;
-		Bitmap lowBmp = BitmapFactory.decodeResource(getResources(), id, opt);	
+		Bitmap[] bitmaps = decodePhotoBitmaps(id);								//get the high quality and the scrubbed bitmap for this resource
+		if(bitmaps == null){
+			isInteractive = true;
+			return;
+		}
 
-		Photograph pic = new Photograph(this,bmp,lowBmp,rnd.nextInt(360),150 + rnd.nextInt(300),3,false); //create a new Photograph object
+		Photograph pic = new Photograph(this,bitmaps[0],bitmaps[1],rnd.nextInt(360),150 + rnd.nextInt(300),3,false); //create a new Photograph object
 		pic.setTag(tagCount++);													//assign a tag to this photograph
+		pic.setResourceId(id);													//remember where the pixels came from (to restore this photo later)
+		pic.setTiledImage(new TiledImage(getResources(), id, tileCache));		//full resolution tiles for when it is zoomed in
+		pic.setOnChangeListener(this);											//keep the snapshot up to date with this photo
+		snapshot.markDirty(pic);
 		btnAdd.setText("ADD IMAGE ("+tagCount+")");								//display the number of images along with button text	
 
 		AlphaAnimation anim = new AlphaAnimation(0,1);							//create a new alpha animation
@@ -147,15 +726,77 @@ public class MultiTouchActivity extends Activity implements OnTouchListener, OnC
 		anim.setAnimationListener(this);										//set the listener (onAnimEnd will make UI interactive again)
 
 		parent.addView(pic);													//add this photo to the parent
+		history.track(pic);														//its changes can be undone from here on
 		pic.startAnimation(anim);												//start this animation
 
 	}
 
+	/******************************************************************************
+	 * Adds a movie tile for a video file. The video is opened on a separate thread
+	 * and the tile appears (showing the first frame) once that is done - from then
+	 * on the movie player plays it whenever it can be seen
+	 * 
+	 * @param path - path of the video file
+	 ******************************************************************************/
+	public void addMovieToParent(final String path){
+		
+		Thread opener = new Thread(new Runnable(){
+			public void run(){
+				
+				final Object[] opened = MoviePlayer.open(path);
+				if(opened == null) return;
+				
+				Bitmap poster = (Bitmap)opened[1];
+				final int w = poster.getWidth(), h = poster.getHeight();
+				final Bitmap lowBmp = bitmapPool.getScaled(poster, w / SCRUB_FACTOR, h / SCRUB_FACTOR, pixelPolicy.getScrubbedConfig(false));
+				final Bitmap scaled = bitmapPool.getScaled(poster, (int)(w * 0.75f), (int)(h * 0.75f), pixelPolicy.sourceConfig);
+				poster.recycle();
+				
+				parent.post(new Runnable(){
+					public void run(){
+						Random rnd = new Random();
+						Photograph pic = new Photograph(MultiTouchActivity.this,scaled,lowBmp,rnd.nextInt(360),150 + rnd.nextInt(300),3,true);
+						pic.setTag(tagCount++);
+						pic.setOnChangeListener(MultiTouchActivity.this);		//its moves reach the edge index, the sync and the history like any other photo
+						parent.addView(pic);
+						history.track(pic);
+						moviePlayer.add(pic, path, (MediaMetadataRetriever)opened[0], w, h);
+					}
+				});
+			}
+		});
+		opener.setPriority(Thread.MIN_PRIORITY);
+		opener.start();
+	}
+
+	/******************************************************************************
+	 * Adds a photo made from a generated bitmap (used by the stress test). There
+	 * is no animation, and the photo has no resource to be restored from
+	 * 
+	 * @param bmp - the high quality bitmap, the scrubbed one is made from it
+	 * @param cx - x coordinate of the centre of the photo
+	 * @param cy - y coordinate of the centre of the photo
+	 * @param angle - the angle of the photo
+	 * @param width - the width the photo is shown at
+	 ******************************************************************************/
+	public void addGeneratedPhoto(Bitmap bmp, float cx, float cy, float angle, int width){
+		
+		Bitmap lowBmp = bitmapPool.getScaled(bmp, bmp.getWidth() / SCRUB_FACTOR, bmp.getHeight() / SCRUB_FACTOR, pixelPolicy.getScrubbedConfig(false));
+		Photograph pic = new Photograph(this,bmp,lowBmp,angle,width,3,false);
+		pic.setTag(tagCount++);
+		pic.translate(cx - parent.getWidth() / 2 - width / 2.0f, cy - parent.getHeight() / 2 - pic.getInitHeight() / 2.0f);	//photos are placed relative to the centre of the board
+		pic.setOnChangeListener(this);											//so the stress test pays for the same bookkeeping as real photos
+		parent.addView(pic);
+		history.track(pic);
+	}
+
 	/******************************************************************************
 	 * OnTouch event handler
 	 ******************************************************************************/
 	public boolean onTouch(View v, MotionEvent event) {
 
+		refinementScheduler.onInput();												//stop refining while the board is being touched
+		
 		if(isInteractive){	//if UI is interactive (no animations going on)
 
 			/* The following section of code allows us to resolve the ACTION codes for a touch event. Multi touch event actions
@@ -197,6 +838,8 @@ public class MultiTouchActivity extends Activity implements OnTouchListener, OnC
 				break;
 			}
 
+			if((action & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_UP) history.commit();	//the last pointer is up - the gesture is one step of the history
+			
 			//the event handlers for each event action would have updated the pointer map
 			//so lets mark these updated points on the drawing surface using colored dots
 			drawingSurface.update(ptrMap);
@@ -224,6 +867,9 @@ public class MultiTouchActivity extends Activity implements OnTouchListener, OnC
 		x = (int)event.getX(ptrIndex);													//read the x coord of this pointer's current location
 		y = (int)event.getY(ptrIndex);													//read the y coord of this pointer's current location
 
+		predictor.reset(ptrId);															//a new pointer - start predicting from scratch
+		predictor.addSample(ptrId, x, y, event.getEventTime());
+
 		View touchedView = getTouchedView(x,y);											//find out which view is being touched by this pointer
 		TouchPoint tp = new TouchPoint(x,y,ptrId,ptrIndex,touchedView.getTag());		//create a touch point for this pointer
 		tp.setValidity(false);															//mark this as invalid pointer	
@@ -232,23 +878,30 @@ public class MultiTouchActivity extends Activity implements OnTouchListener, OnC
 		if(touchedView instanceof Photograph){														//if the view touched was not the parent layout (then it must be photograph)	
 
 			Photograph pic = ((Photograph)touchedView);									//grab this photo
-			pic.addTouchPoint(new TouchPoint(x,y,ptrId,ptrIndex,null));					//add the touch point into this view
+			pic.addTouchPoint(tp);														//add the touch point into this view (it follows the pointer as it moves)
 			pic.isHighQuality = true;													//make this render in high quality bmp
+			pixelPolicy.requestSource(pic);												//decompress the source if this photo was idle
 
 			int numPtsContact = pic.getCountPointsOfContact();
 			if(numPtsContact == 3){
-				pic.isMarked = !pic.isMarked;
-				pic.isLocked = !pic.isLocked;
+				parent.setMarked(pic, !pic.isMarked);									//marked photos are moved as a group
+				pic.setLock(!pic.isLocked);
 			}
 
-			touchedView.bringToFront();													//bring this photo to the top of the parent layout
-			parent.invalidate();														//redraw the parent to show this change
+			parent.raise(pic);															//bring this photo to the top of the stack (only its area is redrawn)
+			snapshot.markDirty(pic);													//remember the stacking order
 			tp.extra = touchedView.getTag();											//store the tag of this photo into the touch point obj 
 			tp.setValidity(true);														//make this a valid pointer
+			analytics.onPointerDown(x, y, pic);
 
 		}
+		else{
+			parent.addCameraContact(tp);												//a touch on empty space moves the camera
+			analytics.onPointerDown(x, y, null);
+		}
 
 		ptrMap.put(ptrId, tp);															//put this pointer into our hashtable 
+		pointersDown++;
 	}
 
 	/******************************************************************************
@@ -269,22 +922,54 @@ public class MultiTouchActivity extends Activity implements OnTouchListener, OnC
 		TouchPoint tp = ptrMap.get(ptrId);												//get this pointer's prior entry from the hashtable
 
 		if(tp.isValid()){																//if it was touching a photograph
-			Photograph pic = (Photograph)(parent.findViewWithTag(tp.extra));			//grab that photo
+			Photograph pic = parent.findPhotograph(tp.extra);							//grab that photo
+			
+			//a dragged photo was drawn at the predicted position - now that the pointer has stopped, put it where the finger really is
+			if(isPredicting && pic.getCountPointsOfContact() == 1 && !pic.isMarked){
+				float dx = (x - tp.getX()) / parent.getZoom(), dy = (y - tp.getY()) / parent.getZoom();
+				if(pic.pile != null){
+					parent.transformPile(pic.pile, dx, dy, 0, 1);
+				}
+				else{
+					if(parent.getEdgeIndex().isDragging(pic)){						//...but keep it on the edge it has snapped to
+						parent.getEdgeIndex().snapDrag(pic, dx, dy, snapMove);
+						dx = snapMove.x;
+						dy = snapMove.y;
+					}
+					pic.translate(dx, dy);
+				}
+			}
+			
 			pic.removeTouchPoint(ptrId);												//remove this pointer as an active point of contact for this photo
+			analytics.onPointerUp(pic);
+			if(pic.getCountPointsOfContact() == 0) parent.getEdgeIndex().endDrag(pic);	//the guides go away
 			pic.isHighQuality = false;													//the pointer went up, so on next redraw, make this pic low quality
 			//NO REDRAW MUST HAPPEN WHEN THE POINTER GOES UP
+			
+			if(pic.getCountPointsOfContact() == 0) snapshot.flush();					//the gesture on this photo is over, save what changed
+		}
+
+		else{
+			parent.removeCameraContact(ptrId);											//this pointer may have been moving the camera
 		}
 
 		tp.setValidity(false);															//make this pointer invalid - since it has gone up
 		tp.isDown = false;
 		ptrMap.put(ptrId, tp);															//push it back into the map
+		pointersDown = Math.max(0, pointersDown - 1);
 
 	}
 
 	/******************************************************************************
 	 * Action Move handler - here the pointer Id info is not accurate. We know the number
 	 * of pointers currently touching the screen, and so we scan each and every one
-	 * and determine which views they're interacting with
+	 * and determine which views they're interacting with.
+	 * 
+	 * This is done in two stages. First every pointer is routed to the photograph that
+	 * owns it (and pointers on empty space move the camera). Then the gesture of each
+	 * photograph that had a pointer move is solved once, using all of its points of
+	 * contact together - so a move event with 10 pointers on 5 photos results in 5
+	 * transform updates, not 10 partial ones.
 	 * 
 	 * @param ptrCount - total number of pointers touching the screen
 	 * @param event	- MotionEvent object for this 
@@ -292,82 +977,138 @@ public class MultiTouchActivity extends Activity implements OnTouchListener, OnC
 	private void handleActionMove(int ptrCount, MotionEvent event){
 
 		int x,y;
+		int numOwners = 0;
+
+		if(moveX.length < ptrCount){										//make room for this many pointers (rarely happens)
+			moveX = new int[ptrCount];
+			moveY = new int[ptrCount];
+			routeOwners = new Photograph[ptrCount];
+		}
 
+		//Stage 1 - find out where every pointer is now, and which photographs had a pointer move
 		for(int index = 0; index < ptrCount; index++){	//do this for every pointer touching the screen
 
 			int ptrId = event.getPointerId(index);		//grab this pointer's id
 			x = (int)event.getX(index);					//get its x and y coordinates
 			y = (int)event.getY(index);
+			analytics.onPointerMove(x, y);				//where the finger really is goes into the heatmap
+			
+			if(isPredicting){							//feed every sample of this event (batched ones too) into the predictor
+				for(int h = 0; h < event.getHistorySize(); h++)
+					predictor.addSample(ptrId, event.getHistoricalX(index, h), event.getHistoricalY(index, h), event.getHistoricalEventTime(h));
+				predictor.addSample(ptrId, x, y, event.getEventTime());
+				
+				x = (int)predictor.predictX(ptrId, x);	//and work with where the pointer will be when this frame is shown
+				y = (int)predictor.predictY(ptrId, y);
+			}
+			moveX[index] = x;
+			moveY[index] = y;
 
 			TouchPoint tp = ptrMap.get(ptrId);			//find the prior entry in the hashtable for this pointer
 
-			if(tp!=null && tp.isValid()){							//if this pointer was touching a photograph earlier on
+			if(tp!=null && tp.isValid()){				//if this pointer was touching a photograph earlier on
 
 				int dx = x - tp.getX();					//compute its displacement from its prior location
-				int dy = y - tp.getY();					//this difference in position is what we will use 
-
-				if(dx == 0 && dy == 0){					//if this difference was zero, then this pointer clearly isn't the one moving (and causing this event to be raised)
-					continue;							//forget everything else, continue with the loop
-				}
-				else if((Math.abs(dx) >= 3 || Math.abs(dy) >= 3)){									//this displacement is non zero, so this pointer has moved
-
-					//find the photograph associated with this touch point and find out how many points are touching it at the moment
-					Photograph pic = (Photograph)(parent.findViewWithTag(tp.extra));
-					int numPtsContact = pic.getCountPointsOfContact();
-					Log.i("----------NUM PTS:",""+numPtsContact+" dx:"+dx+" dy:"+dy);
-					pic.refresh();
-
-					try{
-						//if the number of points touching it is 1 (then we simply translate this pic) else if its 2, we rotate/scale
-						if(numPtsContact == 1){
-							pic.translate(dx,dy);			
-						}
-						else if (numPtsContact == 2){
-
-							//in order to rotate, we need to know the angle by which the two points on this pic have shifted
-							//and in order to scale, we need to know how far apart they are now w.r.t their prior positions.
-							//since this move event is raised by only one point, the other point is fixed w.r.t this moving point.
-							//so lets find that fixed point. we know the ptrId of the moving point. And we know there are only two
-							//points touching this image. So the one whose pointer id is not the same as that of the moving point, must be the
-							//fixed pointer
-
-							TouchPoint[] ptsOfContact = pic.getPointsOfContact();
-							TouchPoint fixed = (ptsOfContact[0].pointerId != ptrId)?ptsOfContact[0]:ptsOfContact[1];
-
-							//calculate the distance values - between fixed and old location of pointer & fixed and current location of pointer
-							float oldDistBetweenPoints = getDistance(fixed.getX(),fixed.getY(),tp.getX(),tp.getY());
-							float newDistBetweenPoints = getDistance(fixed.getX(),fixed.getY(),x,y);
-
-							//calculate the difference in these distances
-							float diff = newDistBetweenPoints - oldDistBetweenPoints;
-
-							//similarly calculate the elevation of the old line and slope of the new line
-							float angleOld =  getInclination(fixed.getX(),fixed.getY(),tp.getX(),tp.getY());
-							float angleNew =  getInclination(fixed.getX(),fixed.getY(),x,y);
-
-							//get the difference in these elevations. If the difference in elevation is greater than 100, ignore this change
-							float theta = angleNew - angleOld;
-							if(Math.abs(theta) > 100) theta = 0;
-
-							//use these values to change the angle and scaling of this photograph
-							pic.setAngle(pic.getAngle() + theta);
-							pic.setScale((int)diff,0.005f);
-
-						}
-					}catch(Exception e){
-
-					}
+				int dy = y - tp.getY();
 
+				if(Math.abs(dx) >= 3 || Math.abs(dy) >= 3){	//this pointer has moved, so its photograph needs updating
 
+					Photograph pic = parent.findPhotograph(tp.extra);
+					int o = 0;
+					while(o < numOwners && routeOwners[o] != pic) o++;
+					if(o == numOwners && pic != null) routeOwners[numOwners++] = pic;
 				}
 			}
+			else if(tp != null && tp.isDown){			//this pointer is on an empty part of the board - it moves the camera
+				parent.moveCamera(tp, x, y);
+			}
+		}
+
+		//Stage 2 - solve the gesture of every photograph that had a pointer move, once, with all of its points of contact
+		for(int o = 0; o < numOwners; o++){
+			try{
+				solveGesture(routeOwners[o], event);
+			}catch(Exception e){
+				Log.e("MultiTouchActivity", "could not transform a photograph", e);
+			}
+			routeOwners[o] = null;
+		}
 
+		//all is done, store the current position of every pointer into the hashtable (for next comparison)
+		for(int index = 0; index < ptrCount; index++){
+			TouchPoint tp = ptrMap.get(event.getPointerId(index));
+			if(tp != null) tp.putXY(moveX[index], moveY[index]);
+		}
+	}
 
-			//all is done, store the current position of this pointer into the hashtable (for next comparison)
-			tp.putXY(x, y);
-			ptrMap.put(ptrId, tp);
+	/******************************************************************************
+	 * Transforms a photograph (or the whole selection, if it is marked) according
+	 * to all the pointers touching it. The points of contact of the photo still hold
+	 * the prior positions of the pointers, the new ones are in moveX and moveY
+	 * 
+	 * @param pic - the photograph whose pointers have moved
+	 * @param event - the move event
+	 ******************************************************************************/
+	private void solveGesture(Photograph pic, MotionEvent event){
+
+		TouchPoint[] ptsOfContact = pic.getPointsOfContact();
+		TouchPoint a = null, b = null;
+		int numPtsContact = 0;
+		for(int i = 0; i < ptsOfContact.length; i++){
+			if(ptsOfContact[i] == null) continue;
+			if(a == null) a = ptsOfContact[i]; else b = ptsOfContact[i];
+			numPtsContact++;
 		}
 
+		analytics.onGesture(pic, numPtsContact);
+		boolean isGroup = pic.isMarked && parent.getSelection().size() > 1;		//gestures on a marked photo move the whole selection
+		PhotoPile pile = pic.pile;												//and gestures on a pile move all of it
+		float zoom = parent.getZoom();
+		pic.refresh();
+
+		//if the number of points touching it is 1 (then we simply translate this pic) else if its 2, we rotate/scale
+		if(numPtsContact == 1){
+
+			int index = event.findPointerIndex(a.pointerId);
+			if(index < 0) return;
+			float dx = (moveX[index] - a.getX()) / zoom;							//the photo lives in world space
+			float dy = (moveY[index] - a.getY()) / zoom;
+
+			if(isGroup) parent.transformSelection(dx, dy, 0, 1);
+			else if(pile != null) parent.transformPile(pile, dx, dy, 0, 1);
+			else if(!pic.isLocked){
+				parent.getEdgeIndex().snapDrag(pic, dx, dy, snapMove);				//line it up with the edges of the photos around it
+				pic.translate(snapMove.x, snapMove.y);
+			}
+		}
+		else if(numPtsContact == 2){
+
+			//in order to rotate, we need to know the angle by which the line between the two points on this pic has turned
+			//and in order to scale, we need to know how far apart they are now w.r.t their prior positions. Both points
+			//may have moved in this event - a point that didn't move simply has the same old and new position
+			int indexA = event.findPointerIndex(a.pointerId);
+			int indexB = event.findPointerIndex(b.pointerId);
+			int ax = (indexA < 0)? a.getX() : moveX[indexA], ay = (indexA < 0)? a.getY() : moveY[indexA];
+			int bx = (indexB < 0)? b.getX() : moveX[indexB], by = (indexB < 0)? b.getY() : moveY[indexB];
+
+			//calculate the difference in the distances between the points
+			float diff = getDistance(ax,ay,bx,by) - getDistance(a.getX(),a.getY(),b.getX(),b.getY());
+
+			//and the difference in the inclination of the line joining them, brought into -180..180
+			float theta = (float)Math.toDegrees(Math.atan2(by-ay, bx-ax) - Math.atan2(b.getY()-a.getY(), b.getX()-a.getX()));
+			if(theta > 180) theta -= 360;
+			if(theta < -180) theta += 360;
+
+			//use these values to change the angle and scaling of this photograph (or of the whole selection)
+			if(isGroup || pile != null){
+				float sxNew = pic.getSx() + (int)diff * 0.005f;
+				if(isGroup) parent.transformSelection(0, 0, theta, sxNew / pic.getSx());
+				else parent.transformPile(pile, 0, 0, theta, sxNew / pic.getSx());
+			}
+			else{
+				pic.rotateAndScale(theta, (int)diff, 0.005f);
+			}
+		}
 	}
 
 	/******************************************************************************
@@ -380,18 +1121,11 @@ public class MultiTouchActivity extends Activity implements OnTouchListener, OnC
 
 		/* In order to assess if the point x,y lies inside a view, we utilize the Region of Interest concept */
 
-		Photograph pic = null;								//temp variable to hold the child
-		int numViews = parent.getChildCount();				//find out how many views are inside the parent
-
-		for(int i= numViews-1; i>= 0; i--){					//scan the parent for every child
+		int wx = (int)parent.toWorldX(x);					//the photos are in world space - take the point through the camera
+		int wy = (int)parent.toWorldY(y);
 
-			if(parent.getChildAt(i) instanceof Photograph){
-				pic = (Photograph)(parent.getChildAt(i));
-				if(pic.isPointInROI(x,y) == true){				
-					return pic;									//if yes, return this child
-				}
-			}
-		}
+		Photograph pic = parent.findPhotographAt(wx, wy);	//scan the photos from the top of the stack down
+		if(pic != null) return pic;
 
 		return parent;										//no child found which contains this point, so surely the parent was touched
 	}
@@ -404,18 +1138,6 @@ public class MultiTouchActivity extends Activity implements OnTouchListener, OnC
 		return dist;
 	}
 
-	/******************************************************************************
-	 * Gets the elevation of a line formed by two points (x1,y1) and (x2,y2) 
-	 ******************************************************************************/
-	private float getInclination(int x1, int y1, int x2, int y2){
-
-		if((x2-x1) == 0) return 90.0f;
-
-		float m = ((float)(y2-y1))/(x2-x1);
-		float angle = (float) ((float) ((float)Math.atan(m)) * 180 / Math.PI);
-		return angle;
-	}
-
 	/******************************************************************************
 	 * Click event handler
 	 ******************************************************************************/
@@ -423,7 +1145,7 @@ public class MultiTouchActivity extends Activity implements OnTouchListener, OnC
 
 		if(v == btnAdd){						//if the add button was pressed, randomly select an image from the listed resources
 
-			if(disableFlag!=true)
+			if(memoryManager.canAddPhoto())
 			{
 				Random rnd = new Random();
 				
@@ -458,43 +1180,4 @@ public class MultiTouchActivity extends Activity implements OnTouchListener, OnC
 		isInteractive = false;
 	}
 
-
-	/*
-	 * Routine to check memory map for VM and Native Heap
-	 *  
-	 */
-
-	public static void logHeap() {
-
-		Double allocated = new Double(Debug.getNativeHeapAllocatedSize());// new
-		// Double((1048576));
-		Double available = new Double(Debug.getNativeHeapSize());// 1048576.0;
-		Double free = new Double(Debug.getNativeHeapFreeSize());// 1048576.0;
-
-		DecimalFormat df = new DecimalFormat();
-		df.setMaximumFractionDigits(2);
-		df.setMinimumFractionDigits(2);
-
-		Log.i("gettings", "debug. =================================");
-		Log.i("gettings", "debug.heap native: allocated "
-				+ df.format(allocated) + "MB of " + df.format(available)
-				+ "MB (" + df.format(free) + "MB free)");
-		//Log.i("gettings", "debug.memory: allocated: " + df.format(new Double(Runtime.getRuntime().totalMemory()/1048576)) + "MB of " + df.format(new Double(Runtime.getRuntime().maxMemory()/1048576))+"MB (" + df.format(new Double(Runtime.getRuntime().freeMemory()/1048576)) +"MB free)");
-
-
-		
-		if((Runtime.getRuntime().maxMemory()/1024)-allocated/1024<=(6*1024)) {
-
-			Log.i("gettings", "debug. for shut down=================================");
-
-			disableFlag = true;
-
-
-
-		}
-
-
-	}
-
-
 }
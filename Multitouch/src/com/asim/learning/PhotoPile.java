@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * A pile of photos that the board treats as a single photo.
+ *
+ * Photos lying on top of each other each cost a full draw, even though only the one
+ * on top can really be seen. A pile draws all of its photos below the top one into a
+ * single bitmap (the composite) once, and from then on the board draws the pile as
+ * that bitmap followed by the top photo, which is drawn live as usual. The photos
+ * below the top are skipped by the culling pass, so a pile of a hundred photos costs
+ * two draws per frame.
+ *
+ * A pile is moved, turned and scaled as a whole (see Board.transformPile()). The
+ * photos below the top are moved along with it, so that their state stays right for
+ * the snapshot, the history and the other boards - but the composite is not redrawn,
+ * the same transform is just added to the matrix it is drawn with. The composite is
+ * only drawn again when:
+ *  - a photo below the top changed on its own (an undo, another board)
+ *  - the pile is shown at more than twice the resolution of the composite
+ *  - it was released because the pile went off screen
+ *
+ * The photos of a pile stay next to each other in the stacking order (the board
+ * raises the whole pile at once), and a touch anywhere on the pile is a touch on its
+ * top photo, until the pile is spread. The pile is hit tested as one object (see
+ * contains()) - the photos below the top are not kept up to date while the pile moves.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+public class PhotoPile {
+
+	final static int MAX_COMPOSITE_SIZE = 1024;							//the longer side of a composite has at most this many pixels
+
+	ArrayList<Photograph> members = new ArrayList<Photograph>();		//from the bottom of the pile to the top (kept by the board)
+	boolean isMoving;													//set by the board while it moves the members as one
+
+	private Bitmap composite;											//the photos below the top, drawn into one bitmap
+	private RectF area = new RectF();									//the world area the composite was drawn from
+	private boolean isMeasured;
+	private Matrix placement = new Matrix();							//takes that area to where the pile is now
+	private float placementScale = 1;
+	private float resolution, maxResolution;							//pixels of the composite per world unit, now and at most
+	private RectF mapped = new RectF();
+	private Matrix inverse = new Matrix();								//scratch space for hit testing
+	private float[] point = new float[2];
+	private static Paint compositePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private BitmapPool pool;											//composites are taken from it and given back to it
+	private int builds;													//statistics
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param bitmapPool - the pool the composites are allocated from
+	 ***************************************************************************/
+	public PhotoPile(BitmapPool bitmapPool){
+		pool = bitmapPool;
+	}
+
+	public Photograph getTop(){
+		return members.get(members.size() - 1);
+	}
+
+	public Photograph getBottom(){
+		return members.get(0);
+	}
+
+	public int size(){
+		return members.size();
+	}
+
+	/***************************************************************************
+	 * Computes the world area the pile covers - the composite where it is now,
+	 * and the top photo. updateGeometry() of the top must have been called
+	 *
+	 * @param out - receives the bounds
+	 ***************************************************************************/
+	public void getBounds(RectF out){
+
+		getTop().getBounds(out);
+		if(members.size() < 2) return;
+		if(!isMeasured) measure();
+		mapped.set(area);
+		placement.mapRect(mapped);
+		out.union(mapped);
+	}
+
+	/***************************************************************************
+	 * @return - whether a point (world coordinates) is on the pile - on its top
+	 * photo, or on the area of the composite where the pile is now
+	 ***************************************************************************/
+	public boolean contains(int worldX, int worldY){
+
+		if(getTop().isPointInROI(worldX, worldY)) return true;
+		if(members.size() < 2) return false;
+		if(!isMeasured) measure();
+		if(!placement.invert(inverse)) return false;
+		point[0] = worldX;
+		point[1] = worldY;
+		inverse.mapPoints(point);											//back to where the composite was drawn from
+		return area.contains(point[0], point[1]);
+	}
+
+	/***************************************************************************
+	 * Moves the composite the way Photograph.applyGroupTransform() moves each of
+	 * the members - scaled and rotated about the pivot, then translated
+	 ***************************************************************************/
+	void transform(float dx, float dy, float degrees, float scale, float pivotX, float pivotY){
+		placement.postScale(scale, scale, pivotX, pivotY);
+		placement.postRotate(degrees, pivotX, pivotY);
+		placement.postTranslate(dx, dy);
+		placementScale *= scale;
+	}
+
+	/***************************************************************************
+	 * To be called when a member has changed. The composite is drawn again if a
+	 * photo below the top changed other than by moving with the pile
+	 *
+	 * @return - true if the pile has to be redrawn
+	 ***************************************************************************/
+	public boolean onChanged(Photograph pic){
+
+		if(isMoving || pic == getTop()) return false;
+		release();
+		isMeasured = false;
+		return true;
+	}
+
+	/***************************************************************************
+	 * Draws the photos below the top, from the composite (which is drawn first if
+	 * there is none, or it is too coarse for the zoom)
+	 *
+	 * @param c - the canvas of the board, with the camera applied
+	 * @param zoom - the zoom of the camera
+	 ***************************************************************************/
+	void draw(Canvas c, float zoom){
+
+		if(members.size() < 2) return;
+		if(composite != null && resolution < maxResolution && zoom * placementScale > resolution * 2) release();
+		if(composite == null) build(zoom);
+		if(composite == null) return;
+
+		c.save();
+		c.concat(placement);
+		c.drawBitmap(composite, null, area, compositePaint);
+		c.restore();
+	}
+
+	/***************************************************************************
+	 * Draws the photos below the top into a new composite, at the resolution they
+	 * are shown at (but no larger than MAX_COMPOSITE_SIZE)
+	 ***************************************************************************/
+	private void build(float zoom){
+
+		measure();
+		float side = Math.max(area.width(), area.height());
+		if(side <= 0) return;
+
+		maxResolution = MAX_COMPOSITE_SIZE / side;
+		resolution = Math.min(zoom, maxResolution);
+		int w = Math.max(1, (int)Math.ceil(area.width() * resolution));
+		int h = Math.max(1, (int)Math.ceil(area.height() * resolution));
+
+		composite = pool.get(w, h, Bitmap.Config.ARGB_8888);
+		composite.eraseColor(0);											//a pooled bitmap still holds its old pixels
+		Canvas canvas = new Canvas(composite);
+		canvas.scale(w / area.width(), h / area.height());
+		canvas.translate(-area.left, -area.top);
+		for(int i = 0; i < members.size() - 1; i++) members.get(i).draw(canvas);
+		builds++;
+	}
+
+	/***************************************************************************
+	 * Takes the area of the photos below the top from where they are now. Only
+	 * while there is no composite - the placement starts over from here
+	 ***************************************************************************/
+	private void measure(){
+
+		for(int i = 0; i < members.size() - 1; i++){
+			Photograph pic = members.get(i);
+			pic.updateGeometry();
+			pic.getBounds(mapped);
+			if(i == 0) area.set(mapped); else area.union(mapped);
+		}
+		placement.reset();
+		placementScale = 1;
+		isMeasured = true;
+	}
+
+	/***************************************************************************
+	 * Gives the composite back to the pool. It is drawn again the next time the
+	 * pile is drawn
+	 ***************************************************************************/
+	public void release(){
+		if(composite == null) return;
+		pool.put(composite);
+		composite = null;
+	}
+
+	public int getCompositeBytes(){
+		return (composite == null)? 0 : BitmapPool.getBytes(composite);
+	}
+
+	public String toString(){
+		return "photos:" + members.size() + " composites drawn:" + builds + " bytes:" + getCompositeBytes();
+	}
+}
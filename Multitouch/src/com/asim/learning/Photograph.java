@@ -1,15 +1,16 @@
 package com.asim.learning;
 
+import java.util.ArrayList;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Path;
 import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.Paint.Style;
+import android.os.SystemClock;
 import android.view.View;
 
 public class Photograph extends View{
@@ -19,6 +20,8 @@ public class Photograph extends View{
 	final static float MIN_SCALE_VAL = 0.5f;								//The minimum value of scaling factor - scaling down below this value is not allowed
 	final static int HIGHLIGHT_WIDTH = 10;
 	final static int MARKER_SIZE = 15;
+	final static int MIN_DECORATED_WIDTH = 64;								//photos drawn narrower than this on screen get no check box, lock or play icon
+	final static int LEVEL_HIGH = 0, LEVEL_SCRUBBED = 1;					//quality levels - which of the two bitmaps is drawn
 	
 	//CLASS DATA MEMBERS
 	private int border;												//This will hold the border thickness  
@@ -32,18 +35,63 @@ public class Photograph extends View{
 	private float aspectRatio;										//the aspect ratio of the image is preserved in this member
 	private Bitmap source;											//the original bitmap content of the image is saved here
 	private Bitmap scrubbedSource;									//a scrubbed (low quality) version of the source image is stored in here
+	private byte[] compressedSource;								//the source image, compressed, while this photo is idle (source is null then)
+	boolean isDecompressing;										//true while the compressed source is being decoded on the worker
+	boolean isCompressing;											//true while the source is being compressed on the worker
+	private ArrayList<Bitmap> pinned = new ArrayList<Bitmap>();		//bitmaps a worker is reading from, once per job
+	private ArrayList<Bitmap> parked = new ArrayList<Bitmap>();		//bitmaps released while pinned - pooled when their last job is done
+	long lastTouched;												//uptime at which a pointer last went down on this photo
+	private TiledImage tiledImage;									//full resolution tiles of the original, drawn when zoomed in
+	private int hiResWidth;											//width of the high quality source bitmap
+	private RectF visibleArea = new RectF();						//the part of the drawn area that is on screen (reused while drawing)
+	boolean isCulled;												//set by the board when this photo can't be seen and need not be drawn
+	boolean isQualityCapped;										//set by the quality controller - draw the scrubbed source even if isHighQuality
+	private Bitmap atlasPage;										//the atlas page holding a small copy of the scrubbed source (kept by the atlas)
+	private Rect atlasRect;											//where on the page that copy is
+	private Bitmap atlasCopyOf;										//the scrubbed source the copy was made from
+	private Rect thumbnailArea = new Rect();						//reused while drawing from the atlas
+	private static Paint thumbnailPaint = new Paint(Paint.FILTER_BITMAP_FLAG);	//shared by all photos drawing from the atlas
+	private Bitmap movieFrame;										//the current frame of a movie tile (owned by the movie player)
+	boolean isEvicted, isReloading;									//set by the memory manager - the pixels were dropped to free memory
 	private String label;
+	private int resourceId;											//the drawable resource this picture was decoded from (used to restore it later)
+	long zStamp;													//the raise counter value at the time this photo was last brought to the front
+	Photograph zAbove, zBelow;										//neighbours in the stacking order (kept by the board)
+	int childIndex;													//index of this photo among the children of the board (kept by the board)
+	PhotoPile pile;													//the pile this photo is in, or null (kept by the board)
+	private EffectStack effects;									//the colour effects of this photo, or null
+	private EffectRenderer effectRenderer;							//makes the filtered copies of the bitmaps
+	private Bitmap[] filtered = new Bitmap[2];						//the bitmaps with the effects applied, by quality level
+	private Bitmap[] filteredFrom = new Bitmap[2];					//the bitmap each copy was made from...
+	private int[] filteredVersion = new int[2];						//...and the version of the effects it was made with
+	private Bitmap[] pendingFrom = new Bitmap[2];					//the copy being made on the renderer's worker
+	private int[] pendingVersion = new int[2];
 	public boolean isHighQuality;									//this flag indicates whether the image will be drawn in high quality or low quality
 	public boolean isHighlighted;									//this flag is used to determine whether a highlighted aura should be put around the drawn area
 	public boolean isMarked;
 	public boolean isPlayable;
 	public boolean isLocked;
 	
-	private Paint painter;											//the painter object - handles color selection etc
-	private PointF topLeft, topRight, botLeft, botRight;			//these points define the "REGION OF INTEREST"
+	private Paint painter = new Paint();							//the painter object - handles color selection etc
+	private Rect paintedArea = new Rect();							//reused while drawing
+	private RectF highlightRect = new RectF();
+	private RectF spriteArea = new RectF();
+	private PointF topLeft = new PointF(), topRight = new PointF();	//these points define the "REGION OF INTEREST"
+	private PointF botLeft = new PointF(), botRight = new PointF();
+	private boolean isGeometryValid;								//cleared whenever the transform changes - updateGeometry() does nothing while it is set
+	private int geometryWidth, geometryHeight;						//the size of the view the geometry was computed for
 	private TouchPoint[] ptsOfContact = new TouchPoint[3];			//these indicate the touch points that are currently on this view
 	private Rect rectInvalidate;									//this indicates the rectangular area of the view that will be redrawn		
 	public Object extra;											//to store something extra - just in case
+	private OnChangeListener changeListener;						//this listener is told every time the state of this photo changes
+	
+	/***************************************************************************
+	 * Interface definition for a callback to be invoked when the transform or
+	 * the flags of a Photograph change
+	 ***************************************************************************/
+	public interface OnChangeListener{
+		void onPhotographChanged(Photograph pic);
+	}
 	
 	/***************************************************************************
 	 * Class constructor
@@ -67,7 +115,10 @@ public class Photograph extends View{
 			scrubbedSource = null;
 			source = null;
 		}
-		else aspectRatio = ((float)source.getWidth()/source.getHeight());			//calc and save the aspect ratio of the original image
+		else{
+			aspectRatio = ((float)source.getWidth()/source.getHeight());		//calc and save the aspect ratio of the original image
+			hiResWidth = source.getWidth();
+		}
 		
 		wBmp = initWidth;														//the initial width is set as the current width
 		hBmp = (int)(wBmp/aspectRatio);											//accordingly the initial height is calculcated
@@ -86,8 +137,6 @@ public class Photograph extends View{
 		isMarked = false;
 		isPlayable = isMovie;
 		isLocked = false;
-		
-		MultiTouchActivity.logHeap();
 	}
 	
 	/*******************************************************************************
@@ -161,18 +210,14 @@ public class Photograph extends View{
 	 ***************************************************************************/
 	protected void onDraw(Canvas c){
 		
-		Stopwatch timerDraw = new Stopwatch();
-		timerDraw.start();
-				
-		painter = new Paint();										//initialize the painter	
-		initCoordinates();											//re-initialize your coordinates (this is important as it handles translation)
+		if(drawThumbnail(c)) return;								//idle thumbnails take the short way
+		
+		painter.reset();											//reset the painter
+		updateGeometry();											//recalculate the coordinates, the region of interest and the area to invalidate
 		
 		int pivotX = (left + wBmp/2);								//calculate the center of this rectangle (which will be drawn upon)								
 		int pivotY = (top + hBmp/2);								//this center will act as the pivot for all rotation and scaling								
 		
-		transformROI(pivotX,pivotY);								//transform the Region of Interest about this pivot
-		setAreaToInvalidate();										//calculate our area to invalidate using this ROI
-		
 		//debugDraw(c);												//draw the ROI and invalid area
 				
 		c.save();													//save the current canvas 
@@ -183,7 +228,11 @@ public class Photograph extends View{
 		 * - then there is the white border around the image (for the classic photograph look)
 		 * - after that we have to draw the bitmap of the image
 		 * - if the image needs to be checked/marked, we need to draw the green check box on it
+		 * 
+		 * The check box, the lock and the play icon are pre-rendered sprites (see DecorationCache). They are left out when the
+		 * photo is drawn too small on screen for them to be made out
 		 */
+		boolean isDecorated = wBmp * sx * getZoom() >= MIN_DECORATED_WIDTH;
 		
 		//Step 1 - TRANSFORMATIONS APPLIED ONTO THE CANVAS
 		c.scale(sx, sy,pivotX,pivotY);								//scale by the specified amount about the center 
@@ -195,19 +244,21 @@ public class Photograph extends View{
 			//the aura is achieved by drawing a translucent rounded rectangle of a size larger than the image rectangle 
 			painter.setColor(Color.YELLOW);
 			painter.setAlpha(50);
-			RectF highlightRect = new RectF(left-border-HIGHLIGHT_WIDTH, top-border-HIGHLIGHT_WIDTH, right+border+HIGHLIGHT_WIDTH, bottom+border+HIGHLIGHT_WIDTH);
+			highlightRect.set(left-border-HIGHLIGHT_WIDTH, top-border-HIGHLIGHT_WIDTH, right+border+HIGHLIGHT_WIDTH, bottom+border+HIGHLIGHT_WIDTH);
 			c.drawRoundRect(highlightRect, 15, 15, painter);
 		}
 				
-		//Step 3 - DRAW THE WHITE PICTURE BORDER
+		//Step 3 - DRAW THE WHITE PICTURE BORDER (with a grey cross where the image will be, while there are no pixels to show)
 		painter.setColor(Color.WHITE);
-		Rect whiteBorder = new Rect(left - border, top - border, right + border, bottom + border);
-		c.drawRect(whiteBorder, painter);
-		painter.setColor(Color.LTGRAY);
-		painter.setStrokeWidth(10);
-		int offset = wBmp / 5;
-		c.drawLine(whiteBorder.left+offset, whiteBorder.top+offset, whiteBorder.right-offset, whiteBorder.bottom-offset, painter);
-		c.drawLine(whiteBorder.right-offset, whiteBorder.top+offset, whiteBorder.left+offset, whiteBorder.bottom-offset, painter);
+		paintedArea.set(left - border, top - border, right + border, bottom + border);
+		c.drawRect(paintedArea, painter);
+		if(source == null && scrubbedSource == null && movieFrame == null){
+			painter.setColor(Color.LTGRAY);
+			painter.setStrokeWidth(10);
+			int offset = wBmp / 5;
+			c.drawLine(paintedArea.left+offset, paintedArea.top+offset, paintedArea.right-offset, paintedArea.bottom-offset, painter);
+			c.drawLine(paintedArea.right-offset, paintedArea.top+offset, paintedArea.left+offset, paintedArea.bottom-offset, painter);
+		}
 		
 		//Step 4 - DRAW THE ACTUAL BITMAP FOR THIS PICTURE
 		
@@ -217,92 +268,238 @@ public class Photograph extends View{
 		 * bitmap. If you need a faster drawing, you can set the flag to false. If speed is not of the essence, and you're more worried about
 		 * quality, then set it to true*/
 		
-		Rect paintedArea = new Rect(left,top,right,bottom);						//define the area (rectangle) to be drawn upon using coords calculated earlier
+		paintedArea.set(left,top,right,bottom);									//define the area (rectangle) to be drawn upon using coords calculated earlier
 		painter.setAlpha(255);													//this must be drawn at maximum opacity
 		
-		if(source!=null && isHighQuality)
-			c.drawBitmap(source, null, paintedArea, painter);					//if higher quality is needed, draw this
-		else if(scrubbedSource!=null && !isHighQuality) 
-			c.drawBitmap(scrubbedSource, null, paintedArea, painter);			//else draw this
+		if(movieFrame!=null){
+			if(hasEffects()) painter.setColorFilter(effects.getFilter());		//the frames change all the time - no point in keeping filtered copies
+			c.drawBitmap(movieFrame, null, paintedArea, painter);				//a movie tile that is playing shows its current frame
+			painter.setColorFilter(null);
+		}
+		else if(source!=null && isHighQuality && !isQualityCapped)
+			drawImage(c, LEVEL_HIGH, source);									//if higher quality is needed, draw this
+		else if(scrubbedSource!=null) 
+			drawImage(c, LEVEL_SCRUBBED, scrubbedSource);						//else draw this (also while a compressed source is being decoded)
 		
+		//if the photo has been enlarged beyond the resolution of its source, draw tiles of the original over the visible part
+		float drawnWidth = wBmp * sx * getZoom();
+		if(tiledImage != null && movieFrame == null && drawnWidth > hiResWidth && getVisibleArea(paintedArea, pivotX, pivotY)){
+			tiledImage.setColorFilter(hasEffects()? effects.getFilter() : null);	//only a few tiles are ever visible, they are filtered as they are drawn
+			tiledImage.draw(c, paintedArea, visibleArea, drawnWidth, hiResWidth, this);
+		}
 		
-		//step 7 - Draw the MEDIA PLAYER icon if neccessary
-		if(isPlayable){
-			
-			painter.setColor(Color.WHITE);
-			painter.setAlpha(200);
-			
-			painter.setStyle(Style.STROKE);
-			painter.setStrokeWidth(5);
-			c.drawCircle(pivotX, pivotY, wBmp/6, painter);
+		
+		//step 5 - Draw the MEDIA PLAYER icon if neccessary (only while the movie is not playing)
+		if(isPlayable && movieFrame == null && isDecorated){
 			
-			painter.setStyle(Style.FILL);
-			Path triangle = new Path();
-			triangle.moveTo(pivotX - wBmp/24,pivotY - wBmp/12);
-			triangle.lineTo(pivotX - wBmp/24,pivotY + wBmp/12);
-			triangle.lineTo(pivotX + wBmp/12,pivotY);
-			c.drawPath(triangle, painter);
+			float radius = wBmp/6.0f;
+			int spriteRadius = DecorationCache.getPlayRadius(radius);
+			float half = (spriteRadius + DecorationCache.PLAY_STROKE) * radius / spriteRadius;		//the sprite is scaled down to this radius
+			spriteArea.set(pivotX - half, pivotY - half, pivotX + half, pivotY + half);
+			painter.setFilterBitmap(true);
+			c.drawBitmap(DecorationCache.getPlayIcon(radius), null, spriteArea, painter);
 		}
 		
 		//Step 6 - DRAW THE CHECKBOX IF NECESSARY (check the isMarked flag)
 		if(isMarked){
 			
-			Rect selectableArea = new Rect(left - border, top - border, right + border, bottom + border);
+			paintedArea.set(left - border, top - border, right + border, bottom + border);
 			painter.setColor(Color.argb(50, 0, 50, 0));
-			c.drawRect(selectableArea, painter);
-			
-			//The checkbox contains a green rounded rectangle with a white tick mark on it. The green box is outlined by a lighter green color
-			//Here are the rectangles for the outline and the filled are for the checkbox
-			RectF markerRectOutline = new RectF(left-border*2,top-border*2,left+MARKER_SIZE,top+MARKER_SIZE);
-			RectF markerRectFill = new RectF(left-border*2 + 1,top-border*2+1,left+MARKER_SIZE-1,top+MARKER_SIZE-1);
-			
-			painter.setColor(Color.argb(255,0,178,0));							//choose a lighter and brighter green for the outline 
-			c.drawRoundRect(markerRectOutline,3,3,painter);						//draw the lighter green outline using rounded rectangle
-			
-			painter.setColor(Color.argb(250,0,128,0));							//choose a darker and less brighter green for the fill for the checkbox
-			c.drawRoundRect(markerRectFill,3,3,painter);						//draw this filled area
-			
-			painter.setColor(Color.WHITE);										//set the color to white for the tick mark
-			painter.setStrokeWidth(3);											//slightly thicker than normal
-			
-			//the tick mark has two line segments - a short part and a long part. To make it look nicer, i've added a little shadow to the longer segment
-			c.drawLine(markerRectOutline.left+5, markerRectOutline.bottom-10, markerRectOutline.left+10, markerRectOutline.bottom-5, painter);	//draw short segment
-			c.drawLine(markerRectOutline.left+8, markerRectOutline.bottom-5, markerRectOutline.right-5, markerRectOutline.top+5, painter);		//draw longer segment
+			c.drawRect(paintedArea, painter);
 			
+			if(isDecorated) c.drawBitmap(DecorationCache.getCheckbox(border), left - border*2, top - border*2, null);
 		}
 		
 		//Step 7 - Draw the LOCK if necessary
-		if(isLocked){
-			
-			RectF rectLockBase = new RectF(right-border,top,right+MARKER_SIZE,top+MARKER_SIZE);
-			
-			//draw the U shaped arm of the lock
-			painter.setColor(Color.GRAY);
-			painter.setStyle(Style.STROKE);
-			c.drawCircle(rectLockBase.left + rectLockBase.width()/2, rectLockBase.top, rectLockBase.width()/3, painter);
-			
-			//draw the base of the lock
-			painter.setColor(Color.argb(250,249,200,30));
-			painter.setStyle(Style.FILL);
-			c.drawRoundRect(rectLockBase,3, 3, painter);
-			
-			int lockCenterX = (int) (rectLockBase.left + rectLockBase.width()/2);
-			int lockCenterY = (int) (rectLockBase.top + rectLockBase.height()/2);
-			
-			//draw the keyhole
-			painter.setColor(Color.BLACK);
-			painter.setStrokeWidth(1);
-			c.drawCircle(lockCenterX,lockCenterY, 2, painter);
-			c.drawLine(lockCenterX,lockCenterY,lockCenterX,lockCenterY+border*2,painter);
+		if(isLocked && isDecorated){
+			c.drawBitmap(DecorationCache.getLock(border), right - border, top - DecorationCache.getLockOverhang(border), null);
 		}
 						
 		c.restore();															//restore the canvas to original state
-						
-		long ticks = timerDraw.stop();
-		//Log.i("-----------------DRAWING PIC" + this.getTag(), " took " + ticks + "millisec");
 		
 	}
 	
+	/*******************************************************************************
+	 * Draws one of the bitmaps of this photo into the painted area. With effects,
+	 * the filtered copy for its quality level is drawn. Until that copy has been
+	 * made, the filtered scrubbed copy stands in for the high quality one, and if
+	 * there is no copy at all yet the bitmap is drawn through the colour filter
+	 * 
+	 * @param level - LEVEL_HIGH or LEVEL_SCRUBBED
+	 * @param bmp - the bitmap of that level
+	 *******************************************************************************/
+	private void drawImage(Canvas c, int level, Bitmap bmp){
+		
+		if(!hasEffects()){
+			c.drawBitmap(bmp, null, paintedArea, painter);
+			return;
+		}
+		
+		Bitmap copy = getFiltered(level, bmp);
+		if(copy == null && level == LEVEL_HIGH && scrubbedSource != null) copy = getFiltered(LEVEL_SCRUBBED, scrubbedSource);
+		if(copy != null){
+			c.drawBitmap(copy, null, paintedArea, painter);
+			return;
+		}
+		
+		painter.setColorFilter(effects.getFilter());
+		c.drawBitmap(bmp, null, paintedArea, painter);
+		painter.setColorFilter(null);
+	}
+	
+	/*******************************************************************************
+	 * @return - the filtered copy of the bitmap of a quality level, or null if it
+	 * is not up to date (a new copy is asked for then, unless one is on its way)
+	 *******************************************************************************/
+	private Bitmap getFiltered(int level, Bitmap from){
+		
+		int version = effects.getVersion();
+		if(filtered[level] != null && filteredFrom[level] == from && filteredVersion[level] == version) return filtered[level];
+		
+		if(effectRenderer != null && (pendingFrom[level] != from || pendingVersion[level] != version)){
+			pendingFrom[level] = from;
+			pendingVersion[level] = version;
+			effectRenderer.render(this, level, from, effects);
+		}
+		return null;
+	}
+	
+	/*******************************************************************************
+	 * Takes a filtered copy from the renderer (on the UI thread). The copy is
+	 * refused if the bitmap it was made from or the effects have changed since
+	 * 
+	 * @return - false if the copy was refused - the caller puts it back into the pool
+	 *******************************************************************************/
+	boolean setFiltered(int level, Bitmap copy, Bitmap from, int version, BitmapPool pool){
+		
+		if(pendingFrom[level] == from && pendingVersion[level] == version) pendingFrom[level] = null;
+		
+		Bitmap current = (level == LEVEL_HIGH)? source : scrubbedSource;
+		if(!hasEffects() || from != current || version != effects.getVersion()) return false;
+		
+		pool.put(filtered[level]);
+		filtered[level] = copy;
+		filteredFrom[level] = from;
+		filteredVersion[level] = version;
+		invalidate(rectInvalidate);
+		return true;
+	}
+	
+	private void releaseFiltered(int level, BitmapPool pool){
+		pool.put(filtered[level]);
+		filtered[level] = null;
+		filteredFrom[level] = null;
+	}
+	
+	private boolean hasEffects(){
+		return effects != null && !effects.isIdentity();
+	}
+	
+	/*******************************************************************************
+	 * Gives this photo colour effects (null for none). Call refresh() after the
+	 * stack has been changed - the filtered copies made with the old parameters
+	 * are replaced as the new ones come in
+	 * 
+	 * @param stack - the effects, owned by this photo from now on
+	 * @param renderer - makes the filtered copies of the bitmaps
+	 *******************************************************************************/
+	public void setEffects(EffectStack stack, EffectRenderer renderer){
+		effects = stack;
+		effectRenderer = renderer;
+		if(!hasEffects() && renderer != null){
+			releaseFiltered(LEVEL_HIGH, renderer.getPool());
+			releaseFiltered(LEVEL_SCRUBBED, renderer.getPool());
+		}
+		invalidate(rectInvalidate);
+	}
+	
+	public EffectStack getEffects(){
+		return effects;
+	}
+	
+	/*******************************************************************************
+	 * Recalculates the coordinates of the image, transforms the region of interest
+	 * and computes the area to invalidate. This is done at the start of every draw,
+	 * but the board also calls it before drawing to find out which photos can be
+	 * seen at all. Nothing is done unless the transform or the size of the view has
+	 * changed since the last time
+	 *******************************************************************************/
+	public void updateGeometry(){
+		
+		if(isGeometryValid && geometryWidth == getWidth() && geometryHeight == getHeight()) return;
+		isGeometryValid = true;
+		geometryWidth = getWidth();
+		geometryHeight = getHeight();
+		
+		initCoordinates();											//re-initialize your coordinates (this is important as it handles translation)
+		
+		int pivotX = (left + wBmp/2);								//the center of the drawn rectangle is the pivot
+		int pivotY = (top + hBmp/2);
+		
+		transformROI(pivotX,pivotY);								//transform the Region of Interest about this pivot
+		setAreaToInvalidate();										//calculate our area to invalidate using this ROI
+	}
+	
+	/*******************************************************************************
+	 * Computes the axis aligned rectangle that holds everything this photo draws -
+	 * the transformed image plus the border, the aura and the markers around it.
+	 * updateGeometry() must have been called before this
+	 * 
+	 * @param out - receives the bounds
+	 *******************************************************************************/
+	public void getBounds(RectF out){
+		
+		getImageBounds(out);
+		
+		//the decorations stick out of the image by at most this much (before scaling) - rotating them can add up to half as much again
+		float margin = (border*2 + HIGHLIGHT_WIDTH + MARKER_SIZE) * Math.max(sx, sy) * 1.5f;
+		out.inset(-margin, -margin);
+	}
+	
+	/*******************************************************************************
+	 * Computes the axis aligned rectangle around the transformed image alone (no
+	 * border or decorations). updateGeometry() must have been called before this
+	 * 
+	 * @param out - receives the bounds
+	 *******************************************************************************/
+	public void getImageBounds(RectF out){
+		
+		out.set(topLeft.x, topLeft.y, topLeft.x, topLeft.y);
+		out.union(topRight.x, topRight.y);
+		out.union(botLeft.x, botLeft.y);
+		out.union(botRight.x, botRight.y);
+	}
+	
+	/*******************************************************************************
+	 * @return - true if this photo covers everything beneath its drawn area, which is
+	 * the case once its bitmap is loaded, has no transparency and is not fading in
+	 *******************************************************************************/
+	public boolean isOpaque(){
+		
+		Bitmap drawn = (isHighQuality && !isQualityCapped && source != null)? source : scrubbedSource;
+		if(drawn == null || drawn.hasAlpha()) return false;
+		if(getAnimation() != null && !getAnimation().hasEnded()) return false;
+		return true;
+	}
+	
+	/*******************************************************************************
+	 * @return - true if the rectangle lies completely inside the region of interest
+	 *******************************************************************************/
+	public boolean containsRect(RectF r){
+		return isInROI(r.left, r.top) && isInROI(r.right, r.top) && isInROI(r.left, r.bottom) && isInROI(r.right, r.bottom);
+	}
+	
+	/*******************************************************************************
+	 * Same test as isPointInROI(), but without creating any objects - the board calls
+	 * this for many photos on every frame
+	 *******************************************************************************/
+	private boolean isInROI(float x, float y){
+		return ((y-topLeft.y)*(topRight.x-topLeft.x) - (x-topLeft.x)*(topRight.y-topLeft.y)) >= 0
+			&& ((y-topRight.y)*(botRight.x-topRight.x) - (x-topRight.x)*(botRight.y-topRight.y)) >= 0
+			&& ((y-botRight.y)*(botLeft.x-botRight.x) - (x-botRight.x)*(botLeft.y-botRight.y)) >= 0
+			&& ((y-botLeft.y)*(topLeft.x-botLeft.x) - (x-botLeft.x)*(topLeft.y-botLeft.y)) >= 0;
+	}
+	
 	/*******************************************************************************
 	 * This routine is used to transform (scale and rotate) the REGION OF INTEREST
 	 * points by the specified rotation and scaling factors. This is needed as the 
@@ -317,15 +514,15 @@ public class Photograph extends View{
 		
 		//This is where the coords of the "region of interest" are recalculated after rotation and scaling has been applied
 		
-		topLeft  = getRotatedPoint(left,top,pivotX,pivotY,angleBmp);			//get top left corner after rotation
-		topRight = getRotatedPoint(right,top,pivotX,pivotY,angleBmp);			//get top right corner after rotation
-		botLeft  = getRotatedPoint(left,bottom,pivotX,pivotY,angleBmp);			//get bot left corner after rotation
-		botRight = getRotatedPoint(right,bottom,pivotX,pivotY,angleBmp);		//get bot right corner after rotation	
+		getRotatedPoint(left,top,pivotX,pivotY,angleBmp,topLeft);				//get top left corner after rotation
+		getRotatedPoint(right,top,pivotX,pivotY,angleBmp,topRight);				//get top right corner after rotation
+		getRotatedPoint(left,bottom,pivotX,pivotY,angleBmp,botLeft);			//get bot left corner after rotation
+		getRotatedPoint(right,bottom,pivotX,pivotY,angleBmp,botRight);			//get bot right corner after rotation	
 		
-		topLeft = getScaledPoint(topLeft.x,topLeft.y,pivotX,pivotY,sx,sy);		//get top left after scaling
-		topRight = getScaledPoint(topRight.x,topRight.y,pivotX,pivotY,sx,sy);	//get top right after scaling
-		botLeft = getScaledPoint(botLeft.x,botLeft.y,pivotX,pivotY,sx,sy);		//get the bot left after scaling
-		botRight = getScaledPoint(botRight.x,botRight.y,pivotX,pivotY,sx,sy);	//get the bot right after scaling
+		getScaledPoint(topLeft,pivotX,pivotY,sx,sy);							//get top left after scaling
+		getScaledPoint(topRight,pivotX,pivotY,sx,sy);							//get top right after scaling
+		getScaledPoint(botLeft,pivotX,pivotY,sx,sy);							//get the bot left after scaling
+		getScaledPoint(botRight,pivotX,pivotY,sx,sy);							//get the bot right after scaling
 		
 		/*//debug
 		Log.i("REGION OF INTEREST"," Top Left :" + ""+topLeft.x+","+topLeft.y);
@@ -335,6 +532,50 @@ public class Photograph extends View{
 		*/
 	}
 	
+	/*******************************************************************************
+	 * @return - the zoom of the board's camera (1 if this photo isn't on a board)
+	 *******************************************************************************/
+	private float getZoom(){
+		return (getParent() instanceof Board)? ((Board)getParent()).getZoom() : 1.0f;
+	}
+	
+	/*******************************************************************************
+	 * Works out which part of the drawn area can actually be seen, by taking the
+	 * corners of the visible world area back through the scaling and rotation of
+	 * the canvas. The result (in the coordinates of the drawn area) is left in visibleArea
+	 * 
+	 * @return - false if no part of the drawn area is visible
+	 *******************************************************************************/
+	private boolean getVisibleArea(Rect drawnArea, int pivotX, int pivotY){
+		
+		visibleArea.setEmpty();
+		boolean first = true;
+		float radians = (float) (-angleBmp * Math.PI / 180);
+		float kc = (float) Math.cos(radians);
+		float ks = (float) Math.sin(radians);
+		
+		RectF world = (getParent() instanceof Board)? ((Board)getParent()).getViewport() : new RectF(0, 0, getWidth(), getHeight());
+		
+		for(int corner = 0; corner < 4; corner++){
+			
+			float x = (corner % 2 == 0)? world.left : world.right;
+			float y = (corner < 2)? world.top : world.bottom;
+			
+			x = pivotX + (x - pivotX) / sx;										//undo the scaling...
+			y = pivotY + (y - pivotY) / sy;
+			float xr = pivotX + (kc*(x-pivotX) - ks*(y-pivotY));				//...then the rotation
+			float yr = pivotY + (ks*(x-pivotX) + kc*(y-pivotY));
+			
+			if(first){
+				visibleArea.set(xr, yr, xr, yr);
+				first = false;
+			}
+			else visibleArea.union(xr, yr);
+		}
+		
+		return visibleArea.intersect(drawnArea.left, drawnArea.top, drawnArea.right, drawnArea.bottom);
+	}
+	
 	/*******************************************************************************
 	 * This method is used to dynamically compute the area to redraw. The reason we need
 	 * to constantly do this is because redrawing the view is quite expensive, specially
@@ -389,19 +630,15 @@ public class Photograph extends View{
 	}
 	
 	/***************************************************************************
-	 * This returns the coordinates of a point after a scaling of sx and sy would
-	 * be performed on it
+	 * This moves a point to where a scaling of sx and sy would put it
 	 * 
-	 * @param x	- current X coordinate of the point
-	 * @param y	- current Y coordinate of the point
+	 * @param p	- the point, which receives the scaled coordinates
 	 * @param xc- X coord of the center of scaling (the point about which scaling will happen)
 	 * @param yc- Y coord of the center of scaling (the point about which scaling will happen)
 	 * @param sx- scaling factor along x direction 
 	 * @param sy- scaling factor along y direction
-	 * @return A PointF object that contains the coords of the point (x,y) if a scaling
-	 * of sx and sy are applied.
 	 ***************************************************************************/
-	private PointF getScaledPoint(float x, float y, int xc, int yc, float sx, float sy){
+	private void getScaledPoint(PointF p, int xc, int yc, float sx, float sy){
 		
 		/* Logic for this formula is simple. If we transfer the coordinate system from (0,0) to (xc, yc)
 		* any point (x,y) will now be represented as (x-xc,y-yc). Therefore scaling by sx and sy would result
@@ -410,10 +647,8 @@ public class Photograph extends View{
 		* now we transfer the point back to the origin (by adding xc and xy respectively) so we get
 		* (H + xc),(K + yc) --> solving these you will get (x*sx - xc*(sx-1)),(y*sy - yc*(sy-1))
 		*/
-		PointF scaledPoint = new PointF();
-		scaledPoint.x = x*sx - xc*(sx-1);
-		scaledPoint.y = y*sy - yc*(sy-1);		
-		return scaledPoint;
+		p.x = p.x*sx - xc*(sx-1);
+		p.y = p.y*sy - yc*(sy-1);		
 	}
 	
 	/**************************************************************************
@@ -425,11 +660,9 @@ public class Photograph extends View{
 	 * @param xc- x coordinate of the pivot 
 	 * @param yc- y coordinate of the pivot
 	 * @param degrees - angle of rotation in degrees
-	 * @return a PointF object that contains the point coordinates after rotation
+	 * @param rotatedPointCoords - receives the point coordinates after rotation
 	 **************************************************************************/
-	private PointF getRotatedPoint(int x, int y, int xc, int yc, float degrees){
-		
-		PointF rotatedPointCoords = new PointF();
+	private void getRotatedPoint(int x, int y, int xc, int yc, float degrees, PointF rotatedPointCoords){
 		
 		if(degrees != 0){
 			
@@ -448,8 +681,6 @@ public class Photograph extends View{
 			rotatedPointCoords.x = x;
 			rotatedPointCoords.y = y;
 		}
-		
-		return rotatedPointCoords;
 	}
 	
 	/*******************************************************************************
@@ -514,16 +745,275 @@ public class Photograph extends View{
 	
 	public void setLabel(String message){
 		label = message;
+		notifyChanged();
 		invalidate(rectInvalidate);
 	}
 	
+	public String getLabel(){
+		return label;
+	}
+	
+	public void setResourceId(int id){
+		resourceId = id;
+	}
+	
+	public int getResourceId(){
+		return resourceId;
+	}
+	
+	public void setOnChangeListener(OnChangeListener listener){
+		changeListener = listener;
+	}
+	
+	/*******************************************************************************
+	 * lets the listener (if any) know that the state of this photo has changed
+	 *******************************************************************************/
+	private void notifyChanged(){
+		if(changeListener != null) changeListener.onPhotographChanged(this);
+	}
+	
+	/*******************************************************************************
+	 * Puts this photograph back into a previously saved state. Nothing is redrawn
+	 * here and the listener is not told - this is meant to be used while the board
+	 * is being rebuilt, before the photo is added to the parent
+	 * 
+	 * @param width - the width of the drawn area
+	 * @param height - the height of the drawn area
+	 *******************************************************************************/
+	public void restoreState(int width, int height, float transX, float transY, float angle, float scaleX, float scaleY,
+			boolean marked, boolean locked, String text){
+		
+		wBmp = width;
+		hBmp = height;
+		aspectRatio = ((float)width)/height;
+		tx = transX; ty = transY;
+		angleBmp = angle;
+		sx = scaleX; sy = scaleY;
+		isGeometryValid = false;
+		isMarked = marked;
+		isLocked = locked;
+		label = (text == null)?"":text;
+		initCoordinates();
+	}
+	
+	/*******************************************************************************
+	 * Supplies the bitmaps for a photo that was created without them (e.g. one that
+	 * was restored from a snapshot). The geometry of the photo is left untouched
+	 * 
+	 * @param content - the high quality bitmap
+	 * @param lowQuality - the scrubbed version of the same bitmap
+	 *******************************************************************************/
+	public void setContent(Bitmap content, Bitmap lowQuality){
+		source = content;
+		scrubbedSource = lowQuality;
+		isEvicted = false;
+		if(source != null) hiResWidth = source.getWidth();
+		invalidate(rectInvalidate);
+	}
+	
+	/*******************************************************************************
+	 * Hands the bitmaps of this photo over to the pool. This is called when the photo
+	 * leaves the board - it will draw nothing but its border after this
+	 * 
+	 * @param pool - the pool that will reuse these bitmaps
+	 *******************************************************************************/
+	public void releaseBitmaps(BitmapPool pool){
+		releaseFiltered(LEVEL_HIGH, pool);
+		releaseFiltered(LEVEL_SCRUBBED, pool);
+		releaseBitmap(source, pool);
+		releaseBitmap(scrubbedSource, pool);
+		source = null;
+		scrubbedSource = null;
+		compressedSource = null;
+		if(tiledImage != null) tiledImage.release();
+		tiledImage = null;
+	}
+	
+	/*******************************************************************************
+	 * Draws this photo from its copy in the thumbnail atlas, if that is possible
+	 * without a visible difference - the photo is idle, has no decorations and is
+	 * drawn no larger than the copy. This path allocates nothing
+	 * 
+	 * @return - false if the photo has to be drawn the regular way
+	 *******************************************************************************/
+	private boolean drawThumbnail(Canvas c){
+		
+		if(atlasPage == null || atlasCopyOf != scrubbedSource || movieFrame != null) return false;
+		if(isMarked || isLocked || isPlayable || getCountPointsOfContact() > 0 || hasEffects()) return false;
+		if(wBmp * sx * getZoom() > atlasRect.width()) return false;		//the copy would have to be stretched
+		
+		updateGeometry();
+		int pivotX = (left + wBmp/2);
+		int pivotY = (top + hBmp/2);
+		
+		c.save();
+		c.scale(sx, sy, pivotX, pivotY);
+		c.rotate(angleBmp, pivotX, pivotY);
+		
+		thumbnailPaint.setColor(Color.WHITE);									//the border (the image covers the rest of it)
+		thumbnailArea.set(left - border, top - border, right + border, bottom + border);
+		c.drawRect(thumbnailArea, thumbnailPaint);
+		
+		thumbnailArea.set(left, top, right, bottom);
+		c.drawBitmap(atlasPage, atlasRect, thumbnailArea, thumbnailPaint);
+		c.restore();
+		return true;
+	}
+	
+	/*******************************************************************************
+	 * Points this photo at its copy in the thumbnail atlas (all null when it is
+	 * not in the atlas)
+	 *******************************************************************************/
+	public void setAtlasEntry(Bitmap page, Rect rect, Bitmap copyOf){
+		atlasPage = page;
+		atlasRect = rect;
+		atlasCopyOf = copyOf;
+	}
+	
+	public Bitmap getScrubbedSource(){
+		return scrubbedSource;
+	}
+	
+	/*******************************************************************************
+	 * Shows a frame of the movie of this tile (null goes back to the poster). The
+	 * bitmap is owned by the movie player, which reuses it for later frames
+	 *******************************************************************************/
+	public void setMovieFrame(Bitmap frame){
+		movieFrame = frame;
+		invalidate(rectInvalidate);
+	}
+	
+	/*******************************************************************************
+	 * Drops all the pixels of this photo to free memory. Unlike releaseBitmaps()
+	 * the photo stays on the board and gets its pixels back through setContent()
+	 * 
+	 * @param pool - the pool that will reuse these bitmaps
+	 *******************************************************************************/
+	public void evictPixels(BitmapPool pool){
+		releaseFiltered(LEVEL_HIGH, pool);
+		releaseFiltered(LEVEL_SCRUBBED, pool);
+		releaseBitmap(source, pool);
+		releaseBitmap(scrubbedSource, pool);
+		source = null;
+		scrubbedSource = null;
+		compressedSource = null;
+		isEvicted = true;
+	}
+	
+	/*******************************************************************************
+	 * Gives this photo access to the full resolution original, which is used
+	 * when the photo is enlarged beyond the resolution of its source bitmap
+	 *******************************************************************************/
+	public void setTiledImage(TiledImage tiles){
+		tiledImage = tiles;
+	}
+	
+	public Bitmap getSource(){
+		return source;
+	}
+	
+	/*******************************************************************************
+	 * Replaces the high quality source with a decompressed one
+	 *******************************************************************************/
+	public void setSource(Bitmap content){
+		source = content;
+		hiResWidth = source.getWidth();
+		compressedSource = null;
+		if(isHighQuality) invalidate(rectInvalidate);
+	}
+	
+	public byte[] getCompressedSource(){
+		return compressedSource;
+	}
+	
+	/*******************************************************************************
+	 * Keeps only a compressed copy of the high quality source. The bitmap itself
+	 * goes back to the pool - the scrubbed copy is drawn until it is decompressed
+	 * 
+	 * @param data - the compressed source image
+	 * @param pool - the pool that will reuse the source bitmap
+	 *******************************************************************************/
+	public void setCompressedSource(byte[] data, BitmapPool pool){
+		releaseFiltered(LEVEL_HIGH, pool);
+		compressedSource = data;
+		releaseBitmap(source, pool);
+		source = null;
+	}
+	
+	/*******************************************************************************
+	 * Keeps a bitmap of this photo out of the pool while a worker reads from it.
+	 * Every pin() is matched by an unpin() on the UI thread once the job is done
+	 *******************************************************************************/
+	void pin(Bitmap bmp){
+		pinned.add(bmp);
+	}
+	
+	/*******************************************************************************
+	 * Ends one job on a bitmap. If the photo let go of the bitmap in the meantime
+	 * and no other job needs it, it goes to the pool now
+	 *******************************************************************************/
+	void unpin(Bitmap bmp, BitmapPool pool){
+		pinned.remove(bmp);
+		if(!pinned.contains(bmp) && parked.remove(bmp)) pool.put(bmp);
+	}
+	
+	/*******************************************************************************
+	 * Hands a bitmap this photo no longer uses to the pool, unless it is pinned
+	 *******************************************************************************/
+	private void releaseBitmap(Bitmap bmp, BitmapPool pool){
+		if(bmp == null) return;
+		if(!pinned.contains(bmp)) pool.put(bmp);
+		else if(!parked.contains(bmp)) parked.add(bmp);
+	}
+	
+	/*******************************************************************************
+	 * @return - the number of bytes held by the pixels of this photo
+	 *******************************************************************************/
+	public int getResidentBytes(){
+		int bytes = 0;
+		if(source != null) bytes += BitmapPool.getBytes(source);
+		if(scrubbedSource != null) bytes += BitmapPool.getBytes(scrubbedSource);
+		if(compressedSource != null) bytes += compressedSource.length;
+		for(int level = 0; level < filtered.length; level++){
+			if(filtered[level] != null) bytes += BitmapPool.getBytes(filtered[level]);
+		}
+		if(movieFrame != null) bytes += 2 * BitmapPool.getBytes(movieFrame);	//the player keeps two buffers of this size
+		return bytes;
+	}
+	
+	public int getInitWidth(){
+		return wBmp;
+	}
+	
+	public int getInitHeight(){
+		return hBmp;
+	}
+	
+	public float getTx(){
+		return tx;
+	}
+	
+	public float getTy(){
+		return ty;
+	}
+	
+	public float getSx(){
+		return sx;
+	}
+	
+	public float getSy(){
+		return sy;
+	}
+	
 	/**************************************************************************
 	 * Set the angle of inclination of the drawing
 	 * @param degrees - the angle in degrees by which the drawing needs to be rotated
 	 **************************************************************************/
 	public void setAngle(float degrees){
 		angleBmp = degrees;
+		isGeometryValid = false;
 		isHighQuality = true;
+		notifyChanged();
 		invalidate(rectInvalidate);
 	}
 	/**************************************************************************
@@ -552,14 +1042,47 @@ public class Photograph extends View{
 		
 		if(sxNew > MIN_SCALE_VAL) sx = sxNew;
 		if(syNew > MIN_SCALE_VAL) sy = syNew;
+		isGeometryValid = false;
 				
 		isHighQuality = true;
+		notifyChanged();
 		invalidate();
 	}
 	
 	
+	/**************************************************************************
+	 * Rotates and scales the image in one go (with a single redraw). Same as
+	 * calling setAngle() and setScale() one after the other
+	 * 
+	 * @param degrees - the angle by which the rotation changes
+	 * @param scaleFactor - an integral value (for coarse adjustment)
+	 * @param granularity - a float value (for fine adjustment)
+	 **************************************************************************/
+	public void rotateAndScale(float degrees, int scaleFactor, float granularity){
+		
+		angleBmp += degrees;
+		if(!isLocked){
+			float sxNew = sx + scaleFactor * granularity;
+			float syNew = sy + scaleFactor * granularity;
+			if(sxNew > MIN_SCALE_VAL) sx = sxNew;
+			if(syNew > MIN_SCALE_VAL) sy = syNew;
+		}
+		isGeometryValid = false;
+		
+		isHighQuality = true;
+		notifyChanged();
+		invalidate();
+	}
+	
 	public void setMarker(boolean isChecked){
 		isMarked = isChecked;
+		notifyChanged();
+		invalidate(rectInvalidate);
+	}
+	
+	public void setLock(boolean locked){
+		isLocked = locked;
+		notifyChanged();
 		invalidate(rectInvalidate);
 	}
 	
@@ -568,14 +1091,84 @@ public class Photograph extends View{
 	 * @param x - amount to translate along x
 	 * @param y - amount to translate along y
 	 *******************************************************************************/
-	public void translate(int x,int y){
+	public void translate(float x,float y){
 		if(isLocked) return;
 		tx += x;
 		ty += y;	
+		isGeometryValid = false;
 		isHighQuality = true;
+		notifyChanged();
 		invalidate();
 	}
 	
+	/*******************************************************************************
+	 * Moves, rotates and scales this photo as a member of a group. The center of the
+	 * photo is rotated and scaled about the pivot of the group, and then translated.
+	 * Nothing is redrawn here - the caller redraws the whole group at once
+	 * 
+	 * @param dx - translation along x (world coordinates)
+	 * @param dy - translation along y (world coordinates)
+	 * @param degrees - rotation in degrees
+	 * @param scale - multiplier for the scaling factors
+	 * @param pivotX - x coord of the pivot of the group
+	 * @param pivotY - y coord of the pivot of the group
+	 *******************************************************************************/
+	public void applyGroupTransform(float dx, float dy, float degrees, float scale, float pivotX, float pivotY){
+		
+		if(isLocked) return;
+		
+		float xc = getWidth()/2 + tx + wBmp/2;								//the current center of the picture
+		float yc = getHeight()/2 + ty + hBmp/2;
+		
+		if(sx * scale <= MIN_SCALE_VAL || sy * scale <= MIN_SCALE_VAL) scale = 1;	//same limit as setScale()
+		
+		float radians = (float) (degrees * Math.PI / 180);
+		float kc = (float) Math.cos(radians) * scale;
+		float ks = (float) Math.sin(radians) * scale;
+		
+		float xNew = pivotX + (kc*(xc-pivotX) - ks*(yc-pivotY)) + dx;
+		float yNew = pivotY + (ks*(xc-pivotX) + kc*(yc-pivotY)) + dy;
+		
+		tx += xNew - xc;
+		ty += yNew - yc;
+		angleBmp += degrees;
+		sx *= scale;
+		sy *= scale;
+		isGeometryValid = false;
+		isHighQuality = true;
+		notifyChanged();
+	}
+	
+	/*******************************************************************************
+	 * Puts this photo at a translation, angle and scale in one go. Nothing is
+	 * redrawn here - this is meant for animations that move many photos and then
+	 * redraw the whole board once per frame
+	 * 
+	 * @param isFinal - whether this is the last step, which the listener is told of
+	 *******************************************************************************/
+	public void setTransform(float transX, float transY, float angle, float scaleX, float scaleY, boolean isFinal){
+		tx = transX; ty = transY;
+		angleBmp = angle;
+		sx = scaleX; sy = scaleY;
+		isGeometryValid = false;
+		if(isFinal) notifyChanged();
+	}
+	
+	/*******************************************************************************
+	 * @param out - receives the center of the picture (world coordinates)
+	 *******************************************************************************/
+	public void getCenter(PointF out){
+		out.x = getWidth()/2 + tx + wBmp/2;
+		out.y = getHeight()/2 + ty + hBmp/2;
+	}
+	
+	/*******************************************************************************
+	 * @param out - receives the area that has to be redrawn when this photo changes
+	 *******************************************************************************/
+	public void getAreaToInvalidate(Rect out){
+		out.set(rectInvalidate);
+	}
+	
 	/******************************************************************************
 	 * redraws or invalidates the part of the view that needs to be redrawn
 	 *******************************************************************************/
@@ -591,7 +1184,8 @@ public class Photograph extends View{
 	 * point
 	 *******************************************************************************/
 	public void addTouchPoint(TouchPoint point){
-				
+		
+		lastTouched = SystemClock.uptimeMillis();
 		for(int i=0; i < ptsOfContact.length; i++){
 			if(ptsOfContact[i] == null){
 				ptsOfContact[i] = point;
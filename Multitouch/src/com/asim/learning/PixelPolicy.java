@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * This class decides in which pixel format the bitmaps of a photo are kept.
+ *
+ * A photo holds two bitmaps - the high quality source (only drawn while the photo
+ * is being touched) and the scrubbed source (drawn the rest of the time). Keeping
+ * both of them in ARGB_8888 is wasteful:
+ *
+ *  - the scrubbed copy of an opaque image looks the same in RGB_565 at half the size
+ *  - the high quality source of a photo that nobody has touched for a while is not
+ *    drawn at all, so it can be kept compressed (as a JPEG in memory) instead
+ *
+ * Compressing and decompressing is done on a worker thread. When a photo is touched
+ * while its source is compressed, it keeps drawing the scrubbed copy until the worker
+ * has handed the decompressed source back.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+
+public class PixelPolicy {
+
+	final static long DEFAULT_IDLE_MILLIS = 15000;						//sources of photos untouched for this long get compressed
+	final static long SWEEP_INTERVAL = 5000;							//how often the board is checked for idle photos
+
+	public Bitmap.Config sourceConfig = Bitmap.Config.ARGB_8888;		//format of the high quality bitmap
+	public Bitmap.Config scrubbedConfig = Bitmap.Config.RGB_565;		//format of the scrubbed bitmap (for opaque images)
+	public boolean compressIdle = true;									//whether idle sources are compressed at all
+	public long idleMillis = DEFAULT_IDLE_MILLIS;
+	public Bitmap.CompressFormat idleFormat = Bitmap.CompressFormat.JPEG;
+	public int idleQuality = 90;
+
+	private BitmapPool pool;											//bitmaps released by compression go back in here
+	private ExecutorService worker = Executors.newSingleThreadExecutor();
+
+	private ViewGroup board;											//the container holding the photos
+	private boolean isSweeping;
+
+	private Runnable sweeper = new Runnable(){
+		public void run(){
+			sweep(idleMillis);
+			if(isSweeping) board.postDelayed(this, SWEEP_INTERVAL);
+		}
+	};
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param bitmapPool - pool from which decompressed sources are allocated
+	 * @param parent - the container that holds all the photographs
+	 ***************************************************************************/
+	public PixelPolicy(BitmapPool bitmapPool, ViewGroup parent){
+		pool = bitmapPool;
+		board = parent;
+		isSweeping = false;
+	}
+
+	/***************************************************************************
+	 * @param hasAlpha - whether the image has transparent pixels
+	 * @return - the config the scrubbed copy of this image should be kept in
+	 ***************************************************************************/
+	public Bitmap.Config getScrubbedConfig(boolean hasAlpha){
+		return hasAlpha? Bitmap.Config.ARGB_8888 : scrubbedConfig;			//RGB_565 has no alpha channel
+	}
+
+	/***************************************************************************
+	 * Starts checking the board for idle photos periodically
+	 ***************************************************************************/
+	public void startSweeping(){
+		if(isSweeping || !compressIdle) return;
+		isSweeping = true;
+		board.postDelayed(sweeper, SWEEP_INTERVAL);
+	}
+
+	public void stopSweeping(){
+		isSweeping = false;
+		board.removeCallbacks(sweeper);
+	}
+
+	/***************************************************************************
+	 * Compresses the sources of all photos that are not being drawn from them,
+	 * however recently they were touched (used when memory is tight)
+	 ***************************************************************************/
+	public void compressNow(){
+		sweep(0);
+	}
+
+	/***************************************************************************
+	 * Looks for photos that have not been touched for a while and compresses
+	 * their high quality source on the worker thread
+	 * 
+	 * @param idle - photos touched less than this many milliseconds ago are skipped
+	 ***************************************************************************/
+	private void sweep(long idle){
+
+		long now = SystemClock.uptimeMillis();
+
+		for(int i = 0; i < board.getChildCount(); i++){
+
+			View child = board.getChildAt(i);
+			if(!(child instanceof Photograph)) continue;
+
+			final Photograph pic = (Photograph)child;
+			final Bitmap source = pic.getSource();
+			if(source == null || pic.isCompressing || pic.getCountPointsOfContact() > 0 || now - pic.lastTouched < idle) continue;
+			if(!pic.isCulled && pic.isHighQuality && !pic.isQualityCapped) continue;	//on screen and refined - its source is being drawn
+
+			final long requested = now;
+			pic.isCompressing = true;
+			pic.pin(source);												//the source stays out of the pool until the job is done
+			worker.execute(new Runnable(){
+				public void run(){
+
+					byte[] compressed = null;
+					try{
+						ByteArrayOutputStream out = new ByteArrayOutputStream(BitmapPool.getBytes(source) / 8);
+						if(source.compress(idleFormat, idleQuality, out)) compressed = out.toByteArray();
+					}catch(RuntimeException e){
+						Log.e("PixelPolicy", "could not compress a source", e);
+					}
+					final byte[] data = compressed;
+
+					board.post(new Runnable(){
+						public void run(){
+							pic.isCompressing = false;
+							if(data != null && pic.lastTouched <= requested && pic.getSource() == source){	//not touched in the meantime
+								pic.setCompressedSource(data, pool);
+							}
+							pic.unpin(source, pool);
+						}
+					});
+				}
+			});
+		}
+	}
+
+	/***************************************************************************
+	 * Called when a photo is about to be drawn in high quality. If its source
+	 * is compressed, the worker decompresses it and hands it back to the photo
+	 ***************************************************************************/
+	public void requestSource(final Photograph pic){
+
+		final byte[] data = pic.getCompressedSource();
+		if(data == null || pic.isDecompressing) return;
+
+		pic.isDecompressing = true;
+		worker.execute(new Runnable(){
+			public void run(){
+
+				final Bitmap bmp = decompress(data);
+				board.post(new Runnable(){
+					public void run(){
+						pic.isDecompressing = false;
+						if(bmp == null){										//keep the compressed source, the next request tries again
+							Log.w("PixelPolicy", "could not decompress the source of photo " + pic.getTag());
+							return;
+						}
+						if(pic.getCompressedSource() == data) pic.setSource(bmp);
+						else pool.put(bmp);
+					}
+				});
+			}
+		});
+	}
+
+	/***************************************************************************
+	 * Decodes a compressed source, into a pooled bitmap where the platform allows it
+	 ***************************************************************************/
+	private Bitmap decompress(byte[] data){
+
+		BitmapFactory.Options opt = new BitmapFactory.Options();
+		opt.inPreferredConfig = sourceConfig;
+
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB){
+
+			opt.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(data, 0, data.length, opt);
+			opt.inJustDecodeBounds = false;
+			opt.inMutable = true;
+			opt.inBitmap = pool.get(opt.outWidth, opt.outHeight, sourceConfig);
+
+			try{
+				return BitmapFactory.decodeByteArray(data, 0, data.length, opt);
+			}catch(IllegalArgumentException e){
+				Log.i("PixelPolicy", "could not decompress into a pooled bitmap: " + e.getMessage());
+				pool.put(opt.inBitmap);
+				opt.inBitmap = null;
+			}
+		}
+		return BitmapFactory.decodeByteArray(data, 0, data.length, opt);
+	}
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Chooses the quality each photo is drawn in, based on how long the board actually
+ * takes to draw.
+ *
+ * Every photo wants to be drawn from its high quality source while it is being
+ * transformed (isHighQuality), and from its scrubbed source otherwise. With many
+ * photos on the board that is not always affordable, so this controller watches
+ * the time every frame of the board takes and keeps it within a budget:
+ *
+ *  - when the smoothed frame time goes over the budget, photos that are drawn in
+ *    high quality get capped to low quality - the ones nobody is touching first,
+ *    and the ones being touched only if that is still not enough
+ *  - when the frame time is comfortably under the budget, the caps are lifted again
+ *    a few photos at a time (bringing idle photos up to high quality is left to the
+ *    RefinementScheduler, which runs when there are no frames to measure)
+ *
+ * All the decisions and the frame time statistics are counted so that the budget
+ * and the steps can be tuned.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import android.view.View;
+
+public class QualityController implements Board.OnFrameListener {
+
+	final static int HISTORY = 120;											//number of frame times kept for the statistics
+
+	public float budgetMillis = 16.0f;										//the frame time to stay under
+	public float upgradeThreshold = 0.6f;									//caps are lifted when frames take less than this part of the budget
+	public float smoothing = 0.2f;											//weight of the newest frame in the smoothed frame time
+	public int upgradesPerFrame = 2;										//at most this many photos are upgraded per frame
+	public boolean isHeld;													//while set (memory is tight), caps are not lifted
+
+	private Board board;
+	private float smoothedMillis;											//exponential moving average of the frame time
+	private long[] history = new long[HISTORY];								//last frame times in microseconds
+	private int historyCount, historyNext;
+
+	private int downgrades, upgrades, framesOverBudget, frames;			//decisions and frame statistics
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param photoBoard - the board whose photos will be controlled
+	 ***************************************************************************/
+	public QualityController(Board photoBoard){
+		board = photoBoard;
+		smoothedMillis = 0;
+	}
+
+	/***************************************************************************
+	 * Called by the board after every frame it has drawn
+	 * @param drawNanos - the time it took to draw the frame
+	 ***************************************************************************/
+	public void onFrameDrawn(long drawNanos){
+
+		float millis = drawNanos / 1000000.0f;
+		smoothedMillis = (frames == 0)? millis : smoothedMillis + smoothing * (millis - smoothedMillis);
+
+		history[historyNext] = drawNanos / 1000;
+		historyNext = (historyNext + 1) % HISTORY;
+		if(historyCount < HISTORY) historyCount++;
+		frames++;
+
+		if(smoothedMillis > budgetMillis){
+			framesOverBudget++;
+			downgrade();
+		}
+		else if(smoothedMillis < budgetMillis * upgradeThreshold && !isHeld){
+			upgrade();
+		}
+	}
+
+	/***************************************************************************
+	 * Caps some of the photos that are drawn in high quality to low quality. A
+	 * quarter of them is capped per frame, photos that are not being touched first
+	 ***************************************************************************/
+	private void downgrade(){
+
+		int count = board.getChildCount();
+		int step = Math.max(1, count / 4);
+
+		for(int pass = 0; pass < 2 && step > 0; pass++){					//pass 0 - untouched photos, pass 1 - touched ones
+			for(int i = 0; i < count && step > 0; i++){
+
+				View child = board.getChildAt(i);
+				if(!(child instanceof Photograph)) continue;
+
+				Photograph pic = (Photograph)child;
+				boolean isTouched = pic.getCountPointsOfContact() > 0;
+				if(pic.isCulled || pic.isQualityCapped || !pic.isHighQuality || isTouched != (pass == 1)) continue;
+
+				pic.isQualityCapped = true;
+				downgrades++;
+				step--;
+			}
+			if(smoothedMillis < budgetMillis * 2) break;					//only touched photos suffer if things are really bad
+		}
+	}
+
+	/***************************************************************************
+	 * Lifts the caps of a few photos
+	 ***************************************************************************/
+	private void upgrade(){
+
+		int step = upgradesPerFrame;
+
+		for(Photograph pic = board.getTopPhoto(); pic != null && step > 0; pic = pic.zBelow){	//topmost photos first
+
+			if(pic.isCulled || !pic.isQualityCapped) continue;
+
+			pic.isQualityCapped = false;
+			pic.refresh();
+			upgrades++;
+			step--;
+		}
+	}
+
+	public float getSmoothedFrameMillis(){
+		return smoothedMillis;
+	}
+
+	/***************************************************************************
+	 * @return - the longest frame time in the recent history (milliseconds)
+	 ***************************************************************************/
+	public float getMaxFrameMillis(){
+		long max = 0;
+		for(int i = 0; i < historyCount; i++) max = Math.max(max, history[i]);
+		return max / 1000.0f;
+	}
+
+	public float getAverageFrameMillis(){
+		long sum = 0;
+		for(int i = 0; i < historyCount; i++) sum += history[i];
+		return (historyCount == 0)? 0 : sum / 1000.0f / historyCount;
+	}
+
+	public String toString(){
+		return "frame avg:" + getAverageFrameMillis() + "ms max:" + getMaxFrameMillis() + "ms smoothed:" + smoothedMillis
+				+ "ms budget:" + budgetMillis + "ms over budget:" + framesOverBudget + "/" + frames
+				+ " downgrades:" + downgrades + " upgrades:" + upgrades;
+	}
+}
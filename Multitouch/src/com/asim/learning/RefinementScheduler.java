@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Brings the photos on the board up to high quality once the user stops touching it.
+ *
+ * When a pointer goes up, its photo drops back to the scrubbed source so that no
+ * frame during interaction is spent on bitmaps that are not being looked at closely.
+ * That leaves an idle board looking blurry. This scheduler waits until input has
+ * been quiet for a short while and then refines the settled photos progressively:
+ *
+ *  - photos that can be seen are refined first, from the top of the stack down
+ *    (photos that are culled are not refined at all)
+ *  - only a few photos are refined per frame, so the frame time stays low
+ *  - the moment a new touch arrives, refinement stops - it starts over once input
+ *    is quiet again
+ *
+ * Photos whose source is still compressed are handed to the pixel policy to be
+ * decompressed - they keep drawing the scrubbed source until that is done.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.util.ArrayList;
+
+public class RefinementScheduler {
+
+	public long idleDelay = 300;												//input must be quiet this long before refinement starts
+	public long frameInterval = 16;												//time between two refinement steps
+	public int photosPerFrame = 3;												//number of photos refined per step
+	public boolean isHeld;														//while set (memory is tight), nothing is refined
+
+	private Board board;
+	private PixelPolicy pixelPolicy;
+	private ArrayList<Photograph> queue = new ArrayList<Photograph>();			//photos still to be refined, in order
+	private int next;															//index of the next photo in the queue
+	private int refined, cancelled;												//statistics
+
+	private Runnable start = new Runnable(){
+		public void run(){
+			buildQueue();
+			if(!queue.isEmpty()) board.post(step);
+		}
+	};
+
+	private Runnable step = new Runnable(){
+		public void run(){
+			refineSome();
+		}
+	};
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param photoBoard - the board whose photos will be refined
+	 * @param policy - used to decompress sources that were compressed while idle
+	 ***************************************************************************/
+	public RefinementScheduler(Board photoBoard, PixelPolicy policy){
+		board = photoBoard;
+		pixelPolicy = policy;
+	}
+
+	/***************************************************************************
+	 * To be called for every touch event. Any refinement that is going on is
+	 * stopped, and a new one is scheduled for when input has been quiet for a while
+	 ***************************************************************************/
+	public void onInput(){
+
+		if(next < queue.size()) cancelled++;
+		cancel();
+		if(!isHeld) board.postDelayed(start, idleDelay);
+	}
+
+	/***************************************************************************
+	 * Stops refining without scheduling a new refinement
+	 ***************************************************************************/
+	public void cancel(){
+		board.removeCallbacks(start);
+		board.removeCallbacks(step);
+		queue.clear();
+		next = 0;
+	}
+
+	/***************************************************************************
+	 * Collects the photos that need refining - visible, settled photos that are
+	 * drawn from the scrubbed source - from the top of the stack down
+	 ***************************************************************************/
+	private void buildQueue(){
+
+		queue.clear();
+		next = 0;
+
+		for(Photograph pic = board.getTopPhoto(); pic != null; pic = pic.zBelow){
+
+			if(pic.isCulled || pic.getCountPointsOfContact() > 0) continue;
+			if(pic.isHighQuality && !pic.isQualityCapped) continue;				//already refined
+
+			queue.add(pic);
+		}
+	}
+
+	/***************************************************************************
+	 * Refines the next few photos in the queue and schedules the next step
+	 ***************************************************************************/
+	private void refineSome(){
+
+		int done = 0;
+		while(next < queue.size() && done < photosPerFrame){
+
+			Photograph pic = queue.get(next++);
+			if(pic.getParent() != board || pic.getCountPointsOfContact() > 0) continue;	//removed or touched in the meantime
+
+			pic.isHighQuality = true;
+			pic.isQualityCapped = false;
+			pixelPolicy.requestSource(pic);										//the pixels arrive later if they were compressed
+			pic.refresh();
+			done++;
+			refined++;
+		}
+
+		if(next < queue.size()) board.postDelayed(step, frameInterval);
+		else queue.clear();
+	}
+
+	public String toString(){
+		return "refined:" + refined + " cancelled runs:" + cancelled + " pending:" + (queue.size() - next);
+	}
+}
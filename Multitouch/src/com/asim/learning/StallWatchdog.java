@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Watches the UI thread for stalls and writes a report about every one of them.
+ *
+ * A watchdog thread posts a tick to the UI thread, sleeps for the threshold and then
+ * looks whether the tick has run. If it has not, the UI thread has been stuck for at
+ * least the threshold (a synchronous decode, a burst of garbage collection, a draw
+ * that took far too long). The watchdog then captures the stack of the UI thread as
+ * it is at that moment, together with the stats of the board and the heap, and writes
+ * them into a report file. After that it waits for the tick to get through, so that
+ * every stall is reported once, and logs how long the stall lasted.
+ *
+ * While the app is healthy this costs one posted runnable and one wake up of the
+ * watchdog per threshold - nothing is allocated, and the stats are only gathered when
+ * there is a stall.
+ *
+ * The reports are kept in a ring of maxReports files (stall-0.txt, stall-1.txt, ...),
+ * the oldest one is overwritten by the next report.
+ *
+ * The stats are read on the watchdog thread while the UI thread is stuck, without
+ * any locking - they are meant for diagnosis, not for accounting.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Date;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+public class StallWatchdog {
+
+	final static long DEFAULT_THRESHOLD = 500;								//the UI thread is stalled when a tick takes longer than this
+	final static long RECOVERY_POLL = 50;									//how often a stalled UI thread is checked for recovery
+	final static String REPORT_PREFIX = "stall-", REPORT_SUFFIX = ".txt";
+
+	public long thresholdMillis;
+	public int maxReports = 10;												//size of the ring of report files
+
+	private Handler uiHandler = new Handler(Looper.getMainLooper());
+	private File dir;
+	private StatsSource stats;
+	private Thread watcher;
+	private volatile boolean isRunning;
+	private volatile long ticks;											//counted on the UI thread
+	private int nextReport = -1;											//the report file written next, found on the first stall
+	private volatile int stalls;											//statistics
+	private volatile long longestStall;
+
+	private Runnable tick = new Runnable(){
+		public void run(){
+			ticks++;
+		}
+	};
+
+	/***************************************************************************
+	 * Interface definition for the source of the stats that go into a report.
+	 * It is called on the watchdog thread while the UI thread is stuck
+	 ***************************************************************************/
+	public interface StatsSource{
+		String getStallStats();
+	}
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param reportDir - the directory the reports are written into
+	 * @param source - gives the stats of the board for a report
+	 * @param threshold - stalls shorter than this many milliseconds are ignored
+	 ***************************************************************************/
+	public StallWatchdog(File reportDir, StatsSource source, long threshold){
+		dir = reportDir;
+		stats = source;
+		thresholdMillis = threshold;
+	}
+
+	/***************************************************************************
+	 * Starts watching the UI thread
+	 ***************************************************************************/
+	public synchronized void start(){
+
+		if(isRunning) return;
+		isRunning = true;
+		watcher = new Thread(new Runnable(){
+			public void run(){
+				watch();
+			}
+		}, "StallWatchdog");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	public synchronized void stop(){
+
+		if(!isRunning) return;
+		isRunning = false;
+		watcher.interrupt();
+		watcher = null;
+		uiHandler.removeCallbacks(tick);
+	}
+
+	/***************************************************************************
+	 * The loop of the watchdog thread
+	 ***************************************************************************/
+	private void watch(){
+
+		while(isRunning){
+
+			long seen = ticks;
+			long posted = SystemClock.uptimeMillis();
+			uiHandler.post(tick);
+			if(!sleep(thresholdMillis)) return;
+			if(ticks != seen) continue;										//the UI thread is keeping up
+
+			stalls++;
+			writeReport(SystemClock.uptimeMillis() - posted);
+
+			while(isRunning && ticks == seen){								//wait for it to come back, so the stall is reported once
+				if(!sleep(RECOVERY_POLL)) return;
+			}
+			long lasted = SystemClock.uptimeMillis() - posted;
+			longestStall = Math.max(longestStall, lasted);
+			Log.w("StallWatchdog", "the UI thread was stalled for " + lasted + "ms");
+		}
+	}
+
+	/** @return - false if the watchdog was stopped while sleeping */
+	private boolean sleep(long millis){
+		try{
+			Thread.sleep(millis);
+			return true;
+		}catch(InterruptedException e){
+			return false;
+		}
+	}
+
+	/***************************************************************************
+	 * Writes the stack of the UI thread and the stats into the next file of the
+	 * ring
+	 *
+	 * @param stalledFor - how long the UI thread has been stuck so far
+	 ***************************************************************************/
+	private void writeReport(long stalledFor){
+
+		Thread main = Looper.getMainLooper().getThread();
+		StackTraceElement[] stack = main.getStackTrace();					//first, before the UI thread moves on
+		Runtime rt = Runtime.getRuntime();
+
+		if(nextReport < 0) nextReport = findOldestReport();
+		File file = new File(dir, REPORT_PREFIX + nextReport + REPORT_SUFFIX);
+		nextReport = (nextReport + 1) % maxReports;
+
+		try{
+			PrintWriter out = new PrintWriter(file);
+			try{
+				out.println("UI thread stalled for " + stalledFor + "ms (threshold " + thresholdMillis + "ms) at " + new Date());
+				out.println("board: " + stats.getStallStats());
+				out.println("heap: " + ((rt.totalMemory() - rt.freeMemory()) / 1024) + "KB used of " + (rt.totalMemory() / 1024)
+						+ "KB, max " + (rt.maxMemory() / 1024) + "KB");
+				out.println("main thread (" + main.getState() + "):");
+				for(int i = 0; i < stack.length; i++) out.println("\tat " + stack[i]);
+			}finally{
+				out.close();
+			}
+			Log.w("StallWatchdog", "UI thread stalled, report written to " + file);
+		}catch(IOException e){
+			Log.e("StallWatchdog", "could not write a stall report", e);
+		}
+	}
+
+	/***************************************************************************
+	 * @return - the number of the report file to write next: the first one that
+	 * doesn't exist, or else the one written longest ago
+	 ***************************************************************************/
+	private int findOldestReport(){
+
+		int oldest = 0;
+		long oldestTime = Long.MAX_VALUE;
+		for(int i = 0; i < maxReports; i++){
+			File file = new File(dir, REPORT_PREFIX + i + REPORT_SUFFIX);
+			if(!file.exists()) return i;
+			if(file.lastModified() < oldestTime){
+				oldestTime = file.lastModified();
+				oldest = i;
+			}
+		}
+		return oldest;
+	}
+
+	public String toString(){
+		return "threshold:" + thresholdMillis + "ms stalls:" + stalls + " longest:" + longestStall + "ms";
+	}
+}
@@ -0,0 +1,402 @@
+/*******************************************************************************
+ * A synthetic load for the board - how many photos to put on it, how big they are,
+ * and how a number of simulated pointers move over them, frame by frame.
+ *
+ * The pointers are split into groups, each of which performs one gesture on the
+ * photo under its anchor point:
+ *  - DRAG   - one pointer moving along a figure-of-eight around the anchor
+ *  - PINCH  - two pointers moving apart and together again about the anchor
+ *  - ROTATE - two pointers turning about the anchor at a fixed distance
+ *  - MIXED  - the groups take turns at drag, pinch and rotate
+ *
+ * Everything is computed from the settings and the seed alone, so the same scenario
+ * always produces the same photos and the same pointer paths. The StressTest drives
+ * the real board with it on a device. This class does not depend on Android, so the
+ * traces can also be generated on a desktop JVM (see main()) - to keep them for
+ * regression tracking, or to replay them through the TouchPredictor.
+ *
+ * On a desktop JVM main() also runs the parts of a frame that don't need Android:
+ * every pointer goes through a TouchPredictor, the predicted points are snapped to
+ * the photo edges the way the EdgeIndex does it (sorted arrays and a binary search),
+ * and the LayoutEngine arranges the board every so often. It reports the time and
+ * the allocation per frame of that work. Drawing, decoding, the view hierarchy and
+ * the real EdgeIndex (which needs Photographs) are not part of it - their cost only
+ * shows up in a StressTest run on a device.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+
+public class StressScenario {
+
+	public final static int DRAG = 0, PINCH = 1, ROTATE = 2, MIXED = 3;
+	final static String[] PATTERN_NAMES = {"drag", "pinch", "rotate", "mixed"};
+
+	public int photos = 100;												//number of photos put on the board
+	public int photoSize = 128;												//width of every generated photo in pixels
+	public int pointers = 10;												//number of simulated pointers
+	public int pattern = MIXED;												//gesture performed by the pointers
+	public int frames = 600;												//number of frames the gestures last
+	public int frameMillis = 16;											//time between two frames
+	public long seed = 1;
+	public int width = 1024, height = 600;									//size of the board the scenario is laid out on
+
+	//the gesture groups, filled in by layout()
+	private int groups;
+	private int[] groupPattern, groupFirst;
+	private float[] anchorX, anchorY, groupPhase;
+
+	/***************************************************************************
+	 * @return - the pattern with this name (MIXED if the name is unknown)
+	 ***************************************************************************/
+	public static int parsePattern(String name){
+		for(int i = 0; i < PATTERN_NAMES.length; i++){
+			if(PATTERN_NAMES[i].equalsIgnoreCase(name)) return i;
+		}
+		return MIXED;
+	}
+
+	/***************************************************************************
+	 * Splits the pointers into gesture groups and spreads the anchors of the
+	 * groups evenly over the board. Must be called after the settings change
+	 ***************************************************************************/
+	public void layout(){
+
+		int[] patterns = new int[pointers], first = new int[pointers];
+		groups = 0;
+
+		for(int p = 0; p < pointers; ){
+			int gesture = (pattern == MIXED)? groups % 3 : pattern;
+			int count = (gesture == DRAG || p + 1 == pointers)? 1 : 2;	//a lone pointer left over just drags
+			if(count == 1) gesture = DRAG;
+
+			patterns[groups] = gesture;
+			first[groups] = p;
+			p += count;
+			groups++;
+		}
+
+		groupPattern = patterns;
+		groupFirst = first;
+		anchorX = new float[groups];
+		anchorY = new float[groups];
+		groupPhase = new float[groups];
+
+		int cols = (int)Math.ceil(Math.sqrt(groups * (float)width / height));	//a grid with roughly square cells
+		int rows = (groups + cols - 1) / cols;
+		Random rnd = new Random(seed);
+		for(int g = 0; g < groups; g++){
+			anchorX[g] = (g % cols + 0.5f) * width / cols;
+			anchorY[g] = (g / cols + 0.5f) * height / rows;
+			groupPhase[g] = rnd.nextFloat() * (float)(2 * Math.PI);
+		}
+	}
+
+	public int getGroupCount(){
+		return groups;
+	}
+
+	public float getAnchorX(int group){
+		return anchorX[group];
+	}
+
+	public float getAnchorY(int group){
+		return anchorY[group];
+	}
+
+	/***************************************************************************
+	 * The placement of a photo - its centre on the board, its angle and the width
+	 * it is shown at. The last photos (the ones on top) are put under the anchors
+	 * of the gesture groups, large enough for all the pointers of the group to go
+	 * down on them. The rest are scattered at random
+	 *
+	 * @param index - index of the photo (0 is the bottom of the stack)
+	 * @param out - receives {centre x, centre y, angle in degrees, width}
+	 ***************************************************************************/
+	public void getPhotoPlacement(int index, float[] out){
+
+		int anchored = photos - index - 1;									//0 for the topmost photo
+		Random rnd = new Random(seed * 31 + index);
+
+		if(anchored < groups){
+			out[0] = anchorX[anchored];
+			out[1] = anchorY[anchored];
+			out[2] = rnd.nextInt(30) - 15;
+			out[3] = Math.max(photoSize, getReach());
+		}
+		else{
+			out[0] = rnd.nextFloat() * width;
+			out[1] = rnd.nextFloat() * height;
+			out[2] = rnd.nextInt(360);
+			out[3] = photoSize;
+		}
+	}
+
+	/***************************************************************************
+	 * @return - how far from its anchor a group may go
+	 ***************************************************************************/
+	private float getReach(){
+		return Math.min(width, height) / (2.0f * Math.max(1, (int)Math.sqrt(groups)));
+	}
+
+	/***************************************************************************
+	 * @return - the colour of a generated photo (opaque)
+	 ***************************************************************************/
+	public int getPhotoColor(int index){
+		return 0xff000000 | new Random(seed * 17 + index).nextInt(0x1000000);
+	}
+
+	/***************************************************************************
+	 * The positions of all the pointers at a frame
+	 *
+	 * @param frame - the frame (0 is where the pointers go down)
+	 * @param xs - receives the x coordinate of every pointer
+	 * @param ys - receives the y coordinate of every pointer
+	 ***************************************************************************/
+	public void getPointerPositions(int frame, float[] xs, float[] ys){
+
+		float t = frame * frameMillis / 1000.0f;							//seconds since the pointers went down
+		float reach = getReach();
+
+		for(int g = 0; g < groups; g++){
+
+			float w = 1.5f + 0.25f * (g % 4);								//every group moves at a slightly different pace
+			float phase = groupPhase[g];
+			int p = groupFirst[g];
+
+			switch(groupPattern[g]){
+			case DRAG:
+				xs[p] = anchorX[g] + 0.6f * reach * (float)Math.sin(w * t + phase);
+				ys[p] = anchorY[g] + 0.4f * reach * (float)Math.sin(2 * w * t + phase);
+				break;
+
+			case PINCH:
+				float spread = 0.15f * reach + 0.25f * reach * (1 - (float)Math.cos(w * t));	//starts close together
+				xs[p] = anchorX[g] - spread * (float)Math.cos(phase);
+				ys[p] = anchorY[g] - spread * (float)Math.sin(phase);
+				xs[p + 1] = anchorX[g] + spread * (float)Math.cos(phase);
+				ys[p + 1] = anchorY[g] + spread * (float)Math.sin(phase);
+				break;
+
+			case ROTATE:
+				float ra = phase + w * t;
+				float r = 0.3f * reach;
+				xs[p] = anchorX[g] - r * (float)Math.cos(ra);
+				ys[p] = anchorY[g] - r * (float)Math.sin(ra);
+				xs[p + 1] = anchorX[g] + r * (float)Math.cos(ra);
+				ys[p + 1] = anchorY[g] + r * (float)Math.sin(ra);
+				break;
+			}
+		}
+	}
+
+	/***************************************************************************
+	 * Reads the settings from name=value arguments (e.g. photos=500 pointers=10
+	 * pattern=pinch). Unknown names are ignored
+	 ***************************************************************************/
+	public void parse(String[] args){
+
+		for(String arg : args){
+			int eq = arg.indexOf('=');
+			if(eq < 0) continue;
+			String name = arg.substring(0, eq), value = arg.substring(eq + 1);
+
+			if(name.equals("photos")) photos = Integer.parseInt(value);
+			else if(name.equals("size")) photoSize = Integer.parseInt(value);
+			else if(name.equals("pointers")) pointers = Integer.parseInt(value);
+			else if(name.equals("pattern")) pattern = parsePattern(value);
+			else if(name.equals("frames")) frames = Integer.parseInt(value);
+			else if(name.equals("seed")) seed = Long.parseLong(value);
+			else if(name.equals("width")) width = Integer.parseInt(value);
+			else if(name.equals("height")) height = Integer.parseInt(value);
+		}
+	}
+
+	public String toString(){
+		return "photos:" + photos + " size:" + photoSize + " pointers:" + pointers + " groups:" + groups
+				+ " pattern:" + PATTERN_NAMES[pattern] + " frames:" + frames + " seed:" + seed;
+	}
+
+	/***************************************************************************
+	 * Runs the Android free part of every frame of the scenario: predicts every
+	 * pointer, snaps the predicted points to the nearest photo edges within
+	 * snapDistance (as the EdgeIndex does for a dragged photo), and lays out the
+	 * whole board on every arrangeEvery-th frame. Nothing is allocated per frame
+	 * by this loop itself, so whatever allocation is measured comes from the
+	 * predictor and the layout engine
+	 *
+	 * @return - {total nanoseconds, slowest frame in nanoseconds, bytes allocated
+	 * (-1 if the JVM can't tell), number of snaps}
+	 ***************************************************************************/
+	long[] runFrames(LayoutEngine engine, int arrangeEvery, float snapDistance){
+
+		int n = pointers;
+		float[] placement = new float[4];
+		float[] widths = new float[photos], heights = new float[photos];
+		float[] edgesX = new float[photos * 3], edgesY = new float[photos * 3];
+		for(int i = 0; i < photos; i++){									//the axis aligned bounds of every photo
+			getPhotoPlacement(i, placement);
+			widths[i] = placement[3];
+			heights[i] = placement[3] * 3 / 4;								//the generated bitmaps are 4:3
+			double a = Math.toRadians(placement[2]);
+			float cos = (float)Math.abs(Math.cos(a)), sin = (float)Math.abs(Math.sin(a));
+			float halfW = (widths[i] * cos + heights[i] * sin) / 2, halfH = (widths[i] * sin + heights[i] * cos) / 2;
+			edgesX[i * 3] = placement[0] - halfW; edgesX[i * 3 + 1] = placement[0]; edgesX[i * 3 + 2] = placement[0] + halfW;
+			edgesY[i * 3] = placement[1] - halfH; edgesY[i * 3 + 1] = placement[1]; edgesY[i * 3 + 2] = placement[1] + halfH;
+		}
+		Arrays.sort(edgesX);
+		Arrays.sort(edgesY);
+
+		TouchPredictor predictor = new TouchPredictor();
+		float[] xs = new float[n], ys = new float[n];
+		float[] arranged = new float[photos * 4];
+		long total = 0, slowest = 0, snaps = 0;
+		long allocatedBefore = getAllocatedBytes();
+
+		for(int f = 0; f <= frames; f++){
+
+			getPointerPositions(f, xs, ys);
+			long start = System.nanoTime();
+
+			for(int p = 0; p < n; p++){
+				predictor.addSample(p, xs[p], ys[p], (long)f * frameMillis);
+				float px = predictor.predictX(p, xs[p]), py = predictor.predictY(p, ys[p]);
+				if(nearestEdge(edgesX, px, snapDistance) >= 0) snaps++;
+				if(nearestEdge(edgesY, py, snapDistance) >= 0) snaps++;
+			}
+			if(arrangeEvery > 0 && f % arrangeEvery == 0){
+				engine.layout(LayoutEngine.GRID, widths, heights, photos, 0, 0, (float)width / height, arranged);
+			}
+
+			long took = System.nanoTime() - start;
+			total += took;
+			slowest = Math.max(slowest, took);
+		}
+
+		long allocatedAfter = getAllocatedBytes();
+		long allocated = (allocatedBefore < 0 || allocatedAfter < 0)? -1 : allocatedAfter - allocatedBefore;
+		return new long[]{total, slowest, allocated, snaps};
+	}
+
+	/***************************************************************************
+	 * @return - the index of the value in a sorted array closest to v, or -1 if
+	 * none is within the threshold
+	 ***************************************************************************/
+	private static int nearestEdge(float[] sorted, float v, float threshold){
+
+		int low = 0, high = sorted.length;									//lower bound of v - threshold
+		while(low < high){
+			int mid = (low + high) >>> 1;
+			if(sorted[mid] < v - threshold) low = mid + 1;
+			else high = mid;
+		}
+
+		int best = -1;
+		float bestDistance = threshold;
+		for(int i = low; i < sorted.length && sorted[i] <= v + threshold; i++){
+			float d = Math.abs(sorted[i] - v);
+			if(d <= bestDistance){
+				bestDistance = d;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/***************************************************************************
+	 * @return - the bytes allocated by this thread so far, or -1 if the JVM does
+	 * not count them. Looked up by reflection, as java.lang.management is not
+	 * there on Android
+	 ***************************************************************************/
+	private static long getAllocatedBytes(){
+		try{
+			Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+			Method allocated = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			return (Long)allocated.invoke(bean, Thread.currentThread().getId());
+		}catch(Exception e){
+			return -1;
+		}
+	}
+
+	/***************************************************************************
+	 * Runs a scenario without a device. The pointer paths are generated and
+	 * replayed through a TouchPredictor, and a checksum of the paths is printed
+	 * so that a changed generator shows up in regression runs. With trace=file
+	 * the paths are also written out in the TouchPredictor trace format.
+	 *
+	 * Then the Android free part of every frame is run (see runFrames()), once to
+	 * warm up and once measured. arrange=frames sets how often the board is laid
+	 * out (60, 0 for never). The layout engine runs on this thread only, so that
+	 * its allocation is counted
+	 ***************************************************************************/
+	public static void main(String[] args) throws IOException{
+
+		StressScenario scenario = new StressScenario();
+		scenario.parse(args);
+		scenario.layout();
+
+		String traceFile = null;
+		int arrangeEvery = 60;
+		for(String arg : args){
+			if(arg.startsWith("trace=")) traceFile = arg.substring(6);
+			else if(arg.startsWith("arrange=")) arrangeEvery = Integer.parseInt(arg.substring(8));
+		}
+
+		int n = scenario.pointers;
+		int samples = n * (scenario.frames + 1);
+		long[] times = new long[samples];
+		int[] ids = new int[samples];
+		float[] xs = new float[samples], ys = new float[samples];
+		float[] frameX = new float[n], frameY = new float[n];
+
+		long start = System.nanoTime();
+		long checksum = 0;
+		int s = 0;
+		for(int f = 0; f <= scenario.frames; f++){
+			scenario.getPointerPositions(f, frameX, frameY);
+			for(int p = 0; p < n; p++){
+				times[s] = (long)f * scenario.frameMillis;
+				ids[s] = p;
+				xs[s] = frameX[p];
+				ys[s] = frameY[p];
+				checksum = checksum * 31 + Float.floatToIntBits(frameX[p]) * 7 + Float.floatToIntBits(frameY[p]);
+				s++;
+			}
+		}
+		long generated = System.nanoTime() - start;
+
+		if(traceFile != null){
+			PrintWriter out = new PrintWriter(new FileWriter(traceFile));
+			try{
+				out.println("# " + scenario);
+				for(int i = 0; i < samples; i++) out.println(times[i] + "," + ids[i] + "," + xs[i] + "," + ys[i]);
+			}finally{
+				out.close();
+			}
+		}
+
+		float[] error = TouchPredictor.evaluate(new TouchPredictor(), times, ids, xs, ys);
+
+		System.out.println(scenario);
+		System.out.println("samples:" + samples + " generated in " + (generated / 1000) + "us checksum:" + Long.toHexString(checksum));
+		System.out.println("prediction mean error " + error[0] + "px (unpredicted " + error[1] + "px) max error "
+				+ error[2] + "px (unpredicted " + error[3] + "px)");
+
+		LayoutEngine engine = new LayoutEngine(1);
+		scenario.runFrames(engine, arrangeEvery, 12);						//warm up
+		long[] run = scenario.runFrames(engine, arrangeEvery, 12);
+		engine.shutdown();
+
+		int frameCount = scenario.frames + 1;
+		System.out.println("frames:" + frameCount + " (layout every " + arrangeEvery + ") mean " + (run[0] / frameCount / 1000) + "us"
+				+ " slowest " + (run[1] / 1000) + "us allocated " + ((run[2] < 0)? "n/a" : (run[2] / frameCount) + " bytes")
+				+ " per frame, snaps:" + run[3]);
+		System.out.println("not measured here: drawing, decoding, views and the EdgeIndex itself - run the StressTest on a device for those");
+	}
+}
@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * Drives the board with a StressScenario on a device and measures how it holds up.
+ *
+ * The board is filled with generated photos (plain coloured bitmaps of the size the
+ * scenario asks for), then the simulated pointers are fed through the same onTouch()
+ * handler real touches go through - as synthetic MotionEvents, one per frame. While
+ * the gestures run, the following are measured:
+ *  - sustained frame rate (frames drawn by the board per second of wall time)
+ *  - input latency (from handing an event to onTouch until the board has drawn a frame)
+ *  - java and native heap usage, and the number of garbage collections
+ *
+ * The stress mode is started with intent extras, for example:
+ *   adb shell am start -n com.asim.learning/.MultiTouchActivity --ei stress_photos 500
+ *       --ei stress_pointers 10 --es stress_pattern mixed --ei stress_size 128
+ * Adding --ez stress_atlas false runs the same scenario without the thumbnail atlas.
+ * The report is written to the log and appended to stress-report.txt in the files
+ * directory of the app. Synthesising events with more than one pointer needs API 9,
+ * on older versions the scenario is run with a single pointer.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.MotionEvent;
+import android.widget.Toast;
+
+public class StressTest implements Board.OnFrameListener {
+
+	final static String REPORT_FILE = "stress-report.txt";
+
+	private MultiTouchActivity activity;
+	private Board board;
+	private StressScenario scenario;
+	private Board.OnFrameListener nextListener;							//the listener that was installed before the test
+
+	private int frame;														//the next frame of the scenario to inject
+	private int pointers;													//number of pointers actually simulated
+	private long downTime;
+	private float[] xs, ys;
+	private int[] ids;
+	private MotionEvent.PointerCoords[] coords;
+	private boolean isRunning;
+
+	//measurements
+	private long startNanos, endNanos;
+	private long pendingInput;												//when the oldest event not yet shown on screen was injected
+	private long latencySum, latencyMax;
+	private int latencyCount, framesDrawn;
+	private long drawNanosSum;
+	private long heapStart, heapPeak, nativeStart, nativePeak;
+	private int gcStart, gcCount;
+
+	private Runnable tick = new Runnable(){
+		public void run(){
+			step();
+		}
+	};
+
+	/***************************************************************************
+	 * Reads a scenario from the extras of the intent the activity was started with
+	 * @return - the scenario, or null if the activity was not started in stress mode
+	 ***************************************************************************/
+	public static StressScenario readScenario(Intent intent){
+
+		if(intent == null || intent.getIntExtra("stress_photos", -1) < 0) return null;
+
+		StressScenario scenario = new StressScenario();
+		scenario.photos = intent.getIntExtra("stress_photos", scenario.photos);
+		scenario.photoSize = intent.getIntExtra("stress_size", scenario.photoSize);
+		scenario.pointers = intent.getIntExtra("stress_pointers", scenario.pointers);
+		scenario.frames = intent.getIntExtra("stress_frames", scenario.frames);
+		scenario.seed = intent.getIntExtra("stress_seed", (int)scenario.seed);
+		String pattern = intent.getStringExtra("stress_pattern");
+		if(pattern != null) scenario.pattern = StressScenario.parsePattern(pattern);
+		return scenario;
+	}
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param owner - the activity whose onTouch() the events are fed into
+	 * @param photoBoard - the board being stressed
+	 * @param stress - what to put on the board and how to move the pointers
+	 ***************************************************************************/
+	public StressTest(MultiTouchActivity owner, Board photoBoard, StressScenario stress){
+		activity = owner;
+		board = photoBoard;
+		scenario = stress;
+	}
+
+	/***************************************************************************
+	 * Fills the board and starts injecting the gestures. The board must have
+	 * been laid out, as the scenario is fitted to its size
+	 ***************************************************************************/
+	public void start(){
+
+		if(Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD) scenario.pointers = Math.min(1, scenario.pointers);
+		scenario.width = board.getWidth();
+		scenario.height = board.getHeight();
+		scenario.layout();
+
+		fillBoard();
+
+		pointers = scenario.pointers;
+		xs = new float[pointers];
+		ys = new float[pointers];
+		ids = new int[pointers];
+		coords = new MotionEvent.PointerCoords[pointers];
+		for(int p = 0; p < pointers; p++){
+			ids[p] = p;
+			coords[p] = new MotionEvent.PointerCoords();
+			coords[p].pressure = 1;
+			coords[p].size = 1;
+		}
+
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		heapStart = heapPeak = runtime.totalMemory() - runtime.freeMemory();
+		nativeStart = nativePeak = Debug.getNativeHeapAllocatedSize();
+		Debug.startAllocCounting();											//the gc counters only count while this is on
+		gcStart = Debug.getGlobalGcInvocationCount();
+
+		nextListener = board.getOnFrameListener();
+		board.setOnFrameListener(this);
+
+		Log.i("StressTest", "starting - " + scenario);
+		frame = 0;
+		isRunning = true;
+		startNanos = System.nanoTime();
+		board.post(tick);
+	}
+
+	/***************************************************************************
+	 * Puts the generated photos on the board, bottom of the stack first
+	 ***************************************************************************/
+	private void fillBoard(){
+
+		float[] placement = new float[4];
+		Paint paint = new Paint();
+		int w = scenario.photoSize, h = Math.max(1, w * 3 / 4);
+
+		for(int i = 0; i < scenario.photos; i++){
+
+			Bitmap bmp = activity.bitmapPool.get(w, h, activity.pixelPolicy.sourceConfig);
+			Canvas c = new Canvas(bmp);
+			c.drawColor(scenario.getPhotoColor(i));
+			paint.setColor(0xffffffff);
+			c.drawRect(w / 8, h / 8, w / 2, h / 2, paint);					//something with edges, so scaling has work to do
+			paint.setColor(0xff000000);
+			c.drawLine(0, h - 1, w - 1, 0, paint);
+
+			scenario.getPhotoPlacement(i, placement);
+			activity.addGeneratedPhoto(bmp, placement[0], placement[1], placement[2], (int)placement[3]);
+		}
+	}
+
+	/***************************************************************************
+	 * Injects the events of the next frame - the pointers go down on the first
+	 * frame, move on every frame after that and go up on the last one
+	 ***************************************************************************/
+	private void step(){
+
+		if(!isRunning) return;
+
+		scenario.getPointerPositions(frame, xs, ys);
+		long now = SystemClock.uptimeMillis();
+
+		if(frame == 0){
+			downTime = now;
+			for(int p = 0; p < pointers; p++){								//one pointer after the other, as fingers would
+				int action = (p == 0)? MotionEvent.ACTION_DOWN : MotionEvent.ACTION_POINTER_DOWN | (p << MotionEvent.ACTION_POINTER_ID_SHIFT);
+				inject(action, p + 1, now);
+			}
+		}
+		else if(frame < scenario.frames){
+			inject(MotionEvent.ACTION_MOVE, pointers, now);
+		}
+		else{
+			for(int p = pointers - 1; p >= 0; p--){
+				int action = (p == 0)? MotionEvent.ACTION_UP : MotionEvent.ACTION_POINTER_UP | (p << MotionEvent.ACTION_POINTER_ID_SHIFT);
+				inject(action, p + 1, now);
+			}
+			finish();
+			return;
+		}
+
+		Runtime runtime = Runtime.getRuntime();
+		heapPeak = Math.max(heapPeak, runtime.totalMemory() - runtime.freeMemory());
+		nativePeak = Math.max(nativePeak, Debug.getNativeHeapAllocatedSize());
+
+		frame++;
+		board.postDelayed(tick, scenario.frameMillis);
+	}
+
+	/***************************************************************************
+	 * Builds one event for the first count pointers and hands it to onTouch()
+	 ***************************************************************************/
+	private void inject(int action, int count, long eventTime){
+
+		MotionEvent event;
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD){
+			for(int p = 0; p < count; p++){
+				coords[p].x = xs[p];
+				coords[p].y = ys[p];
+			}
+			event = MotionEvent.obtain(downTime, eventTime, action, count, ids, coords, 0, 1, 1, 0, 0, 0, 0);
+		}
+		else{
+			event = MotionEvent.obtain(downTime, eventTime, action, xs[0], ys[0], 0);
+		}
+
+		if(pendingInput == 0) pendingInput = System.nanoTime();
+		activity.onTouch(board, event);
+		event.recycle();													//this event was made here, so it is safe to recycle
+	}
+
+	/***************************************************************************
+	 * Called by the board after every frame - measures the latency of the input
+	 * that this frame has shown, then passes the frame on
+	 ***************************************************************************/
+	public void onFrameDrawn(long drawNanos){
+
+		if(isRunning){
+			framesDrawn++;
+			drawNanosSum += drawNanos;
+			if(pendingInput != 0){
+				long latency = System.nanoTime() - pendingInput;
+				latencySum += latency;
+				latencyMax = Math.max(latencyMax, latency);
+				latencyCount++;
+				pendingInput = 0;
+			}
+		}
+		if(nextListener != null) nextListener.onFrameDrawn(drawNanos);
+	}
+
+	/***************************************************************************
+	 * Stops the test before the scenario has finished (e.g. the activity is paused)
+	 ***************************************************************************/
+	public void stop(){
+		if(!isRunning) return;
+		board.removeCallbacks(tick);
+		finish();
+	}
+
+	/***************************************************************************
+	 * Collects the measurements and reports them
+	 ***************************************************************************/
+	private void finish(){
+
+		isRunning = false;
+		endNanos = System.nanoTime();
+		gcCount = Debug.getGlobalGcInvocationCount() - gcStart;
+		Debug.stopAllocCounting();
+		board.setOnFrameListener(nextListener);
+
+		String report = toString();
+		Log.i("StressTest", report);
+		Toast.makeText(activity, report, Toast.LENGTH_LONG).show();
+
+		try{
+			PrintWriter out = new PrintWriter(new FileWriter(new File(activity.getFilesDir(), REPORT_FILE), true));
+			out.println(report);
+			out.close();
+		}catch(IOException e){
+			Log.e("StressTest", "could not write the report", e);
+		}
+	}
+
+	public float getFramesPerSecond(){
+		long elapsed = (isRunning? System.nanoTime() : endNanos) - startNanos;
+		return (elapsed <= 0)? 0 : framesDrawn * 1000000000.0f / elapsed;
+	}
+
+	public String toString(){
+		return scenario + " atlas:" + (activity.thumbnailAtlas.isEnabled? "on" : "off") + " injected frames:" + frame
+				+ " fps:" + getFramesPerSecond()
+				+ " draw avg:" + ((framesDrawn == 0)? 0 : drawNanosSum / framesDrawn / 1000) + "us"
+				+ " latency avg:" + ((latencyCount == 0)? 0 : latencySum / latencyCount / 1000) + "us max:" + (latencyMax / 1000) + "us"
+				+ " heap start:" + (heapStart / 1024) + "KB peak:" + (heapPeak / 1024) + "KB"
+				+ " native start:" + (nativeStart / 1024) + "KB peak:" + (nativePeak / 1024) + "KB"
+				+ " gcs:" + gcCount;
+	}
+}
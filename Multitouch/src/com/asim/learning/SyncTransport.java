@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Carries the packets of a BoardSync between boards.
+ *
+ * A transport sends every packet to all the other boards it connects, whole and in
+ * the order it was sent (the packets hold deltas, so one that is lost or reordered
+ * breaks the boards apart until the next keyframe). Packets may be delivered on any
+ * thread. LoopbackTransport connects boards in the same process.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+public interface SyncTransport {
+
+	/***************************************************************************
+	 * Interface definition for a callback to be invoked when a packet arrives
+	 ***************************************************************************/
+	public interface Receiver{
+		void onPacket(byte[] packet, int length);
+	}
+
+	/***************************************************************************
+	 * Sends a packet to all the other boards. The transport copies what it needs,
+	 * the caller reuses the buffer as soon as this returns
+	 ***************************************************************************/
+	void send(byte[] packet, int length);
+
+	void setReceiver(Receiver receiver);
+
+	void close();
+}
@@ -0,0 +1,325 @@
+/*******************************************************************************
+ * Packs small copies of the idle photos into a few large shared bitmaps (pages).
+ *
+ * On a board full of thumbnails, every photo draws its own scrubbed bitmap, so a
+ * frame is made of hundreds of draws from hundreds of different bitmaps. When an
+ * idle photo is drawn no larger than its copy in the atlas, it draws a sub-rectangle
+ * of an atlas page instead, through a short drawing path without any allocations.
+ * The board is drawn by the software renderer (the app does not ask for hardware
+ * acceleration), so every photo is still a draw of its own - what the atlas saves is
+ * the work of the regular path, and the copies are small and sit close together in
+ * a few pages. Whether that shortens the frames of a board is measured with the
+ * StressTest, once as it is and once with stress_atlas set to false.
+ *
+ * The pages are packed with shelves - rows of entries of about the same height,
+ * filled from left to right. The atlas is kept up to date incrementally by a
+ * periodic step on the UI thread:
+ *  - idle photos that are not packed yet are packed (a few per step)
+ *  - entries whose photo changed its pixels or left the board are freed, and free
+ *    slots are reused by later entries of a similar height
+ *  - a page that has become mostly empty is emptied a few entries per step by moving
+ *    them to the other pages, and then given back to the bitmap pool
+ *
+ * The photos keep their own scrubbed bitmaps, the atlas only holds copies of them.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.view.View;
+
+public class ThumbnailAtlas {
+
+	final static int PAGE_SIZE = 1024;										//pages are square, this many pixels on each side
+	final static int MAX_ENTRY = 192;										//entries are scaled to fit in this size
+	final static int PADDING = 1;											//space between entries, so filtering doesn't bleed
+
+	public int maxPages = 4;
+	public long stepInterval = 250;
+	public int packsPerStep = 8;											//at most this many entries are copied per step
+	public float compactThreshold = 0.4f;									//pages less full than this are emptied
+	public boolean isHeld;													//while set (memory is tight), nothing new is packed
+	public boolean isEnabled = true;										//when false, start() does nothing and every photo is drawn the regular way
+
+	private Board board;
+	private BitmapPool pool;
+	private ArrayList<Page> pages = new ArrayList<Page>();
+	private HashMap<Photograph,Entry> entries = new HashMap<Photograph,Entry>();
+	private Paint filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private boolean isRunning;
+	private int packed, freed, moved;										//statistics
+
+	private Runnable stepper = new Runnable(){
+		public void run(){
+			step();
+			if(isRunning) board.postDelayed(this, stepInterval);
+		}
+	};
+
+	/** a row of entries of about the same height */
+	static class Shelf {
+		int y, height;
+		int x;																//where the next new entry goes
+		ArrayList<Rect> free = new ArrayList<Rect>();						//slots of freed entries
+	}
+
+	/** an atlas bitmap */
+	static class Page {
+		Bitmap bitmap;
+		Canvas canvas;
+		ArrayList<Shelf> shelves = new ArrayList<Shelf>();
+		int nextY;															//where the next new shelf goes
+		int usedArea;
+		int count;
+	}
+
+	/** the place of the copy of one photo */
+	static class Entry {
+		Page page;
+		Shelf shelf;
+		Rect rect = new Rect();
+		Bitmap copyOf;														//the scrubbed bitmap this is a copy of
+	}
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param photoBoard - the board whose photos are packed
+	 * @param bitmapPool - pages are allocated from and returned to this pool
+	 ***************************************************************************/
+	public ThumbnailAtlas(Board photoBoard, BitmapPool bitmapPool){
+		board = photoBoard;
+		pool = bitmapPool;
+	}
+
+	public void start(){
+		if(isRunning || !isEnabled) return;
+		isRunning = true;
+		board.postDelayed(stepper, stepInterval);
+	}
+
+	public void stop(){
+		isRunning = false;
+		board.removeCallbacks(stepper);
+	}
+
+	/***************************************************************************
+	 * @return - whether this photo should be kept in the atlas
+	 ***************************************************************************/
+	private boolean isWanted(Photograph pic){
+		Bitmap scrubbed = pic.getScrubbedSource();
+		return scrubbed != null && scrubbed.getConfig() == Bitmap.Config.RGB_565 && pic.getParent() == board
+				&& !pic.isPlayable && pic.getCountPointsOfContact() == 0;
+	}
+
+	/***************************************************************************
+	 * One incremental update of the atlas
+	 ***************************************************************************/
+	private void step(){
+
+		//free the entries that are out of date (the photo changed its pixels or left the board)
+		ArrayList<Photograph> stale = null;
+		for(Photograph pic : entries.keySet()){
+			Entry entry = entries.get(pic);
+			if(entry.copyOf != pic.getScrubbedSource() || pic.getParent() != board){
+				if(stale == null) stale = new ArrayList<Photograph>();
+				stale.add(pic);
+			}
+		}
+		if(stale != null) for(int i = 0; i < stale.size(); i++) remove(stale.get(i));
+
+		int budget = packsPerStep;
+
+		//empty a page that is mostly free, moving its entries to the other pages
+		Page sparse = findSparsePage();
+		if(sparse != null){
+			for(Iterator<Entry> it = entries.values().iterator(); it.hasNext() && budget > 0; ){
+				Entry entry = it.next();
+				if(entry.page != sparse) continue;
+				Rect from = new Rect(entry.rect);
+				Shelf fromShelf = entry.shelf;
+				if(!place(entry, from.width(), from.height(), sparse)) break;	//nowhere else to go
+				entry.page.canvas.drawBitmap(sparse.bitmap, from, entry.rect, null);
+				release(sparse, fromShelf, from);
+				budget--;
+				moved++;
+			}
+		}
+
+		//pack the idle photos that are not in the atlas yet, topmost first
+		for(Photograph pic = board.getTopPhoto(); pic != null && budget > 0 && !isHeld; pic = pic.zBelow){
+			if(entries.containsKey(pic) || !isWanted(pic)) continue;
+			if(!add(pic)) break;												//the atlas is full
+			budget--;
+		}
+
+		//every photo has to point at the page its entry is on now
+		for(Photograph pic : entries.keySet()){
+			Entry entry = entries.get(pic);
+			pic.setAtlasEntry(entry.page.bitmap, entry.rect, entry.copyOf);
+		}
+	}
+
+	/***************************************************************************
+	 * Copies the scrubbed bitmap of a photo into the atlas
+	 * @return - false if there is no room for it
+	 ***************************************************************************/
+	private boolean add(Photograph pic){
+
+		Bitmap scrubbed = pic.getScrubbedSource();
+		float fit = Math.min(1, ((float)MAX_ENTRY) / Math.max(scrubbed.getWidth(), scrubbed.getHeight()));
+		int w = Math.max(1, (int)(scrubbed.getWidth() * fit));
+		int h = Math.max(1, (int)(scrubbed.getHeight() * fit));
+
+		Entry entry = new Entry();
+		if(!place(entry, w, h, null)) return false;
+
+		entry.copyOf = scrubbed;
+		entry.page.canvas.drawBitmap(scrubbed, null, entry.rect, filterPaint);
+		entries.put(pic, entry);
+		packed++;
+		return true;
+	}
+
+	/***************************************************************************
+	 * Takes a photo out of the atlas
+	 ***************************************************************************/
+	public void remove(Photograph pic){
+
+		Entry entry = entries.remove(pic);
+		if(entry == null) return;
+		pic.setAtlasEntry(null, null, null);
+		release(entry.page, entry.shelf, entry.rect);
+		freed++;
+	}
+
+	/***************************************************************************
+	 * Finds a slot for an entry of this size and sets entry.page, entry.shelf
+	 * and entry.rect (the padding after the entry is not part of the rect)
+	 *
+	 * @param avoid - a page not to use (the one being emptied), or null
+	 * @return - false if there is no room anywhere
+	 ***************************************************************************/
+	private boolean place(Entry entry, int width, int height, Page avoid){
+
+		int w = width + PADDING, h = height + PADDING;
+
+		for(int p = 0; p <= pages.size(); p++){
+
+			Page page;
+			if(p == pages.size()){												//all the pages are full - start a new one
+				if(pages.size() >= maxPages || avoid != null) return false;
+				page = new Page();
+				page.bitmap = pool.get(PAGE_SIZE, PAGE_SIZE, Bitmap.Config.RGB_565);
+				page.canvas = new Canvas(page.bitmap);
+				pages.add(page);
+			}
+			else page = pages.get(p);
+			if(page == avoid) continue;
+
+			for(int s = 0; s < page.shelves.size(); s++){
+				Shelf shelf = page.shelves.get(s);
+				if(h > shelf.height || h < shelf.height * 3 / 4) continue;	//only entries of about the shelf's height
+
+				for(int f = 0; f < shelf.free.size(); f++){						//reuse a freed slot first
+					Rect slot = shelf.free.get(f);
+					if(slot.width() < w) continue;
+					entry.rect.set(slot.left, shelf.y, slot.left + width, shelf.y + height);
+					if(slot.width() - w > PADDING) slot.left += w; else shelf.free.remove(f);
+					return claim(entry, page, shelf, w, h);
+				}
+				if(shelf.x + w <= PAGE_SIZE){
+					entry.rect.set(shelf.x, shelf.y, shelf.x + width, shelf.y + height);
+					shelf.x += w;
+					return claim(entry, page, shelf, w, h);
+				}
+			}
+
+			if(page.nextY + h <= PAGE_SIZE){									//a new shelf of this entry's height
+				Shelf shelf = new Shelf();
+				shelf.y = page.nextY;
+				shelf.height = h;
+				page.nextY += h;
+				page.shelves.add(shelf);
+				entry.rect.set(0, shelf.y, width, shelf.y + height);
+				shelf.x = w;
+				return claim(entry, page, shelf, w, h);
+			}
+		}
+		return false;
+	}
+
+	private boolean claim(Entry entry, Page page, Shelf shelf, int w, int h){
+		entry.page = page;
+		entry.shelf = shelf;
+		page.usedArea += w * h;
+		page.count++;
+		return true;
+	}
+
+	/***************************************************************************
+	 * Gives the slot of an entry back to its shelf. An empty page is given back
+	 * to the pool
+	 ***************************************************************************/
+	private void release(Page page, Shelf shelf, Rect rect){
+
+		int w = rect.width() + PADDING, h = rect.height() + PADDING;
+		if(rect.left + w == shelf.x) shelf.x = rect.left;					//the last slot of the shelf
+		else shelf.free.add(new Rect(rect.left, shelf.y, rect.left + w, shelf.y + shelf.height));
+		page.usedArea -= w * h;
+		page.count--;
+
+		if(page.count == 0){
+			pages.remove(page);
+			pool.put(page.bitmap);
+		}
+	}
+
+	/***************************************************************************
+	 * @return - a page that is less full than the threshold (if there are other
+	 * pages its entries could move to), or null
+	 ***************************************************************************/
+	private Page findSparsePage(){
+
+		if(pages.size() < 2) return null;
+		Page sparsest = null;
+		for(int p = 0; p < pages.size(); p++){
+			Page page = pages.get(p);
+			if(page.usedArea < compactThreshold * PAGE_SIZE * page.nextY && (sparsest == null || page.usedArea < sparsest.usedArea))
+				sparsest = page;
+		}
+		return sparsest;
+	}
+
+	/***************************************************************************
+	 * Takes every photo out of the atlas and gives all the pages back to the pool
+	 * (when memory is tight)
+	 ***************************************************************************/
+	public void clear(){
+
+		for(int i = 0; i < board.getChildCount(); i++){
+			View child = board.getChildAt(i);
+			if(child instanceof Photograph) ((Photograph)child).setAtlasEntry(null, null, null);
+		}
+		entries.clear();
+		for(int p = 0; p < pages.size(); p++) pool.put(pages.get(p).bitmap);
+		pages.clear();
+	}
+
+	/***************************************************************************
+	 * @return - the bytes held by the pages
+	 ***************************************************************************/
+	public long getBytes(){
+		return (long)pages.size() * PAGE_SIZE * PAGE_SIZE * 2;
+	}
+
+	public String toString(){
+		return "pages:" + pages.size() + " entries:" + entries.size() + " packed:" + packed + " freed:" + freed + " moved:" + moved;
+	}
+}
@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Region-tiled access to the original (full resolution) image of a photo.
+ *
+ * The best bitmap a photo keeps in memory is a 0.75 scaled decode of its resource.
+ * Once the user has enlarged the photo beyond that, the pixels are simply stretched.
+ * Decoding the whole original at full resolution is not an option for large images,
+ * so instead this class decodes only the tiles of the original that are actually
+ * visible, at the resolution the photo is being drawn at:
+ *
+ *  - the original is divided into a grid of tiles for every power-of-two sample size
+ *  - when the photo is drawn, the sample size is picked from its on-screen width and
+ *    only the tiles that cover the visible part of the photo are drawn
+ *  - tiles that are not in the cache are decoded on a worker thread (using a
+ *    BitmapRegionDecoder) and the photo is redrawn once they arrive. Until then the
+ *    regular bitmap of the photo shows through, so pinching never waits for a decode
+ *
+ * All tiled images share one TileCache, which keeps the decoded tiles in an LRU that
+ * is bounded by bytes - so the memory used stays the same no matter how big the
+ * originals are. Tiles pushed out of the LRU by the worker are recycled on the UI
+ * thread, at the start of the next draw, as it may still be drawing them.
+ *
+ * Tiles of JPEG originals are decoded as RGB_565. Other formats may carry alpha, so
+ * their tiles are decoded as ARGB_8888 rather than have the transparent parts
+ * turn black.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+import android.view.View;
+
+public class TiledImage {
+
+	final static int TILE_SIZE = 256;										//size of a tile on screen (in pixels of the decoded tile)
+
+	private Resources resources;
+	private int resourceId;													//the resource holding the original image
+	private TileCache cache;												//shared by all tiled images
+	private int imageId;													//distinguishes the tiles of this image in the shared cache
+
+	private BitmapRegionDecoder decoder;									//opened lazily on the worker
+	private boolean isOpening;
+	private int width, height;												//size of the original image
+	private Bitmap.Config tileConfig;										//RGB_565 unless the original may have alpha
+	private volatile int wantedShift;										//sample size (as a power of two) last drawn at
+
+	private Rect tileSrc = new Rect();										//reused while drawing
+	private RectF tileDst = new RectF();
+	private Paint tilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	private static int nextImageId = 0;
+
+	/***************************************************************************
+	 * A byte bounded LRU of decoded tiles plus the worker that decodes them
+	 ***************************************************************************/
+	public static class TileCache {
+
+		private long maxBytes;
+		private long bytes;
+		private HashSet<Long> pending = new HashSet<Long>();				//tiles queued on the worker
+		private ArrayList<Bitmap> evicted = new ArrayList<Bitmap>();		//out of the LRU, to be recycled on the UI thread
+		private ExecutorService worker = Executors.newSingleThreadExecutor();
+		private int hits, misses;
+
+		private LinkedHashMap<Long,Bitmap> tiles = new LinkedHashMap<Long,Bitmap>(64, 0.75f, true);	//access ordered - eldest is least recently drawn
+
+		public TileCache(long maximumBytes){
+			maxBytes = maximumBytes;
+		}
+
+		synchronized Bitmap get(long key){
+			Bitmap tile = tiles.get(key);
+			if(tile != null) hits++; else misses++;
+			return tile;
+		}
+
+		synchronized void put(long key, Bitmap tile){
+
+			pending.remove(key);
+			tiles.put(key, tile);
+			bytes += BitmapPool.getBytes(tile);
+
+			//evicted tiles are not recycled here - this runs on the worker while the UI thread may still be drawing them
+			Iterator<Map.Entry<Long,Bitmap>> it = tiles.entrySet().iterator();	//least recently used first
+			while(bytes > maxBytes && it.hasNext()){
+				Bitmap eldest = it.next().getValue();
+				if(eldest == tile) continue;
+				it.remove();
+				bytes -= BitmapPool.getBytes(eldest);
+				evicted.add(eldest);
+			}
+		}
+
+		/***************************************************************************
+		 * Recycles the tiles evicted since the last call. Must be called on the UI
+		 * thread, outside of the drawing of a tile
+		 ***************************************************************************/
+		synchronized void recycleEvicted(){
+			for(int i = 0; i < evicted.size(); i++) evicted.get(i).recycle();
+			evicted.clear();
+		}
+
+		/** @return - true if the tile was not already queued and should be decoded now */
+		synchronized boolean markPending(long key){
+			return pending.add(key);
+		}
+
+		synchronized void clearPending(long key){
+			pending.remove(key);
+		}
+
+		/***************************************************************************
+		 * Throws away all decoded tiles (e.g. when memory runs low). Must be called
+		 * on the UI thread
+		 ***************************************************************************/
+		public synchronized void clear(){
+			for(Bitmap tile : tiles.values()) tile.recycle();
+			tiles.clear();
+			bytes = 0;
+			recycleEvicted();
+		}
+
+		public synchronized long getBytes(){
+			return bytes;
+		}
+
+		public synchronized String toString(){
+			return "tiles:" + tiles.size() + " " + (bytes / 1024) + "KB of " + (maxBytes / 1024) + "KB hits:" + hits + " misses:" + misses;
+		}
+	}
+
+	/***************************************************************************
+	 * Class constructor - nothing is opened or decoded here
+	 * @param res - resources the original is read from
+	 * @param id - id of the drawable resource holding the original
+	 * @param tileCache - the cache shared by all tiled images
+	 ***************************************************************************/
+	public TiledImage(Resources res, int id, TileCache tileCache){
+		resources = res;
+		resourceId = id;
+		cache = tileCache;
+		imageId = nextImageId++;
+	}
+
+	/***************************************************************************
+	 * The key of a tile in the shared cache - made of the image, the sample size
+	 * (as a power of two) and the column and row of the tile
+	 ***************************************************************************/
+	private long getKey(int sampleShift, int col, int row){
+		return ((long)imageId << 40) | ((long)sampleShift << 36) | ((long)col << 18) | row;
+	}
+
+	/***************************************************************************
+	 * Sets the colour filter the tiles are drawn with (the effects of the photo),
+	 * or null for none
+	 ***************************************************************************/
+	public void setColorFilter(ColorFilter filter){
+		tilePaint.setColorFilter(filter);
+	}
+
+	/***************************************************************************
+	 * Draws the visible tiles of the original over the area the photo is drawn in.
+	 * The canvas must already carry the transformation of the photo
+	 *
+	 * @param c - the canvas to draw on
+	 * @param dst - the area the photo is drawn in (before rotation and scaling)
+	 * @param visible - the part of dst that is visible on screen
+	 * @param drawnWidth - the width of the photo on screen in pixels
+	 * @param baseWidth - width of the best bitmap the photo already has
+	 * @param owner - the view to redraw once missing tiles have been decoded
+	 ***************************************************************************/
+	public void draw(Canvas c, Rect dst, RectF visible, float drawnWidth, int baseWidth, final View owner){
+
+		cache.recycleEvicted();												//the frame that drew them is done
+		if(drawnWidth <= baseWidth) return;								//the photo's own bitmap is good enough
+
+		if(decoder == null){
+			open(owner);
+			return;
+		}
+		if(drawnWidth <= width * 0.75f) return;
+
+		//the coarsest power of two sample size which still gives at least one source pixel per screen pixel
+		int sampleShift = 0;
+		while(sampleShift < 16 && (width >> (sampleShift + 1)) >= drawnWidth) sampleShift++;
+		wantedShift = sampleShift;
+
+		int tileSpan = TILE_SIZE << sampleShift;							//size of a tile in pixels of the original
+		float toSource = ((float)width) / dst.width();						//from drawing coordinates into the original
+
+		int colFirst = Math.max(0, (int)((visible.left - dst.left) * toSource) / tileSpan);
+		int colLast = Math.min((width - 1) / tileSpan, (int)((visible.right - dst.left) * toSource) / tileSpan);
+		int rowFirst = Math.max(0, (int)((visible.top - dst.top) * toSource) / tileSpan);
+		int rowLast = Math.min((height - 1) / tileSpan, (int)((visible.bottom - dst.top) * toSource) / tileSpan);
+
+		for(int row = rowFirst; row <= rowLast; row++){
+			for(int col = colFirst; col <= colLast; col++){
+
+				tileSrc.set(col * tileSpan, row * tileSpan, Math.min(width, (col + 1) * tileSpan), Math.min(height, (row + 1) * tileSpan));
+
+				long key = getKey(sampleShift, col, row);
+				Bitmap tile = cache.get(key);
+
+				if(tile == null){
+					requestTile(key, new Rect(tileSrc), sampleShift, owner);
+					continue;
+				}
+
+				tileDst.set(dst.left + tileSrc.left / toSource, dst.top + tileSrc.top / toSource,
+						dst.left + tileSrc.right / toSource, dst.top + tileSrc.bottom / toSource);
+				c.drawBitmap(tile, null, tileDst, tilePaint);
+			}
+		}
+	}
+
+	/***************************************************************************
+	 * Opens the region decoder for the original on the worker thread
+	 ***************************************************************************/
+	private void open(final View owner){
+
+		if(isOpening) return;
+		isOpening = true;
+
+		cache.worker.execute(new Runnable(){
+			public void run(){
+
+				InputStream in = null;
+				try{
+					in = resources.openRawResource(resourceId);
+					BitmapFactory.Options bounds = new BitmapFactory.Options();
+					bounds.inJustDecodeBounds = true;							//only the header, for the format
+					BitmapFactory.decodeStream(in, null, bounds);
+					in.close();
+					final Bitmap.Config config = "image/jpeg".equals(bounds.outMimeType)? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+
+					in = resources.openRawResource(resourceId);
+					final BitmapRegionDecoder opened = BitmapRegionDecoder.newInstance(in, false);
+					owner.post(new Runnable(){
+						public void run(){
+							width = opened.getWidth();
+							height = opened.getHeight();
+							tileConfig = config;
+							decoder = opened;
+							owner.invalidate();
+						}
+					});
+				}catch(IOException e){
+					Log.e("TiledImage", "could not open the original for tiling", e);
+				}catch(Resources.NotFoundException e){
+					Log.e("TiledImage", "the original for tiling is gone", e);
+				}finally{
+					if(in != null) try{ in.close(); }catch(IOException e){ }
+				}
+			}
+		});
+	}
+
+	/***************************************************************************
+	 * Queues the decode of a single tile. The tile is put into the cache and the
+	 * owner is redrawn when it is ready
+	 ***************************************************************************/
+	private void requestTile(final long key, final Rect region, final int sampleShift, final View owner){
+
+		if(!cache.markPending(key)) return;
+
+		final BitmapRegionDecoder regionDecoder = decoder;
+		final Bitmap.Config config = tileConfig;
+		cache.worker.execute(new Runnable(){
+			public void run(){
+
+				if(sampleShift != wantedShift){								//the pinch has moved on to another resolution
+					cache.clearPending(key);
+					return;
+				}
+
+				BitmapFactory.Options opt = new BitmapFactory.Options();
+				opt.inSampleSize = 1 << sampleShift;
+				opt.inPreferredConfig = config;
+				Bitmap tile = regionDecoder.decodeRegion(region, opt);
+
+				if(tile == null){
+					cache.clearPending(key);
+					return;
+				}
+
+				cache.put(key, tile);
+				owner.postInvalidate();
+			}
+		});
+	}
+
+	/***************************************************************************
+	 * Closes the region decoder. Tiles already in the cache are left to age out
+	 ***************************************************************************/
+	public void release(){
+		final BitmapRegionDecoder regionDecoder = decoder;
+		decoder = null;
+		isOpening = false;
+		if(regionDecoder != null){
+			cache.worker.execute(new Runnable(){							//after any decodes still queued for it
+				public void run(){
+					regionDecoder.recycle();
+				}
+			});
+		}
+	}
+}
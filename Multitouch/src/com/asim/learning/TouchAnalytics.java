@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Collects statistics about how the board is used, for kiosks that run all day.
+ *
+ * Two things are kept:
+ *  - a heatmap - the screen is divided into a fixed grid of cells, and every pointer
+ *    sample (downs and moves) adds one to the cell it falls in
+ *  - per photo counts - how often it was touched, dragged and pinched, and how long
+ *    it was held in total. A drag or a pinch is counted once when it starts, not
+ *    for every move event
+ *
+ * Everything lives in primitive arrays (the per photo arrays are indexed by tag and
+ * grow when a larger tag shows up), and is updated directly from the touch handlers,
+ * so recording an event allocates nothing and costs a few array writes.
+ *
+ * export() writes the heatmap as a PNG and all the numbers as CSV. The arrays are
+ * copied on the UI thread and the files are written on a separate thread.
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+public class TouchAnalytics {
+
+	final static int GRID_WIDTH = 64, GRID_HEIGHT = 40;					//cells of the heatmap
+	final static int CELL_PIXELS = 8;										//size of a cell in the exported image
+	final static byte NONE = 0, DRAG = 1, PINCH = 2;
+	final static String HEATMAP_FILE = "touch-heatmap.png", GRID_FILE = "touch-grid.csv", PHOTOS_FILE = "touch-photos.csv";
+
+	private Board board;
+	private int[] heat = new int[GRID_WIDTH * GRID_HEIGHT];
+	private long samples, downs;
+
+	//per photo, by tag
+	private int[] touches = new int[64], drags = new int[64], pinches = new int[64];
+	private long[] dwell = new long[64];									//milliseconds held
+	private long[] heldSince = new long[64];								//when the first pointer of the current gesture went down
+	private byte[] gesture = new byte[64];									//the gesture going on right now
+	private long startTime = SystemClock.uptimeMillis();
+
+	/***************************************************************************
+	 * Class constructor
+	 * @param photoBoard - the board, whose size the heatmap is spread over
+	 ***************************************************************************/
+	public TouchAnalytics(Board photoBoard){
+		board = photoBoard;
+	}
+
+	/***************************************************************************
+	 * Adds a pointer sample to the heatmap
+	 * @param x - x coordinate on screen
+	 * @param y - y coordinate on screen
+	 ***************************************************************************/
+	public void onPointerMove(int x, int y){
+
+		int w = board.getWidth(), h = board.getHeight();
+		if(w <= 0 || h <= 0 || x < 0 || y < 0 || x >= w || y >= h) return;
+		heat[(y * GRID_HEIGHT / h) * GRID_WIDTH + x * GRID_WIDTH / w]++;
+		samples++;
+	}
+
+	/***************************************************************************
+	 * A pointer went down
+	 * @param pic - the photo it went down on (after it was added as a point of
+	 * contact), or null
+	 ***************************************************************************/
+	public void onPointerDown(int x, int y, Photograph pic){
+
+		onPointerMove(x, y);
+		downs++;
+
+		int tag = indexOf(pic);
+		if(tag < 0) return;
+		touches[tag]++;
+		if(pic.getCountPointsOfContact() == 1) heldSince[tag] = SystemClock.uptimeMillis();
+	}
+
+	/***************************************************************************
+	 * A photo has been moved by its pointers
+	 * @param contacts - the number of pointers on it
+	 ***************************************************************************/
+	public void onGesture(Photograph pic, int contacts){
+
+		int tag = indexOf(pic);
+		if(tag < 0) return;
+		byte kind = (contacts == 1)? DRAG : PINCH;
+		if(gesture[tag] == kind) return;									//still the same gesture
+		gesture[tag] = kind;
+		if(kind == DRAG) drags[tag]++; else pinches[tag]++;
+	}
+
+	/***************************************************************************
+	 * A pointer went up
+	 * @param pic - the photo it was on (after it was removed as a point of
+	 * contact), or null
+	 ***************************************************************************/
+	public void onPointerUp(Photograph pic){
+
+		int tag = indexOf(pic);
+		if(tag < 0 || pic.getCountPointsOfContact() > 0) return;
+		if(heldSince[tag] != 0) dwell[tag] += SystemClock.uptimeMillis() - heldSince[tag];
+		heldSince[tag] = 0;
+		gesture[tag] = NONE;
+	}
+
+	/***************************************************************************
+	 * @return - the index of the photo in the per photo arrays (its tag), which
+	 * are made large enough for it. -1 if the photo has no number for a tag
+	 ***************************************************************************/
+	private int indexOf(Photograph pic){
+
+		if(pic == null || !(pic.getTag() instanceof Integer)) return -1;
+		int tag = (Integer)pic.getTag();
+		if(tag < 0) return -1;
+		if(tag >= touches.length){
+			int size = touches.length;
+			while(size <= tag) size *= 2;
+			touches = grow(touches, size);
+			drags = grow(drags, size);
+			pinches = grow(pinches, size);
+			dwell = grow(dwell, size);
+			heldSince = grow(heldSince, size);
+			byte[] g = new byte[size];
+			System.arraycopy(gesture, 0, g, 0, gesture.length);
+			gesture = g;
+		}
+		return tag;
+	}
+
+	private static int[] grow(int[] a, int size){
+		int[] b = new int[size];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static long[] grow(long[] a, int size){
+		long[] b = new long[size];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	/***************************************************************************
+	 * Writes the heatmap image and the CSV files into a directory, on a separate
+	 * thread
+	 ***************************************************************************/
+	public void export(final File dir){
+
+		final int[] heatCopy = heat.clone();
+		final int[] touchesCopy = touches.clone(), dragsCopy = drags.clone(), pinchesCopy = pinches.clone();
+		final long[] dwellCopy = dwell.clone();
+		final String summary = toString();
+
+		Thread writer = new Thread(new Runnable(){
+			public void run(){
+				try{
+					writeHeatmap(heatCopy, new File(dir, HEATMAP_FILE));
+
+					PrintWriter grid = new PrintWriter(new File(dir, GRID_FILE));
+					try{
+						grid.println("# " + summary);
+						for(int row = 0; row < GRID_HEIGHT; row++){
+							StringBuilder line = new StringBuilder();
+							for(int col = 0; col < GRID_WIDTH; col++){
+								if(col > 0) line.append(',');
+								line.append(heatCopy[row * GRID_WIDTH + col]);
+							}
+							grid.println(line);
+						}
+					}finally{
+						grid.close();
+					}
+
+					PrintWriter photos = new PrintWriter(new File(dir, PHOTOS_FILE));
+					try{
+						photos.println("tag,touches,drags,pinches,dwell_ms");
+						for(int tag = 0; tag < touchesCopy.length; tag++){
+							if(touchesCopy[tag] == 0) continue;
+							photos.println(tag + "," + touchesCopy[tag] + "," + dragsCopy[tag] + "," + pinchesCopy[tag] + "," + dwellCopy[tag]);
+						}
+					}finally{
+						photos.close();
+					}
+				}catch(IOException e){
+					Log.e("TouchAnalytics", "could not export", e);
+				}
+			}
+		});
+		writer.setPriority(Thread.MIN_PRIORITY);
+		writer.start();
+	}
+
+	/***************************************************************************
+	 * Draws the heatmap - the cells go from transparent (never touched) through
+	 * blue and yellow to red (the most touched cell). The counts are taken on a
+	 * log scale, so that a few hot spots don't hide everything else
+	 ***************************************************************************/
+	private static void writeHeatmap(int[] counts, File file) throws IOException{
+
+		int max = 1;
+		for(int i = 0; i < counts.length; i++) max = Math.max(max, counts[i]);
+		double scale = Math.log(1 + max);
+
+		int[] colors = new int[counts.length];
+		for(int i = 0; i < counts.length; i++){
+			if(counts[i] == 0) continue;
+			float t = (float)(Math.log(1 + counts[i]) / scale);
+			int r = (int)(255 * Math.min(1, t * 2));
+			int g = (int)(255 * Math.min(1, 2 - t * 2) * Math.min(1, t * 2));
+			int b = (int)(255 * Math.max(0, 1 - t * 2));
+			colors[i] = (160 + (int)(95 * t)) << 24 | r << 16 | g << 8 | b;
+		}
+
+		Bitmap cells = Bitmap.createBitmap(GRID_WIDTH, GRID_HEIGHT, Bitmap.Config.ARGB_8888);
+		cells.setPixels(colors, 0, GRID_WIDTH, 0, 0, GRID_WIDTH, GRID_HEIGHT);
+		Bitmap image = Bitmap.createScaledBitmap(cells, GRID_WIDTH * CELL_PIXELS, GRID_HEIGHT * CELL_PIXELS, false);
+
+		FileOutputStream out = new FileOutputStream(file);
+		try{
+			image.compress(Bitmap.CompressFormat.PNG, 100, out);
+		}finally{
+			out.close();
+			cells.recycle();
+			image.recycle();
+		}
+	}
+
+	public String toString(){
+		long hours = (SystemClock.uptimeMillis() - startTime) / 3600000;
+		return "samples:" + samples + " downs:" + downs + " over " + hours + "h";
+	}
+}
@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Predicts where each pointer will be a short time from now.
+ *
+ * A photo being dragged is moved by the displacement of the last recorded position
+ * of the pointer, so by the time the frame is on screen the finger has already moved
+ * on - the photo always trails the finger. This class estimates the position of the
+ * pointer at the time the next frame will be shown, so the photo can be drawn there.
+ *
+ * Each pointer is tracked with an alpha-beta filter (a steady state Kalman filter for
+ * a constant velocity model): every sample corrects the estimated position and velocity
+ * by a fixed fraction of the difference between where the pointer was expected to be
+ * and where it actually is. The prediction is the estimated position plus the velocity
+ * times the lead time, damped by a confidence value - when the pointer has recently
+ * been surprising the filter (sharp turns, sudden stops), the prediction falls back
+ * towards the measured position instead of overshooting.
+ *
+ * This class does not depend on Android at all, so recorded traces can be replayed
+ * through it on a desktop JVM to measure the prediction error - see evaluate() and
+ * main(). A trace is a CSV file with one sample per line: time (ms), pointer id, x, y
+ *******************************************************************************/
+
+package com.asim.learning;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+public class TouchPredictor {
+
+	final static int MAX_POINTERS = 16;									//pointer ids above this are not predicted
+
+	public float alpha = 0.5f;											//how much of the position error is corrected per sample
+	public float beta = 0.2f;											//how much of the position error feeds into the velocity
+	public float leadMillis = 16.0f;									//how far ahead to predict (about one frame)
+	public float maxLead = 48.0f;										//the prediction never goes further than this many pixels
+	public float surprise = 6.0f;										//a residual of this many pixels halves the confidence
+
+	//filter state for every pointer id, kept in primitive arrays
+	private float[] posX = new float[MAX_POINTERS], posY = new float[MAX_POINTERS];
+	private float[] velX = new float[MAX_POINTERS], velY = new float[MAX_POINTERS];	//pixels per millisecond
+	private float[] residual = new float[MAX_POINTERS];				//smoothed magnitude of recent position errors
+	private long[] lastTime = new long[MAX_POINTERS];
+	private int[] sampleCount = new int[MAX_POINTERS];
+
+	private PrintWriter recorder;										//if set, every raw sample is written here as a trace line
+
+	/***************************************************************************
+	 * Forgets everything about a pointer - to be called when it goes down
+	 ***************************************************************************/
+	public void reset(int id){
+		if(id < 0 || id >= MAX_POINTERS) return;
+		sampleCount[id] = 0;
+		velX[id] = 0; velY[id] = 0;
+		residual[id] = 0;
+	}
+
+	/***************************************************************************
+	 * Feeds a measured position of a pointer into its filter
+	 *
+	 * @param id - pointer id
+	 * @param x - measured x coordinate
+	 * @param y - measured y coordinate
+	 * @param time - time of the measurement in milliseconds
+	 ***************************************************************************/
+	public void addSample(int id, float x, float y, long time){
+
+		if(recorder != null) recorder.println(time + "," + id + "," + x + "," + y);
+		if(id < 0 || id >= MAX_POINTERS) return;
+
+		if(sampleCount[id] == 0){											//the first sample only sets the position
+			posX[id] = x; posY[id] = y;
+			lastTime[id] = time;
+			sampleCount[id] = 1;
+			return;
+		}
+
+		float dt = time - lastTime[id];
+		if(dt <= 0){														//same timestamp - just take the newer position
+			posX[id] = x; posY[id] = y;
+			return;
+		}
+
+		float expectedX = posX[id] + velX[id] * dt;						//where the filter thought the pointer would be
+		float expectedY = posY[id] + velY[id] * dt;
+		float rx = x - expectedX;
+		float ry = y - expectedY;
+
+		posX[id] = expectedX + alpha * rx;
+		posY[id] = expectedY + alpha * ry;
+		velX[id] += beta * rx / dt;
+		velY[id] += beta * ry / dt;
+
+		residual[id] = 0.7f * residual[id] + 0.3f * (float)Math.sqrt(rx*rx + ry*ry);
+		lastTime[id] = time;
+		sampleCount[id]++;
+	}
+
+	/***************************************************************************
+	 * @return - how much the prediction of this pointer can be trusted (0 to 1)
+	 ***************************************************************************/
+	public float getConfidence(int id){
+		if(id < 0 || id >= MAX_POINTERS || sampleCount[id] < 3) return 0;	//too few samples for a velocity
+		return surprise / (surprise + residual[id]);
+	}
+
+	/***************************************************************************
+	 * The predicted position of a pointer leadMillis after its last sample. The
+	 * measured position is returned for pointers that can't be predicted
+	 *
+	 * @param id - pointer id
+	 * @param measured - the last measured coordinate (returned if there is no prediction)
+	 * @param isX - true for the x coordinate, false for y
+	 ***************************************************************************/
+	public float predict(int id, float measured, boolean isX){
+
+		float confidence = getConfidence(id);
+		if(confidence == 0) return measured;
+
+		float vx = velX[id], vy = velY[id];
+		float leadX = vx * leadMillis * confidence;
+		float leadY = vy * leadMillis * confidence;
+		float length = (float)Math.sqrt(leadX*leadX + leadY*leadY);
+		float clamp = (length > maxLead)? maxLead / length : 1;			//never jump too far ahead
+
+		return isX? (measured + leadX * clamp) : (measured + leadY * clamp);
+	}
+
+	public float predictX(int id, float measuredX){
+		return predict(id, measuredX, true);
+	}
+
+	public float predictY(int id, float measuredY){
+		return predict(id, measuredY, false);
+	}
+
+	/***************************************************************************
+	 * Writes every sample that goes into the predictor to this writer (as a trace
+	 * that can be replayed later). Pass null to stop recording
+	 ***************************************************************************/
+	public void setRecorder(PrintWriter writer){
+		recorder = writer;
+	}
+
+	/***************************************************************************
+	 * Replays a trace through a predictor and measures the prediction error. For
+	 * every sample, the prediction made from it is compared with where the pointer
+	 * really was leadMillis later (interpolated between the recorded samples).
+	 * The error of not predicting at all is measured the same way
+	 *
+	 * @param predictor - the predictor to test (its settings are used as they are)
+	 * @param times - sample times in milliseconds
+	 * @param ids - pointer ids
+	 * @param xs - x coordinates
+	 * @param ys - y coordinates
+	 * @return - {mean error with prediction, mean error without, max error with, max error without}
+	 ***************************************************************************/
+	public static float[] evaluate(TouchPredictor predictor, long[] times, int[] ids, float[] xs, float[] ys){
+
+		double sumPredicted = 0, sumRaw = 0;
+		float maxPredicted = 0, maxRaw = 0;
+		int n = 0;
+
+		for(int i = 0; i < times.length; i++){
+
+			int id = ids[i];
+			predictor.addSample(id, xs[i], ys[i], times[i]);
+
+			//find where this pointer really was leadMillis later
+			float target = times[i] + predictor.leadMillis;
+			int j = i + 1;
+			int prev = i;
+			while(j < times.length && (ids[j] != id || times[j] < target)){
+				if(ids[j] == id) prev = j;
+				j++;
+			}
+			if(j >= times.length) continue;								//the trace ends before then
+
+			float f = (times[j] == times[prev])? 1 : (target - times[prev]) / (times[j] - times[prev]);
+			float actualX = xs[prev] + f * (xs[j] - xs[prev]);
+			float actualY = ys[prev] + f * (ys[j] - ys[prev]);
+
+			float ePredicted = (float)Math.hypot(predictor.predictX(id, xs[i]) - actualX, predictor.predictY(id, ys[i]) - actualY);
+			float eRaw = (float)Math.hypot(xs[i] - actualX, ys[i] - actualY);
+
+			sumPredicted += ePredicted;
+			sumRaw += eRaw;
+			maxPredicted = Math.max(maxPredicted, ePredicted);
+			maxRaw = Math.max(maxRaw, eRaw);
+			n++;
+		}
+
+		if(n == 0) return new float[]{0, 0, 0, 0};
+		return new float[]{(float)(sumPredicted / n), (float)(sumRaw / n), maxPredicted, maxRaw};
+	}
+
+	/***************************************************************************
+	 * Replays the trace files named on the command line and prints the prediction
+	 * error for each of them. This is the regression check of the predictor (see
+	 * the traces directory of the project): it exits with status 1 if the mean
+	 * error of any trace is not below margin times the error of not predicting.
+	 * Arguments are trace files, and optionally margin=value (0.8)
+	 ***************************************************************************/
+	public static void main(String[] args) throws IOException{
+
+		float margin = 0.8f;
+		boolean isFailed = false;
+		for(String arg : args) if(arg.startsWith("margin=")) margin = Float.parseFloat(arg.substring(7));
+
+		for(String file : args){
+
+			if(file.startsWith("margin=")) continue;
+			ArrayList<String[]> lines = new ArrayList<String[]>();
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try{
+				String line;
+				while((line = in.readLine()) != null){
+					String[] fields = line.trim().split(",");
+					if(fields.length == 4 && !fields[0].startsWith("#")) lines.add(fields);
+				}
+			}finally{
+				in.close();
+			}
+
+			int count = lines.size();
+			long[] times = new long[count];
+			int[] ids = new int[count];
+			float[] xs = new float[count], ys = new float[count];
+			for(int i = 0; i < count; i++){
+				String[] fields = lines.get(i);
+				times[i] = Long.parseLong(fields[0]);
+				ids[i] = Integer.parseInt(fields[1]);
+				xs[i] = Float.parseFloat(fields[2]);
+				ys[i] = Float.parseFloat(fields[3]);
+			}
+
+			float[] result = evaluate(new TouchPredictor(), times, ids, xs, ys);
+			boolean isBetter = count > 0 && result[0] < result[1] * margin;
+			System.out.println(file + ": samples " + count + " mean error " + result[0] + "px (unpredicted " + result[1]
+					+ "px) max error " + result[2] + "px (unpredicted " + result[3] + "px)" + (isBetter? "" : " FAILED"));
+			if(!isBetter) isFailed = true;
+		}
+		if(isFailed) System.exit(1);
+	}
+}